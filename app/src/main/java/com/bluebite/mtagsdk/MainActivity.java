@@ -15,11 +15,8 @@
 
 package com.bluebite.mtagsdk;
 
-import android.app.PendingIntent;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.nfc.NfcAdapter;
-import android.nfc.tech.NfcF;
 import android.os.Bundle;
 import androidx.constraintlayout.widget.ConstraintLayout;
 import androidx.core.content.ContextCompat;
@@ -31,6 +28,7 @@ import android.widget.TextView;
 
 import com.bluebite.mtag_sdk.API;
 import com.bluebite.mtag_sdk.BlueBiteInteractionDelegate;
+import com.bluebite.mtag_sdk.NfcReaderMode;
 
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -45,8 +43,8 @@ public class MainActivity extends AppCompatActivity implements BlueBiteInteracti
     private int red;
     private int green;
 
-    private NfcAdapter mNfcAdapter;
     private API api;
+    private NfcReaderMode readerMode;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -60,22 +58,24 @@ public class MainActivity extends AppCompatActivity implements BlueBiteInteracti
         red = ContextCompat.getColor(this, R.color.lightRed);
         green = ContextCompat.getColor(this, R.color.lightGreen);
 
-        mNfcAdapter = NfcAdapter.getDefaultAdapter(this);
         api = new API(this);
+        readerMode = new NfcReaderMode(api);
     }
 
     @Override
     protected void onResume() {
         super.onResume();
-        setupForegroundDispatch();
+        // tags are read on the NFC thread and verified without waiting for an intent
+        readerMode.enable(this);
     }
 
     @Override
     protected void onPause() {
         super.onPause();
-        stopForegroundDispatch();
+        readerMode.disable(this);
     }
 
+    // intents only arrive while reader mode is off, e.g. a tap that brings the app back
     @Override
     protected void onNewIntent(Intent intent) {
         super.onNewIntent(intent);
@@ -120,43 +120,4 @@ public class MainActivity extends AppCompatActivity implements BlueBiteInteracti
         responseTextView.setText("" + error);
         bg.setBackgroundColor(red);
     }
-
-    /**
-     * gives the application priority for handling discovered NFC tags with http(s) data schemes.
-     */
-    public void setupForegroundDispatch() {
-        mNfcAdapter = NfcAdapter.getDefaultAdapter(this);
-
-        if(mNfcAdapter == null) {
-            mNfcAdapter = NfcAdapter.getDefaultAdapter(this); //get devices default NFC adapter
-        }
-
-        PendingIntent pendingIntent = PendingIntent.getActivity(
-                this, 0, new Intent(this, getClass()).addFlags(Intent.FLAG_ACTIVITY_SINGLE_TOP), 0);
-
-        String[][] techListsArray = new String[][] { new String[] { NfcF.class.getName() } };
-
-        IntentFilter[] filters = new IntentFilter[2];
-
-        // https
-        filters[0] = new IntentFilter();
-        filters[0].addAction(NfcAdapter.ACTION_NDEF_DISCOVERED);
-        filters[0].addCategory(Intent.CATEGORY_DEFAULT);
-        filters[0].addDataScheme("https");
-
-        //http
-        filters[1] = new IntentFilter();
-        filters[1].addAction(NfcAdapter.ACTION_NDEF_DISCOVERED);
-        filters[1].addCategory(Intent.CATEGORY_DEFAULT);
-        filters[1].addDataScheme("http");
-
-        mNfcAdapter.enableForegroundDispatch(this, pendingIntent, filters, techListsArray);
-    }
-
-    /**
-     * takes away priority for applications handling discovered NFC tags with http(s) data schemes.
-     */
-    public void stopForegroundDispatch() {
-        mNfcAdapter.disableForegroundDispatch(this);
-    }
 }
@@ -0,0 +1,280 @@
+//Copyright 2018 Blue Bite LLC.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+
+package com.bluebite.mtag_sdk;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Remembers recently sent tag ID and VID pairs so a replayed or cloned one-time URL can be
+ * spotted on the device, see API.setReplayFilter.
+ * <p>
+ * Pairs go into a rotating pair of Bloom filters: once the current generation has taken
+ * expectedPerGeneration pairs it becomes the previous one and a cleared generation takes its
+ * place, so the newest expectedPerGeneration to twice that many pairs are always remembered.
+ * Memory is two fixed bit arrays no matter how many tags are scanned.  A pair that was never
+ * sent is reported as seen with roughly the configured false positive rate; a pair that was
+ * sent recently is always reported.
+ */
+public class CounterReplayFilter {
+
+    private static final int MAGIC = 0x6d524631; // "mRF1"
+    private static final int HEADER_BYTES = 24;
+
+    private final int expectedPerGeneration;
+    private final int bits;
+    private final int hashes;
+
+    // guarded by this
+    private long[] current;
+    private long[] previous;
+    private int currentCount;
+
+    /**
+     * @param expectedPerGeneration Pairs remembered before the oldest generation is dropped.
+     * @param falsePositiveRate Chance, per generation, that an unseen pair is reported as seen.
+     */
+    public CounterReplayFilter(int expectedPerGeneration, double falsePositiveRate) {
+        this(expectedPerGeneration, bitsFor(expectedPerGeneration, falsePositiveRate),
+                hashesFor(expectedPerGeneration, bitsFor(expectedPerGeneration,
+                        falsePositiveRate)));
+    }
+
+    private CounterReplayFilter(int expectedPerGeneration, int bits, int hashes) {
+        if (expectedPerGeneration < 1) {
+            throw new IllegalArgumentException("expectedPerGeneration must be at least 1");
+        }
+        this.expectedPerGeneration = expectedPerGeneration;
+        this.bits = bits;
+        this.hashes = hashes;
+        this.current = new long[bits / 64];
+        this.previous = new long[bits / 64];
+    }
+
+    private static int bitsFor(int expected, double falsePositiveRate) {
+        if (falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+            throw new IllegalArgumentException("falsePositiveRate must be between 0 and 1");
+        }
+        double optimal = -Math.max(expected, 1) * Math.log(falsePositiveRate)
+                / (Math.log(2) * Math.log(2));
+        long words = Math.max(1, (long) Math.ceil(optimal / 64));
+        if (words > Integer.MAX_VALUE / 64) {
+            throw new IllegalArgumentException("filter too large");
+        }
+        return (int) words * 64;
+    }
+
+    private static int hashesFor(int expected, int bits) {
+        int k = (int) Math.round((double) bits / Math.max(expected, 1) * Math.log(2));
+        return Math.max(1, Math.min(16, k));
+    }
+
+    /**
+     * Loads a filter written by save.
+     * @param file File written by save.
+     * @return The filter, or null if the file is missing or damaged.
+     * @throws IOException If the file can't be read.
+     */
+    public static CounterReplayFilter load(File file) throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            if (in.length() < HEADER_BYTES + 4) {
+                return null;
+            }
+            byte[] bytes = new byte[(int) in.length() - 4];
+            in.readFully(bytes);
+            CRC32 crc = new CRC32();
+            crc.update(bytes, 0, bytes.length);
+            if ((int) crc.getValue() != in.readInt()) {
+                return null;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            if (buffer.getInt() != MAGIC) {
+                return null;
+            }
+            int expected = buffer.getInt();
+            int bits = buffer.getInt();
+            int hashes = buffer.getInt();
+            int count = buffer.getInt();
+            buffer.getInt(); // reserved
+            if (expected < 1 || bits < 64 || bits % 64 != 0 || hashes < 1
+                    || bytes.length != HEADER_BYTES + bits / 4) {
+                return null;
+            }
+            CounterReplayFilter filter = new CounterReplayFilter(expected, bits, hashes);
+            buffer.asLongBuffer().get(filter.current);
+            buffer.position(HEADER_BYTES + bits / 8);
+            buffer.asLongBuffer().get(filter.previous);
+            filter.currentCount = count;
+            return filter;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Writes the filter to a file, replacing it atomically.  Takes 2 * bits / 8 bytes plus a
+     * small header.
+     * @param file Destination file.
+     * @throws IOException If the file can't be written.
+     */
+    public void save(File file) throws IOException {
+        ByteBuffer buffer;
+        synchronized (this) {
+            buffer = ByteBuffer.allocate(HEADER_BYTES + bits / 4 + 4);
+            buffer.putInt(MAGIC);
+            buffer.putInt(expectedPerGeneration);
+            buffer.putInt(bits);
+            buffer.putInt(hashes);
+            buffer.putInt(currentCount);
+            buffer.putInt(0);
+            for (long word : current) {
+                buffer.putLong(word);
+            }
+            for (long word : previous) {
+                buffer.putLong(word);
+            }
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, buffer.position());
+        buffer.putInt((int) crc.getValue());
+        buffer.flip();
+
+        // write aside and rename so a crash never leaves a half written filter
+        File temp = new File(file.getPath() + ".tmp");
+        RandomAccessFile out = new RandomAccessFile(temp, "rw");
+        try {
+            out.setLength(0);
+            out.getChannel().write(buffer);
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            throw new IOException("Can't replace replay filter " + file);
+        }
+    }
+
+    /**
+     * Checks whether a pair was seen recently and remembers it either way.
+     * @param tagId Tag ID, base 10.
+     * @param vid One-time VID sent with the tag ID.
+     * @return True if the pair was probably sent before, i.e. this is a replay.
+     */
+    public synchronized boolean checkAndAdd(CharSequence tagId, CharSequence vid) {
+        long hash = hash(tagId, vid);
+        if (contains(current, hash)) {
+            return true;
+        }
+        boolean seen = contains(previous, hash);
+        if (currentCount >= expectedPerGeneration) {
+            long[] cleared = previous;
+            Arrays.fill(cleared, 0);
+            previous = current;
+            current = cleared;
+            currentCount = 0;
+        }
+        add(current, hash);
+        currentCount++;
+        return seen;
+    }
+
+    /**
+     * @param tagId Tag ID, base 10.
+     * @param vid One-time VID sent with the tag ID.
+     * @return True if the pair was probably sent recently.  Nothing is remembered.
+     */
+    public synchronized boolean mightContain(CharSequence tagId, CharSequence vid) {
+        long hash = hash(tagId, vid);
+        return contains(current, hash) || contains(previous, hash);
+    }
+
+    /**
+     * Forgets every pair.
+     */
+    public synchronized void clear() {
+        Arrays.fill(current, 0);
+        Arrays.fill(previous, 0);
+        currentCount = 0;
+    }
+
+    /**
+     * @return Size of one generation in bits.
+     */
+    public int getBitsPerGeneration() {
+        return bits;
+    }
+
+    public int getHashCount() {
+        return hashes;
+    }
+
+    private boolean contains(long[] words, long hash) {
+        long h2 = mix(hash) | 1;
+        for (int i = 0; i < hashes; i++) {
+            int bit = index(hash + i * h2);
+            if ((words[bit >>> 6] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void add(long[] words, long hash) {
+        long h2 = mix(hash) | 1;
+        for (int i = 0; i < hashes; i++) {
+            int bit = index(hash + i * h2);
+            words[bit >>> 6] |= 1L << bit;
+        }
+    }
+
+    private int index(long hash) {
+        return (int) ((hash >>> 1) % bits);
+    }
+
+    /**
+     * 64 bit FNV-1a over both values with a separator, finished with a mixer so every bit of
+     * the result depends on every character.
+     */
+    private static long hash(CharSequence tagId, CharSequence vid) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < tagId.length(); i++) {
+            hash = (hash ^ tagId.charAt(i)) * 0x100000001b3L;
+        }
+        hash = (hash ^ '&') * 0x100000001b3L;
+        for (int i = 0; i < vid.length(); i++) {
+            hash = (hash ^ vid.charAt(i)) * 0x100000001b3L;
+        }
+        return mix(hash);
+    }
+
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb93fe53e87a9L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
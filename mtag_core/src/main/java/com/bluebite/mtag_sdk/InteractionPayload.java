@@ -0,0 +1,115 @@
+//Copyright 2018 Blue Bite LLC.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package com.bluebite.mtag_sdk;
+
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Builds the form parameters the interactions route expects for a classified Interaction URL.
+ * Has no Android dependencies, so gateways receiving tap URLs from fixed readers can shape the
+ * same requests the SDK sends.
+ */
+public final class InteractionPayload {
+
+    /**
+     * Route interactions are POSTed to.
+     */
+    public static final String INTERACTIONS_URL = "https://api.mtag.io/v2/interactions";
+
+    /** Parameter carrying the unchanged URL of a slug interaction. */
+    public static final String PARAM_URL = "url";
+    /** Parameter carrying the base 10 mTag ID. */
+    public static final String PARAM_TAG_ID = "tag_id";
+    /** Parameter carrying the technology the tag was read with. */
+    public static final String PARAM_TECH = "tech";
+    /** Technology value for NFC reads. */
+    public static final String TECH_NFC = "n";
+
+    private InteractionPayload() {
+    }
+
+    /**
+     * Classifies a URL and builds its request parameters in one go.
+     * @param url Interaction URL.
+     * @return Request parameters, or null if the URL isn't verifiable or its mTag ID isn't a
+     * valid 64 bit ID.
+     */
+    public static Map<String, String> build(String url) {
+        return build(InteractionUrl.parse(url));
+    }
+
+    /**
+     * @param parsed Classified Interaction URL.
+     * @return Request parameters, or null if the URL isn't verifiable or its mTag ID isn't a
+     * valid 64 bit ID.
+     */
+    public static Map<String, String> build(InteractionUrl parsed) {
+        if (parsed.getType() == InteractionUrl.Type.SLUG) {
+            return slugParams(parsed.getUrl());
+        }
+        if (!parsed.isVerifiable()) {
+            return null;
+        }
+        long id = MTagIdCodec.decode(parsed.getUrl(), parsed.getMTagIdStart(),
+                parsed.getMTagIdEnd());
+        if (id == MTagIdCodec.INVALID) {
+            return null;
+        }
+        return putTagId(urlParams(parsed), Long.toString(id));
+    }
+
+    /**
+     * Slug URLs are sent whole, the interactions route resolves them.
+     * @param url Unchanged Interaction URL.
+     * @return Request parameters for the slug interaction.
+     */
+    public static Map<String, String> slugParams(String url) {
+        Map<String, String> params = new LinkedHashMap<>();
+        params.put(PARAM_URL, url);
+        return params;
+    }
+
+    /**
+     * Copies the request parameters found by the URL classifier into a Map.
+     * Parameters missing from the URL are omitted.
+     * @param parsed Classified Interaction URL.
+     * @return Map holding the API's expected param names and their URL values.
+     */
+    public static Map<String, String> urlParams(InteractionUrl parsed) {
+        Map<String, String> params = new LinkedHashMap<>();
+        for (int i = 0; i < parsed.getParamCount(); i++) {
+            String value = parsed.getParamValue(i);
+            if (value != null) {
+                params.put(parsed.getParamName(i), value);
+            }
+        }
+        return params;
+    }
+
+    /**
+     * Adds the mTag ID and read technology to a tag's request parameters.
+     * @param params Parameters from urlParams, modified in place.
+     * @param mTagId Base 10 mTag ID.
+     * @return params, for chaining.
+     */
+    public static Map<String, String> putTagId(Map<String, String> params, String mTagId) {
+        params.put(PARAM_TAG_ID, mTagId);
+        params.put(PARAM_TECH, TECH_NFC);
+        return params;
+    }
+}
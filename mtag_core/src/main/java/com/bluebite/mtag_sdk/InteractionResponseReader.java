@@ -0,0 +1,483 @@
+//Copyright 2018 Blue Bite LLC.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package com.bluebite.mtag_sdk;
+
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.charset.Charset;
+
+/**
+ * Pulls the fields the SDK cares about out of a raw interactions response body in one pass,
+ * without building a JSON tree of the whole body.
+ * <p>
+ * Only device.country and tag_verified are decoded while reading.  The location and campaigns
+ * values are remembered as byte ranges and only turned into JSON objects when asked for;
+ * every other value is skipped over without allocating.  Scanning works on the UTF-8 bytes
+ * directly, which is safe because every structural character is ASCII and never appears
+ * inside a multi-byte sequence.
+ */
+public final class InteractionResponseReader {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final byte[] DEVICE = ascii("device");
+    private static final byte[] COUNTRY = ascii("country");
+    private static final byte[] TAG_VERIFIED = ascii("tag_verified");
+    private static final byte[] LOCATION = ascii("location");
+    private static final byte[] CAMPAIGNS = ascii("campaigns");
+
+    private final byte[] body;
+    private final int end;
+    private int pos;
+
+    private String deviceCountry;
+    private Boolean tagVerified;
+    private int locationStart = -1;
+    private int locationEnd;
+    private int campaignsStart = -1;
+    private int campaignsEnd;
+    private JSONObject location;
+    private JSONArray campaigns;
+
+    private InteractionResponseReader(byte[] body, int offset, int length) {
+        this.body = body;
+        this.pos = offset;
+        this.end = offset + length;
+    }
+
+    /**
+     * Reads a whole response body.
+     * @param body UTF-8 response body.
+     * @return The extracted fields, or null if the body isn't a JSON object.
+     */
+    public static InteractionResponseReader read(byte[] body) {
+        return read(body, 0, body.length);
+    }
+
+    /**
+     * Reads a response body out of a larger buffer.
+     * @param body Buffer holding the UTF-8 response body.
+     * @param offset Start of the body in the buffer.
+     * @param length Length of the body.
+     * @return The extracted fields, or null if the body isn't a JSON object.
+     */
+    public static InteractionResponseReader read(byte[] body, int offset, int length) {
+        InteractionResponseReader reader = new InteractionResponseReader(body, offset, length);
+        return reader.readResponse() ? reader : null;
+    }
+
+    /**
+     * @return device.country, or null if it was missing.
+     */
+    public String getDeviceCountry() {
+        return deviceCountry;
+    }
+
+    /**
+     * @return tag_verified, or null if it was missing or not a boolean.
+     */
+    public Boolean getTagVerified() {
+        return tagVerified;
+    }
+
+    public boolean hasLocation() {
+        return locationStart >= 0;
+    }
+
+    public boolean hasCampaigns() {
+        return campaignsStart >= 0;
+    }
+
+    /**
+     * Decodes the location object the first time it is asked for.
+     * @return location, or null if it was missing or malformed.
+     */
+    public synchronized JSONObject getLocation() {
+        if (location == null && locationStart >= 0) {
+            try {
+                location = new JSONObject(text(locationStart, locationEnd));
+            } catch (JSONException e) {
+                locationStart = -1;
+            }
+        }
+        return location;
+    }
+
+    /**
+     * Decodes the campaigns array the first time it is asked for.
+     * @return campaigns, or null if it was missing or malformed.
+     */
+    public synchronized JSONArray getCampaigns() {
+        if (campaigns == null && campaignsStart >= 0) {
+            try {
+                campaigns = new JSONArray(text(campaignsStart, campaignsEnd));
+            } catch (JSONException e) {
+                campaignsStart = -1;
+            }
+        }
+        return campaigns;
+    }
+
+    /**
+     * Decodes a new copy of the location object straight from the body on every call, for
+     * callers that hand it to code that may modify it.
+     * @return New location object, or null if it was missing or malformed.
+     */
+    synchronized JSONObject newLocation() {
+        if (locationStart >= 0) {
+            try {
+                return new JSONObject(text(locationStart, locationEnd));
+            } catch (JSONException e) {
+                locationStart = -1;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Decodes a new copy of the campaigns array straight from the body on every call.
+     * @return New campaigns array, or null if it was missing or malformed.
+     */
+    synchronized JSONArray newCampaigns() {
+        if (campaignsStart >= 0) {
+            try {
+                return new JSONArray(text(campaignsStart, campaignsEnd));
+            } catch (JSONException e) {
+                campaignsStart = -1;
+            }
+        }
+        return null;
+    }
+
+    private boolean readResponse() {
+        skipWhitespace();
+        if (!consume('{')) {
+            return false;
+        }
+        skipWhitespace();
+        if (consume('}')) {
+            return true;
+        }
+        while (true) {
+            int keyStart = pos + 1;
+            if (!skipString()) {
+                return false;
+            }
+            int keyEnd = pos - 1;
+            skipWhitespace();
+            if (!consume(':')) {
+                return false;
+            }
+            skipWhitespace();
+            if (!readTopLevelValue(keyStart, keyEnd)) {
+                return false;
+            }
+            skipWhitespace();
+            if (consume('}')) {
+                return true;
+            }
+            if (!consume(',')) {
+                return false;
+            }
+            skipWhitespace();
+        }
+    }
+
+    private boolean readTopLevelValue(int keyStart, int keyEnd) {
+        if (pos >= end) {
+            return false;
+        }
+        byte first = body[pos];
+        if (keyEquals(keyStart, keyEnd, DEVICE) && first == '{') {
+            return readDevice();
+        } else if (keyEquals(keyStart, keyEnd, TAG_VERIFIED)) {
+            int valueStart = pos;
+            if (!skipValue()) {
+                return false;
+            }
+            tagVerified = booleanValue(valueStart, pos);
+            return true;
+        } else if (keyEquals(keyStart, keyEnd, LOCATION)) {
+            int valueStart = pos;
+            if (!skipValue()) {
+                return false;
+            }
+            if (first == '{') {
+                locationStart = valueStart;
+                locationEnd = pos;
+            } else {
+                locationStart = -1;
+            }
+            location = null;
+            return true;
+        } else if (keyEquals(keyStart, keyEnd, CAMPAIGNS)) {
+            int valueStart = pos;
+            if (!skipValue()) {
+                return false;
+            }
+            if (first == '[') {
+                campaignsStart = valueStart;
+                campaignsEnd = pos;
+            } else {
+                campaignsStart = -1;
+            }
+            campaigns = null;
+            return true;
+        }
+        return skipValue();
+    }
+
+    /**
+     * Reads the device object, keeping only its country.
+     */
+    private boolean readDevice() {
+        deviceCountry = null;
+        consume('{');
+        skipWhitespace();
+        if (consume('}')) {
+            return true;
+        }
+        while (true) {
+            int keyStart = pos + 1;
+            if (!skipString()) {
+                return false;
+            }
+            int keyEnd = pos - 1;
+            skipWhitespace();
+            if (!consume(':')) {
+                return false;
+            }
+            skipWhitespace();
+            int valueStart = pos;
+            if (!skipValue()) {
+                return false;
+            }
+            if (keyEquals(keyStart, keyEnd, COUNTRY)) {
+                deviceCountry = stringValue(valueStart, pos);
+            }
+            skipWhitespace();
+            if (consume('}')) {
+                return true;
+            }
+            if (!consume(',')) {
+                return false;
+            }
+            skipWhitespace();
+        }
+    }
+
+    /**
+     * Moves past one value of any kind, checking brackets balance and strings terminate.
+     */
+    private boolean skipValue() {
+        if (pos >= end) {
+            return false;
+        }
+        byte first = body[pos];
+        if (first == '"') {
+            return skipString();
+        }
+        if (first == '{' || first == '[') {
+            int depth = 0;
+            while (pos < end) {
+                byte b = body[pos];
+                if (b == '"') {
+                    if (!skipString()) {
+                        return false;
+                    }
+                    continue;
+                }
+                if (b == '{' || b == '[') {
+                    depth++;
+                } else if (b == '}' || b == ']') {
+                    depth--;
+                    if (depth == 0) {
+                        pos++;
+                        return true;
+                    }
+                }
+                pos++;
+            }
+            return false;
+        }
+        // number, true, false or null
+        int start = pos;
+        while (pos < end) {
+            byte b = body[pos];
+            if (b == ',' || b == '}' || b == ']' || isWhitespace(b)) {
+                break;
+            }
+            pos++;
+        }
+        return pos > start;
+    }
+
+    /**
+     * Moves past a string, pos must be on its opening quote.
+     */
+    private boolean skipString() {
+        if (pos >= end || body[pos] != '"') {
+            return false;
+        }
+        pos++;
+        while (pos < end) {
+            byte b = body[pos++];
+            if (b == '\\') {
+                pos++;
+            } else if (b == '"') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Interprets a value the way JSONObject.getBoolean does: a boolean literal, or a string
+     * spelling one in any case.
+     */
+    private Boolean booleanValue(int start, int stop) {
+        if (body[start] == '"') {
+            start++;
+            stop--;
+        }
+        if (regionEqualsIgnoreCase(start, stop, "true")) {
+            return Boolean.TRUE;
+        } else if (regionEqualsIgnoreCase(start, stop, "false")) {
+            return Boolean.FALSE;
+        }
+        return null;
+    }
+
+    /**
+     * Interprets a value as a String, coercing numbers and booleans to their text.
+     * @return The value, or null for null, objects and arrays.
+     */
+    private String stringValue(int start, int stop) {
+        byte first = body[start];
+        if (first == '{' || first == '[' || regionEqualsIgnoreCase(start, stop, "null")) {
+            return null;
+        }
+        if (first != '"') {
+            return text(start, stop);
+        }
+        start++;
+        stop--;
+        for (int i = start; i < stop; i++) {
+            if (body[i] == '\\') {
+                return unescape(start, stop);
+            }
+        }
+        return text(start, stop);
+    }
+
+    private String unescape(int start, int stop) {
+        String raw = text(start, stop);
+        StringBuilder builder = new StringBuilder(raw.length());
+        for (int i = 0; i < raw.length(); i++) {
+            char c = raw.charAt(i);
+            if (c != '\\' || i + 1 >= raw.length()) {
+                builder.append(c);
+                continue;
+            }
+            char escaped = raw.charAt(++i);
+            switch (escaped) {
+                case 'b':
+                    builder.append('\b');
+                    break;
+                case 'f':
+                    builder.append('\f');
+                    break;
+                case 'n':
+                    builder.append('\n');
+                    break;
+                case 'r':
+                    builder.append('\r');
+                    break;
+                case 't':
+                    builder.append('\t');
+                    break;
+                case 'u':
+                    if (i + 4 < raw.length()) {
+                        try {
+                            builder.append((char) Integer.parseInt(raw.substring(i + 1, i + 5), 16));
+                            i += 4;
+                            break;
+                        } catch (NumberFormatException e) {
+                            // fall through and keep the character as is
+                        }
+                    }
+                    builder.append(escaped);
+                    break;
+                default:
+                    builder.append(escaped);
+            }
+        }
+        return builder.toString();
+    }
+
+    private boolean keyEquals(int start, int stop, byte[] key) {
+        if (stop - start != key.length) {
+            return false;
+        }
+        for (int i = 0; i < key.length; i++) {
+            if (body[start + i] != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean regionEqualsIgnoreCase(int start, int stop, String expected) {
+        if (stop - start != expected.length()) {
+            return false;
+        }
+        for (int i = 0; i < expected.length(); i++) {
+            if (Character.toLowerCase((char) body[start + i]) != expected.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean consume(char c) {
+        if (pos < end && body[pos] == c) {
+            pos++;
+            return true;
+        }
+        return false;
+    }
+
+    private void skipWhitespace() {
+        while (pos < end && isWhitespace(body[pos])) {
+            pos++;
+        }
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+    }
+
+    private String text(int start, int stop) {
+        return new String(body, start, stop - start, UTF_8);
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(Charset.forName("US-ASCII"));
+    }
+}
@@ -0,0 +1,239 @@
+//Copyright 2018 Blue Bite LLC.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+
+package com.bluebite.mtag_sdk;
+
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Iterator;
+
+/**
+ * Immutable result of a registered Interaction.  Fields are read without using exceptions for
+ * control flow, location and campaigns are only decoded when asked for, and the JSON payload
+ * BlueBiteInteractionDelegate receives is built afresh for every delivery.
+ */
+public final class InteractionResult {
+
+    /**
+     * Whether the API verified the tag.  UNKNOWN means tag_verified was missing or null, which
+     * should be shown to the user as a potential service hiccup and not a true authentication
+     * failure.
+     */
+    public enum Verification {
+        VERIFIED,
+        NOT_VERIFIED,
+        UNKNOWN
+    }
+
+    private final Verification verification;
+    private final String deviceCountry;
+    // location and campaigns come from the reader when there is one
+    private final InteractionResponseReader source;
+    private final JSONObject location;
+    private final JSONArray campaigns;
+
+    /**
+     * @param verification Whether the tag was verified.
+     * @param deviceCountry Country of the device, or null.
+     * @param location Location details, or null.
+     * @param campaigns Campaigns to show, or null.
+     */
+    public InteractionResult(Verification verification, String deviceCountry,
+                             JSONObject location, JSONArray campaigns) {
+        this(verification, deviceCountry, null, location, campaigns);
+    }
+
+    private InteractionResult(Verification verification, String deviceCountry,
+                              InteractionResponseReader source, JSONObject location,
+                              JSONArray campaigns) {
+        this.verification = verification == null ? Verification.UNKNOWN : verification;
+        this.deviceCountry = deviceCountry;
+        this.source = source;
+        this.location = location;
+        this.campaigns = campaigns;
+    }
+
+    /**
+     * Builds a result from fields streamed out of a response body.  Location and campaigns
+     * stay undecoded until they are asked for.
+     * @param reader Fields read from the response body.
+     * @return Result for the response.
+     */
+    public static InteractionResult from(InteractionResponseReader reader) {
+        return new InteractionResult(verification(reader.getTagVerified()),
+                reader.getDeviceCountry(), reader, null, null);
+    }
+
+    /**
+     * Builds a result from a fully parsed response body.
+     * @param response JSON body from the interactions route.
+     * @return Result for the response.
+     */
+    public static InteractionResult fromResponse(JSONObject response) {
+        JSONObject device = response.optJSONObject("device");
+        String country = null;
+        if (device != null && !device.isNull("country")) {
+            country = device.optString("country", null);
+        }
+        return new InteractionResult(verification(response.opt("tag_verified")), country,
+                response.optJSONObject("location"), response.optJSONArray("campaigns"));
+    }
+
+    /**
+     * Builds a result from the formatted payload delivered to BlueBiteInteractionDelegate.
+     * Location and campaigns are copied, the payload itself may still be handed to a delegate.
+     * @param formattedResponse Payload with deviceCountry, tagVerified, location and campaigns.
+     * @return Result for the payload.
+     */
+    public static InteractionResult fromFormattedResponse(JSONObject formattedResponse) {
+        String country = formattedResponse.isNull("deviceCountry")
+                ? null : formattedResponse.optString("deviceCountry", null);
+        return new InteractionResult(verification(formattedResponse.opt("tagVerified")),
+                country, null, copyOf(formattedResponse.optJSONObject("location")),
+                copyOf(formattedResponse.optJSONArray("campaigns")));
+    }
+
+    /**
+     * Interprets a tag_verified value the way JSONObject.getBoolean does.
+     */
+    private static Verification verification(Object value) {
+        if (value instanceof Boolean) {
+            return (Boolean) value ? Verification.VERIFIED : Verification.NOT_VERIFIED;
+        } else if (value instanceof String) {
+            if ("true".equalsIgnoreCase((String) value)) {
+                return Verification.VERIFIED;
+            } else if ("false".equalsIgnoreCase((String) value)) {
+                return Verification.NOT_VERIFIED;
+            }
+        }
+        return Verification.UNKNOWN;
+    }
+
+    public Verification getVerification() {
+        return verification;
+    }
+
+    /**
+     * @return True only if the API verified the tag.
+     */
+    public boolean isVerified() {
+        return verification == Verification.VERIFIED;
+    }
+
+    /**
+     * @return Country of the device, or null.
+     */
+    public String getDeviceCountry() {
+        return deviceCountry;
+    }
+
+    /**
+     * @return Location details, or null.  Callers must not modify them.
+     */
+    public JSONObject getLocation() {
+        return source != null ? source.getLocation() : location;
+    }
+
+    /**
+     * @return Campaigns to show, or null.  Callers must not modify them.
+     */
+    public JSONArray getCampaigns() {
+        return source != null ? source.getCampaigns() : campaigns;
+    }
+
+    /**
+     * Builds the payload BlueBiteInteractionDelegate receives.  Results are shared by joined
+     * requests and cache hits, so every call returns a new payload with its own copy of
+     * location and campaigns, decoded once from the response body when there is one and
+     * copied field by field otherwise.  Fields that are missing are omitted.
+     * @return Formatted JSON response, free for the caller to modify.
+     */
+    public JSONObject toJSONObject() {
+        JSONObject formattedResponse = new JSONObject();
+        try {
+            if (deviceCountry != null) {
+                formattedResponse.put("deviceCountry", deviceCountry);
+            }
+            if (verification != Verification.UNKNOWN) {
+                formattedResponse.put("tagVerified", verification == Verification.VERIFIED);
+            }
+            if (source != null) {
+                formattedResponse.put("location", source.newLocation());
+                formattedResponse.put("campaigns", source.newCampaigns());
+            } else {
+                formattedResponse.put("location", copyOf(location));
+                formattedResponse.put("campaigns", copyOf(campaigns));
+            }
+        } catch (JSONException e) {
+            // only thrown for null names
+        }
+        return formattedResponse;
+    }
+
+    /**
+     * @return Deep copy of the object, or null.
+     */
+    private static JSONObject copyOf(JSONObject object) {
+        if (object == null) {
+            return null;
+        }
+        JSONObject copy = new JSONObject();
+        Iterator<String> keys = object.keys();
+        try {
+            while (keys.hasNext()) {
+                String key = keys.next();
+                copy.put(key, copyOf(object.opt(key)));
+            }
+        } catch (JSONException e) {
+            // only thrown for values the original couldn't hold either
+        }
+        return copy;
+    }
+
+    /**
+     * @return Deep copy of the array, or null.
+     */
+    private static JSONArray copyOf(JSONArray array) {
+        if (array == null) {
+            return null;
+        }
+        JSONArray copy = new JSONArray();
+        for (int i = 0; i < array.length(); i++) {
+            copy.put(copyOf(array.opt(i)));
+        }
+        return copy;
+    }
+
+    /**
+     * @return Deep copy of nested objects and arrays, other values are immutable.
+     */
+    private static Object copyOf(Object value) {
+        if (value instanceof JSONObject) {
+            return copyOf((JSONObject) value);
+        } else if (value instanceof JSONArray) {
+            return copyOf((JSONArray) value);
+        }
+        return value;
+    }
+
+    @Override
+    public String toString() {
+        return "InteractionResult{" + verification + ", " + deviceCountry + "}";
+    }
+}
@@ -0,0 +1,313 @@
+//Copyright 2018 Blue Bite LLC.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package com.bluebite.mtag_sdk;
+
+
+/**
+ * Immutable result of classifying an Interaction URL.  The URL is walked once by {@link #parse}
+ * and every field is kept as an offset into the original String, so nothing is copied until a
+ * caller actually asks for the mTag ID or a request parameter.
+ */
+public final class InteractionUrl {
+
+    /**
+     * The kinds of Interaction URL the SDK knows about.
+     */
+    public enum Type {
+        /** Short trailing path segment; the whole URL is sent to the interactions route. */
+        SLUG,
+        /** Plain mTag ID with no verification data, not verifiable. */
+        BASIC,
+        /** SMT counter URL carrying a one-time VID as its last path segment. */
+        COUNTER,
+        /** Rolling code URL carrying a &sig query parameter. */
+        AUTH,
+        /** HID URL carrying a &tac query parameter. */
+        HID,
+        /** Anything else, not verifiable. */
+        NON_AUTH
+    }
+
+    private static final int SMT_COUNTER_SEGMENTS = 5;
+    private static final int MTAG_ID_B10_LENGTH = 8;
+    private static final int MTAG_ID_B36_LENGTH = 6;
+    private static final int TECH_PREFIX_LENGTH = 1;
+
+    // Query parameter names found on the URL and the names the interactions route expects for
+    // them.  Indexes line up, and a parsed URL stores one value range per index.
+    private static final String[] AUTH_QUERY_KEYS = {"id", "num", "sig"};
+    private static final String[] AUTH_PARAM_NAMES = {"uid", "tag_version", "vid"};
+    private static final String[] HID_QUERY_KEYS = {"tagID", "tac"};
+    private static final String[] HID_PARAM_NAMES = {"hid", "vid"};
+    private static final String[] COUNTER_PARAM_NAMES = {"vid"};
+    private static final String[] NO_PARAM_NAMES = {};
+    private static final int[] NO_RANGES = {};
+
+    private final String url;
+    private final Type type;
+    private final int idStart;
+    private final int idEnd;
+    private final String[] paramNames;
+    // start/end pairs, -1 when the parameter wasn't present on the URL
+    private final int[] paramRanges;
+
+    private InteractionUrl(String url, Type type, int idStart, int idEnd,
+                           String[] paramNames, int[] paramRanges) {
+        this.url = url;
+        this.type = type;
+        this.idStart = idStart;
+        this.idEnd = idEnd;
+        this.paramNames = paramNames;
+        this.paramRanges = paramRanges;
+    }
+
+    /**
+     * Classifies an Interaction URL in a single pass.  Segments follow String.split semantics,
+     * so trailing slashes are ignored the same way the original split based parsing ignored them.
+     * @param url Interaction URL to classify.
+     * @return Parse result, never null.
+     */
+    public static InteractionUrl parse(String url) {
+        int length = url.length();
+
+        // one walk gathers every index the classification needs
+        int firstQuery = -1;
+        int pathEnd = length;
+        int trimmedEnd = length;
+        while (trimmedEnd > 0 && url.charAt(trimmedEnd - 1) == '/') {
+            trimmedEnd--;
+        }
+        int segments = 1;
+        int lastSlash = -1;
+        int previousSlash = -1;
+        int pathLastSlash = -1;
+        for (int i = 0; i < trimmedEnd; i++) {
+            char c = url.charAt(i);
+            if (c == '/') {
+                segments++;
+                previousSlash = lastSlash;
+                lastSlash = i;
+                if (firstQuery < 0) {
+                    pathLastSlash = i;
+                }
+            } else if (c == '?' && firstQuery < 0) {
+                firstQuery = i;
+                pathEnd = i;
+            }
+        }
+
+        // the path's last segment decides whether this is a slug URL
+        int pathTrimmedEnd = pathEnd;
+        while (pathTrimmedEnd > 0 && url.charAt(pathTrimmedEnd - 1) == '/') {
+            pathTrimmedEnd--;
+        }
+        if (pathTrimmedEnd < pathEnd) {
+            // slashes right before the query, find the segment in front of them
+            pathLastSlash = url.lastIndexOf('/', pathTrimmedEnd - 1);
+        }
+        boolean isSlug = pathTrimmedEnd - (pathLastSlash + 1) < MTAG_ID_B36_LENGTH;
+
+        // the URL's last segment (query included) carries the id or verification data
+        int tailStart = lastSlash + 1;
+        int tailEnd = trimmedEnd;
+        int tailQuery = indexOf(url, '?', tailStart, tailEnd);
+        boolean hasSig = contains(url, "&sig", tailStart, tailEnd);
+        boolean hasTac = !hasSig && contains(url, "&tac", tailStart, tailEnd);
+
+        int idStart = -1;
+        int idEnd = -1;
+        if (tailEnd - tailStart <= MTAG_ID_B10_LENGTH + TECH_PREFIX_LENGTH) {
+            // basic mTag structure
+            idStart = tailStart + TECH_PREFIX_LENGTH;
+            idEnd = tailEnd;
+        } else if (hasSig || hasTac) {
+            // auth or hid tag, the id sits in front of the query
+            idStart = tailStart + TECH_PREFIX_LENGTH;
+            idEnd = tailQuery < 0 ? tailEnd : tailQuery;
+        } else if (segments == SMT_COUNTER_SEGMENTS) {
+            // smt counter tag, the id is the segment before the VID
+            idStart = previousSlash + 1 + TECH_PREFIX_LENGTH;
+            idEnd = lastSlash;
+        }
+        if (idStart > idEnd) {
+            idStart = idEnd;
+        }
+
+        if (isSlug) {
+            return new InteractionUrl(url, Type.SLUG, idStart, idEnd, NO_PARAM_NAMES, NO_RANGES);
+        } else if (segments == SMT_COUNTER_SEGMENTS) {
+            int vidEnd = tailQuery < 0 ? tailEnd : tailQuery;
+            return new InteractionUrl(url, Type.COUNTER, idStart, idEnd,
+                    COUNTER_PARAM_NAMES, new int[] {tailStart, vidEnd});
+        } else if (hasSig) {
+            return new InteractionUrl(url, Type.AUTH, idStart, idEnd, AUTH_PARAM_NAMES,
+                    scanQuery(url, tailQuery, tailEnd, AUTH_QUERY_KEYS));
+        } else if (hasTac) {
+            return new InteractionUrl(url, Type.HID, idStart, idEnd, HID_PARAM_NAMES,
+                    scanQuery(url, tailQuery, tailEnd, HID_QUERY_KEYS));
+        }
+        return new InteractionUrl(url, idStart < 0 ? Type.NON_AUTH : Type.BASIC,
+                idStart, idEnd, NO_PARAM_NAMES, NO_RANGES);
+    }
+
+    /**
+     * Walks the "&" separated arguments of a query and records the value range of every
+     * argument whose name is one of the expected keys.  Later duplicates win.
+     * @param url Interaction URL being parsed.
+     * @param query Index of the "?" starting the query, or -1 if there is none.
+     * @param end End of the query.  A second "?" also ends it.
+     * @param keys Expected query parameter names.
+     * @return start/end pairs lined up with keys, -1 for keys that weren't found.
+     */
+    private static int[] scanQuery(String url, int query, int end, String[] keys) {
+        int[] ranges = new int[keys.length * 2];
+        for (int i = 0; i < ranges.length; i++) {
+            ranges[i] = -1;
+        }
+        if (query < 0) {
+            return ranges;
+        }
+        int secondQuery = indexOf(url, '?', query + 1, end);
+        if (secondQuery >= 0) {
+            end = secondQuery;
+        }
+
+        int argStart = query + 1;
+        while (argStart < end) {
+            int argEnd = indexOf(url, '&', argStart, end);
+            if (argEnd < 0) {
+                argEnd = end;
+            }
+            int equals = indexOf(url, '=', argStart, argEnd);
+            if (equals >= 0) {
+                int valueEnd = indexOf(url, '=', equals + 1, argEnd);
+                if (valueEnd < 0) {
+                    valueEnd = argEnd;
+                }
+                int nameLength = equals - argStart;
+                for (int k = 0; k < keys.length; k++) {
+                    if (keys[k].length() == nameLength
+                            && url.regionMatches(argStart, keys[k], 0, nameLength)) {
+                        ranges[k * 2] = equals + 1;
+                        ranges[k * 2 + 1] = valueEnd;
+                        break;
+                    }
+                }
+            }
+            argStart = argEnd + 1;
+        }
+        return ranges;
+    }
+
+    private static int indexOf(String s, char c, int from, int end) {
+        for (int i = from; i < end; i++) {
+            if (s.charAt(i) == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean contains(String s, String needle, int from, int end) {
+        int last = end - needle.length();
+        for (int i = from; i <= last; i++) {
+            if (s.regionMatches(i, needle, 0, needle.length())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return The unchanged Interaction URL.
+     */
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * @return Classification of the URL.
+     */
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * @return True if the URL can be sent to the interactions route.
+     */
+    public boolean isVerifiable() {
+        return type == Type.SLUG || type == Type.COUNTER || type == Type.AUTH || type == Type.HID;
+    }
+
+    /**
+     * Slug URLs are still checked for an mTag ID so parseMTagId keeps answering for them, but
+     * the ID isn't sent with slug interactions.
+     * @return True if an mTag ID (base 36 or base 10, tech prefix removed) was found.
+     */
+    public boolean hasMTagId() {
+        return idStart >= 0;
+    }
+
+    /**
+     * @return Start offset of the mTag ID in the URL, -1 if there isn't one.
+     */
+    public int getMTagIdStart() {
+        return idStart;
+    }
+
+    /**
+     * @return End offset (exclusive) of the mTag ID in the URL, -1 if there isn't one.
+     */
+    public int getMTagIdEnd() {
+        return idEnd;
+    }
+
+    /**
+     * @return The raw mTag ID as it appears in the URL, or an empty string.
+     */
+    public String getMTagId() {
+        return idStart < 0 ? "" : url.substring(idStart, idEnd);
+    }
+
+    /**
+     * @return Number of request parameters this kind of URL can carry.
+     */
+    public int getParamCount() {
+        return paramNames.length;
+    }
+
+    /**
+     * @param index Parameter index, 0 until getParamCount().
+     * @return Name the interactions route expects for the parameter.
+     */
+    public String getParamName(int index) {
+        return paramNames[index];
+    }
+
+    /**
+     * @param index Parameter index, 0 until getParamCount().
+     * @return Value of the parameter, or null if the URL didn't carry it.
+     */
+    public String getParamValue(int index) {
+        int start = paramRanges[index * 2];
+        return start < 0 ? null : url.substring(start, paramRanges[index * 2 + 1]);
+    }
+
+    @Override
+    public String toString() {
+        return type + " " + url;
+    }
+}
@@ -0,0 +1,156 @@
+//Copyright 2018 Blue Bite LLC.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+
+package com.bluebite.mtag_sdk;
+
+
+/**
+ * Decodes mTag IDs, which appear on tag URLs in base 10 or base 36, into 64 bit numbers.
+ * <p>
+ * An ID made only of decimal digits is read as base 10 and anything else as base 36, the same
+ * rule API.convertIdToBase10 always used.  Digits are looked up in a table instead of going
+ * through Integer.parseInt, IDs are read straight out of a CharSequence range so nothing is
+ * copied, and bad input (empty, signs, non alphanumeric characters or more than 64 bits) is
+ * reported as {@link #INVALID} instead of by throwing.
+ */
+public final class MTagIdCodec {
+
+    /**
+     * Returned for IDs that can't be decoded.  Valid IDs are never negative.
+     */
+    public static final long INVALID = -1;
+
+    private static final byte NOT_A_DIGIT = -1;
+    private static final byte[] DIGITS = new byte[128];
+
+    static {
+        for (int i = 0; i < DIGITS.length; i++) {
+            DIGITS[i] = NOT_A_DIGIT;
+        }
+        for (int i = 0; i < 10; i++) {
+            DIGITS['0' + i] = (byte) i;
+        }
+        for (int i = 0; i < 26; i++) {
+            DIGITS['a' + i] = (byte) (10 + i);
+            DIGITS['A' + i] = (byte) (10 + i);
+        }
+    }
+
+    private MTagIdCodec() {
+    }
+
+    /**
+     * @param id Base 10 or base 36 mTag ID.
+     * @return The ID, or {@link #INVALID}.
+     */
+    public static long decode(CharSequence id) {
+        return decode(id, 0, id.length());
+    }
+
+    /**
+     * Decodes an ID sitting inside a larger sequence, such as a URL.
+     * @param id Sequence holding the ID.
+     * @param start Start of the ID.
+     * @param end End of the ID, exclusive.
+     * @return The ID, or {@link #INVALID}.
+     */
+    public static long decode(CharSequence id, int start, int end) {
+        if (start < 0 || start >= end || end > id.length()) {
+            return INVALID;
+        }
+        // one pass decides the radix; most IDs are base 36 so stop at the first letter
+        for (int i = start; i < end; i++) {
+            char c = id.charAt(i);
+            if (c < '0' || c > '9') {
+                return decode(id, start, end, 36);
+            }
+        }
+        return decode(id, start, end, 10);
+    }
+
+    /**
+     * @param id Sequence holding the ID.
+     * @param start Start of the ID.
+     * @param end End of the ID, exclusive.
+     * @param radix 10 or 36.
+     * @return The ID read in the given radix, or {@link #INVALID}.
+     */
+    public static long decode(CharSequence id, int start, int end, int radix) {
+        if (start < 0 || start >= end || end > id.length() || (radix != 10 && radix != 36)) {
+            return INVALID;
+        }
+        long limit = Long.MAX_VALUE / radix;
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            char c = id.charAt(i);
+            int digit = c < DIGITS.length ? DIGITS[c] : NOT_A_DIGIT;
+            if (digit == NOT_A_DIGIT || digit >= radix || value > limit) {
+                return INVALID;
+            }
+            value = value * radix + digit;
+            if (value < 0) {
+                return INVALID;
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Decodes many IDs at once, e.g. when ingesting scans in bulk.
+     * @param ids IDs to decode, null entries count as invalid.
+     * @param decoded Receives each ID, or {@link #INVALID}, at the same index.  Must be at least
+     *                as long as ids.
+     * @return Number of IDs that couldn't be decoded.
+     */
+    public static int decodeAll(CharSequence[] ids, long[] decoded) {
+        return decodeAll(ids, 0, decoded, 0, ids.length);
+    }
+
+    /**
+     * Decodes a run of IDs at once.
+     * @param ids IDs to decode, null entries count as invalid.
+     * @param idsOffset Index of the first ID to decode.
+     * @param decoded Receives each ID, or {@link #INVALID}.
+     * @param decodedOffset Index the first ID is stored at.
+     * @param count Number of IDs to decode.
+     * @return Number of IDs that couldn't be decoded.
+     */
+    public static int decodeAll(CharSequence[] ids, int idsOffset, long[] decoded,
+                                int decodedOffset, int count) {
+        if (idsOffset < 0 || decodedOffset < 0 || count < 0
+                || idsOffset + count > ids.length || decodedOffset + count > decoded.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        int invalid = 0;
+        for (int i = 0; i < count; i++) {
+            CharSequence id = ids[idsOffset + i];
+            long value = id == null ? INVALID : decode(id, 0, id.length());
+            decoded[decodedOffset + i] = value;
+            if (value == INVALID) {
+                invalid++;
+            }
+        }
+        return invalid;
+    }
+
+    /**
+     * @param id Decoded ID.
+     * @return The ID in lower case base 36, as printed on tag URLs.
+     */
+    public static String toBase36(long id) {
+        return Long.toString(id, 36);
+    }
+}
@@ -0,0 +1,208 @@
+//Copyright 2018 Blue Bite LLC.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package com.bluebite.mtag_sdk;
+
+
+import java.nio.charset.Charset;
+
+/**
+ * Reads the URI out of NDEF bytes as written on the tag, without going through an intent,
+ * android.net.Uri or a URL regex.  Handles well-known URI records (a prefix code followed by
+ * the rest of the URI), absolute URI records and URI records nested in a smart poster.
+ * Has no Android dependencies, so it runs on the JVM in unit tests and on servers.
+ */
+public final class NdefUriDecoder {
+
+    /** Type name format of NFC Forum well-known types, e.g. URI and smart poster records. */
+    public static final short TNF_WELL_KNOWN = 0x01;
+    /** Type name format of records whose type field is itself the URI. */
+    public static final short TNF_ABSOLUTE_URI = 0x03;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final byte FLAG_CHUNKED = 0x20;
+    private static final byte FLAG_SHORT_RECORD = 0x10;
+    private static final byte FLAG_ID_LENGTH = 0x08;
+    private static final byte FLAG_MESSAGE_END = 0x40;
+    private static final byte TNF_MASK = 0x07;
+
+    private static final byte TYPE_URI = 'U';
+    private static final byte[] TYPE_SMART_POSTER = {'S', 'p'};
+
+    // URI identifier codes from the NFC Forum URI record type definition, indexed by code
+    private static final String[] PREFIXES = {
+            "",
+            "http://www.",
+            "https://www.",
+            "http://",
+            "https://",
+            "tel:",
+            "mailto:",
+            "ftp://anonymous:anonymous@",
+            "ftp://ftp.",
+            "ftps://",
+            "sftp://",
+            "smb://",
+            "nfs://",
+            "ftp://",
+            "dav://",
+            "news:",
+            "telnet://",
+            "imap:",
+            "rtsp://",
+            "urn:",
+            "pop:",
+            "sip:",
+            "sips:",
+            "tftp:",
+            "btspp://",
+            "btl2cap://",
+            "btgoep://",
+            "tcpobex://",
+            "irdaobex://",
+            "file://",
+            "urn:epc:id:",
+            "urn:epc:tag:",
+            "urn:epc:pat:",
+            "urn:epc:raw:",
+            "urn:epc:",
+            "urn:nfc:"
+    };
+
+    private NdefUriDecoder() {
+    }
+
+    /**
+     * Decodes the payload of a well-known URI record.
+     * @param payload Record payload, the prefix code followed by the rest of the URI in UTF-8.
+     * @return The URI, or null if the payload is empty or the prefix code is unknown.
+     */
+    public static String decodeUriPayload(byte[] payload) {
+        return decodeUriPayload(payload, 0, payload.length);
+    }
+
+    /**
+     * Decodes the payload of a well-known URI record held in a larger buffer.
+     * @return The URI, or null if the payload is empty or the prefix code is unknown.
+     */
+    public static String decodeUriPayload(byte[] buffer, int offset, int length) {
+        if (length < 1) {
+            return null;
+        }
+        int code = buffer[offset] & 0xFF;
+        if (code >= PREFIXES.length) {
+            return null;
+        }
+        String rest = new String(buffer, offset + 1, length - 1, UTF_8);
+        return code == 0 ? rest : PREFIXES[code].concat(rest);
+    }
+
+    /**
+     * Decodes one record, the way it is handed over by android.nfc.NdefRecord's getters.
+     * @param tnf Type name format.
+     * @param type Record type.
+     * @param payload Record payload.
+     * @return The URI the record carries, or null if it isn't a URI or smart poster record.
+     */
+    public static String decodeRecord(short tnf, byte[] type, byte[] payload) {
+        return decodeRecord(tnf, type, 0, type.length, payload, 0, payload.length);
+    }
+
+    private static String decodeRecord(int tnf, byte[] buffer, int typeOffset, int typeLength,
+                                       byte[] payloadBuffer, int payloadOffset,
+                                       int payloadLength) {
+        if (tnf == TNF_ABSOLUTE_URI) {
+            return typeLength == 0 ? null
+                    : new String(buffer, typeOffset, typeLength, UTF_8);
+        }
+        if (tnf != TNF_WELL_KNOWN) {
+            return null;
+        }
+        if (typeLength == 1 && buffer[typeOffset] == TYPE_URI) {
+            return decodeUriPayload(payloadBuffer, payloadOffset, payloadLength);
+        }
+        if (typeLength == TYPE_SMART_POSTER.length && buffer[typeOffset] == TYPE_SMART_POSTER[0]
+                && buffer[typeOffset + 1] == TYPE_SMART_POSTER[1]) {
+            // a smart poster's payload is a whole NDEF message holding the URI record
+            return decodeMessage(payloadBuffer, payloadOffset, payloadLength);
+        }
+        return null;
+    }
+
+    /**
+     * Finds the first URI in a raw NDEF message, e.g. from NdefMessage.toByteArray.
+     * @param message NDEF message bytes.
+     * @return The URI, or null if there is none or the message is malformed.
+     */
+    public static String decodeMessage(byte[] message) {
+        return decodeMessage(message, 0, message.length);
+    }
+
+    /**
+     * Finds the first URI in a raw NDEF message held in a larger buffer.
+     * @return The URI, or null if there is none or the message is malformed.
+     */
+    public static String decodeMessage(byte[] buffer, int offset, int length) {
+        int pos = offset;
+        int end = offset + length;
+        while (pos < end) {
+            byte header = buffer[pos++];
+            int tnf = header & TNF_MASK;
+            boolean shortRecord = (header & FLAG_SHORT_RECORD) != 0;
+            int needed = 1 + (shortRecord ? 1 : 4) + ((header & FLAG_ID_LENGTH) != 0 ? 1 : 0);
+            if (end - pos < needed) {
+                return null;
+            }
+            int typeLength = buffer[pos++] & 0xFF;
+            long payloadLength;
+            if (shortRecord) {
+                payloadLength = buffer[pos++] & 0xFF;
+            } else {
+                payloadLength = ((long) (buffer[pos] & 0xFF) << 24) | ((buffer[pos + 1] & 0xFF) << 16)
+                        | ((buffer[pos + 2] & 0xFF) << 8) | (buffer[pos + 3] & 0xFF);
+                pos += 4;
+            }
+            int idLength = (header & FLAG_ID_LENGTH) != 0 ? buffer[pos++] & 0xFF : 0;
+            if (end - pos < typeLength + idLength + payloadLength) {
+                return null;
+            }
+            int typeOffset = pos;
+            int payloadOffset = pos + typeLength + idLength;
+            // chunked records spread one payload over several records, URI records never are
+            if ((header & FLAG_CHUNKED) == 0) {
+                String uri = decodeRecord(tnf, buffer, typeOffset, typeLength, buffer,
+                        payloadOffset, (int) payloadLength);
+                if (uri != null) {
+                    return uri;
+                }
+            }
+            pos = payloadOffset + (int) payloadLength;
+            if ((header & FLAG_MESSAGE_END) != 0) {
+                break;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Checks the scheme without a regex, ignoring case the way URI schemes do.
+     * @return True if the URI is an http or https URL.
+     */
+    public static boolean isWebUrl(String uri) {
+        return uri != null && (uri.regionMatches(true, 0, "http://", 0, 7)
+                || uri.regionMatches(true, 0, "https://", 0, 8));
+    }
+}
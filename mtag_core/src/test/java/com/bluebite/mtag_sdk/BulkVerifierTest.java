@@ -0,0 +1,165 @@
+//Copyright 2018 Blue Bite LLC.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package com.bluebite.mtag_sdk;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests verify the bulk pipeline classifies every line whatever way the log is split,
+ * verifies each unique request once and writes one result per request.
+ */
+public class BulkVerifierTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String SLUG = "https://mtag.io/abc";
+    private static final String BASIC = "https://mtag.io/njaix4";
+    private static final String AUTH =
+            "https://mtag.io/njaix4?id=12345678&num=8675309&sig=00000F1234567678";
+    private static final String NON_AUTH = "https://google.com";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private HttpServer server;
+
+    @After
+    public void tearDown() {
+        if (server != null) {
+            server.stop(0);
+        }
+    }
+
+    private File tapLog(int repeats) throws IOException {
+        File log = folder.newFile("taps.log");
+        Writer writer = new OutputStreamWriter(new FileOutputStream(log), UTF_8);
+        try {
+            writer.write("# reader 7\n\n");
+            for (int i = 0; i < repeats; i++) {
+                writer.write(SLUG + "\n");
+                writer.write(BASIC + "\r\n");
+                writer.write(AUTH + "\n");
+                writer.write("https://mtag.io/njaix4/" + String.format("%010dx0002C42702", i) + "\n");
+                writer.write("  " + NON_AUTH + "  \n");
+            }
+        } finally {
+            writer.close();
+        }
+        return log;
+    }
+
+    private String startServer(final String body, final AtomicInteger requests)
+            throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/v2/interactions", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                requests.incrementAndGet();
+                InputStream in = exchange.getRequestBody();
+                while (in.read() >= 0) {
+                    // drain the form body
+                }
+                byte[] response = body.getBytes(UTF_8);
+                exchange.sendResponseHeaders(200, response.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(response);
+                out.close();
+            }
+        });
+        server.start();
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/v2/interactions";
+    }
+
+    @Test
+    public void testClassifyAcrossSplits() throws Exception {
+        int repeats = 2000;
+        File log = tapLog(repeats);
+        BulkVerifier verifier = new BulkVerifier(null, 4, 1, 16, 1000);
+        // small leaves so the log is split many times, always at a line break
+        verifier.leafBytes = 512;
+        BulkVerifier.Summary summary = verifier.run(log, folder.newFile("classified"));
+
+        assertEquals(repeats * 5, summary.getLineCount());
+        assertEquals(repeats, summary.getCount(InteractionUrl.Type.SLUG));
+        assertEquals(repeats, summary.getCount(InteractionUrl.Type.BASIC));
+        assertEquals(repeats, summary.getCount(InteractionUrl.Type.AUTH));
+        assertEquals(repeats, summary.getCount(InteractionUrl.Type.COUNTER));
+        assertEquals(repeats, summary.getCount(InteractionUrl.Type.NON_AUTH));
+        assertEquals(repeats * 2, summary.getUnverifiableCount());
+        // one slug and one auth request, every counter VID is different
+        assertEquals(repeats + 2, summary.getUniqueCount());
+        assertEquals(2 * (repeats - 1), summary.getDuplicateCount());
+        assertEquals(0, summary.getCount(BulkVerifier.Outcome.VERIFIED));
+    }
+
+    @Test
+    public void testVerifiesUniqueRequestsOnce() throws Exception {
+        AtomicInteger requests = new AtomicInteger();
+        String endpoint = startServer("{\"tag_verified\": true}", requests);
+        File results = folder.newFile("results");
+        BulkVerifier.Summary summary = new BulkVerifier(endpoint, 2, 4, 3, 5000)
+                .run(tapLog(10), results);
+
+        assertEquals(12, requests.get());
+        assertEquals(12, summary.getCount(BulkVerifier.Outcome.VERIFIED));
+        List<String> lines = Files.readAllLines(results.toPath(), UTF_8);
+        assertEquals(12, lines.size());
+        boolean foundSlug = false;
+        for (String line : lines) {
+            String[] fields = line.split("\t");
+            assertEquals("VERIFIED", fields[0]);
+            assertEquals("200", fields[1]);
+            if (fields[3].equals(SLUG)) {
+                assertEquals("10", fields[2]);
+                foundSlug = true;
+            }
+        }
+        assertTrue(foundSlug);
+    }
+
+    @Test
+    public void testUnreachableEndpoint() throws Exception {
+        AtomicInteger requests = new AtomicInteger();
+        String endpoint = startServer("", requests);
+        server.stop(0);
+        server = null;
+        BulkVerifier.Summary summary = new BulkVerifier(endpoint, 1, 1, 8, 1000)
+                .run(tapLog(1), folder.newFile("results"));
+        assertEquals(3, summary.getCount(BulkVerifier.Outcome.ERROR));
+    }
+}
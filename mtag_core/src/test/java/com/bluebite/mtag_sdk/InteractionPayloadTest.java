@@ -0,0 +1,68 @@
+//Copyright 2018 Blue Bite LLC.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package com.bluebite.mtag_sdk;
+
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests verify the payload builder shapes the same requests the SDK sends, without any
+ * Android classes on the classpath.
+ */
+public class InteractionPayloadTest {
+
+    @Test
+    public void testSlugPayload() throws Exception {
+        Map<String, String> params = InteractionPayload.build("https://mtag.io/abc?x=1");
+        assertEquals(1, params.size());
+        assertEquals("https://mtag.io/abc?x=1", params.get(InteractionPayload.PARAM_URL));
+    }
+
+    @Test
+    public void testAuthPayload() throws Exception {
+        Map<String, String> params = InteractionPayload.build(
+                "https://mtag.io/njaix4?id=12345678&num=8675309&sig=00000F1234567678");
+        assertEquals("32403784", params.get(InteractionPayload.PARAM_TAG_ID));
+        assertEquals(InteractionPayload.TECH_NFC, params.get(InteractionPayload.PARAM_TECH));
+        assertEquals("12345678", params.get("uid"));
+        assertEquals("8675309", params.get("tag_version"));
+        assertEquals("00000F1234567678", params.get("vid"));
+    }
+
+    @Test
+    public void testCounterPayload() throws Exception {
+        Map<String, String> params = InteractionPayload.build(
+                "https://mtag.io/njaix4/0123456789x0002C42702");
+        assertEquals("32403784", params.get(InteractionPayload.PARAM_TAG_ID));
+        assertEquals("0123456789x0002C42702", params.get("vid"));
+
+        // parameters missing from the URL are left out
+        params = InteractionPayload.build("https://mtag.io/njaix4?id=12345678&sig=00000F1234567678");
+        assertFalse(params.containsKey("tag_version"));
+    }
+
+    @Test
+    public void testUnverifiablePayload() throws Exception {
+        assertNull(InteractionPayload.build("https://mtag.io/njaix4"));
+        assertNull(InteractionPayload.build("https://google.com"));
+        // an ID past 64 bits can't be sent
+        assertNull(InteractionPayload.build(
+                "https://mtag.io/nzzzzzzzzzzzzzzz?id=12345678&sig=00000F1234567678"));
+    }
+}
@@ -0,0 +1,102 @@
+//Copyright 2018 Blue Bite LLC.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package com.bluebite.mtag_sdk;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests verify the single pass classifier finds the same IDs and parameters the split based
+ * parsing used to.
+ */
+public class InteractionUrlTest {
+
+    private String paramValue(InteractionUrl parsed, String name) {
+        for (int i = 0; i < parsed.getParamCount(); i++) {
+            if (parsed.getParamName(i).equals(name)) {
+                return parsed.getParamValue(i);
+            }
+        }
+        return null;
+    }
+
+    @Test
+    public void testSlugUrl() throws Exception {
+        InteractionUrl parsed = InteractionUrl.parse("https://mtag.io/abc?x=1");
+        assertEquals(InteractionUrl.Type.SLUG, parsed.getType());
+        assertTrue(parsed.isVerifiable());
+        assertEquals(0, parsed.getParamCount());
+
+        // trailing slashes are ignored
+        parsed = InteractionUrl.parse("https://mtag.io/abc/");
+        assertEquals(InteractionUrl.Type.SLUG, parsed.getType());
+    }
+
+    @Test
+    public void testBasicUrl() throws Exception {
+        InteractionUrl parsed = InteractionUrl.parse("https://mtag.io/njaix4");
+        assertEquals(InteractionUrl.Type.BASIC, parsed.getType());
+        assertFalse(parsed.isVerifiable());
+        assertEquals("jaix4", parsed.getMTagId());
+
+        parsed = InteractionUrl.parse("https://mtag.io/n32403784");
+        assertEquals(InteractionUrl.Type.BASIC, parsed.getType());
+        assertEquals("32403784", parsed.getMTagId());
+    }
+
+    @Test
+    public void testCounterUrl() throws Exception {
+        InteractionUrl parsed = InteractionUrl.parse(
+                "https://mtag.io/njaix4/0123456789x0002C42702?extra=1");
+        assertEquals(InteractionUrl.Type.COUNTER, parsed.getType());
+        assertEquals("jaix4", parsed.getMTagId());
+        assertEquals("0123456789x0002C42702", paramValue(parsed, "vid"));
+    }
+
+    @Test
+    public void testAuthUrl() throws Exception {
+        InteractionUrl parsed = InteractionUrl.parse(
+                "https://mtag.io/njaix4?id=12345678&num=8675309&sig=00000F1234567678");
+        assertEquals(InteractionUrl.Type.AUTH, parsed.getType());
+        assertEquals("jaix4", parsed.getMTagId());
+        assertEquals("12345678", paramValue(parsed, "uid"));
+        assertEquals("8675309", paramValue(parsed, "tag_version"));
+        assertEquals("00000F1234567678", paramValue(parsed, "vid"));
+
+        // tag_version is optional
+        parsed = InteractionUrl.parse("https://mtag.io/njaix4?id=12345678&sig=00000F1234567678");
+        assertNull(paramValue(parsed, "tag_version"));
+    }
+
+    @Test
+    public void testHidUrl() throws Exception {
+        InteractionUrl parsed = InteractionUrl.parse(
+                "https://mtag.io/njaix4?tagID=12345678&tac=7C3CC5B3FEDD48EE2DA327DD&other=x");
+        assertEquals(InteractionUrl.Type.HID, parsed.getType());
+        assertEquals("jaix4", parsed.getMTagId());
+        assertEquals("12345678", paramValue(parsed, "hid"));
+        assertEquals("7C3CC5B3FEDD48EE2DA327DD", paramValue(parsed, "vid"));
+    }
+
+    @Test
+    public void testNonAuthUrl() throws Exception {
+        InteractionUrl parsed = InteractionUrl.parse("https://google.com");
+        assertEquals(InteractionUrl.Type.NON_AUTH, parsed.getType());
+        assertFalse(parsed.hasMTagId());
+        assertEquals("", parsed.getMTagId());
+    }
+}
@@ -0,0 +1,86 @@
+//Copyright 2018 Blue Bite LLC.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+
+package com.bluebite.mtag_sdk;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests verify the ID codec agrees with the old parseInt based conversion, handles 64 bit
+ * IDs and reports bad input without throwing.
+ */
+public class MTagIdCodecTest {
+
+    @Test
+    public void testDecodeMatchesParseInt() throws Exception {
+        assertEquals(32403784L, MTagIdCodec.decode("jaix4"));
+        assertEquals(32403784L, MTagIdCodec.decode("JAIX4"));
+        assertEquals(32403784L, MTagIdCodec.decode("32403784"));
+        String[] ids = {"0", "zz", "10000000", "1a2b3c", "abcdef"};
+        for (String id : ids) {
+            long expected;
+            try {
+                expected = Integer.parseInt(id);
+            } catch (NumberFormatException e) {
+                expected = Integer.parseInt(id, 36);
+            }
+            assertEquals(expected, MTagIdCodec.decode(id));
+        }
+    }
+
+    @Test
+    public void testDecodeRangeAnd64BitIds() throws Exception {
+        String url = "https://mtag.io/njaix4?id=1";
+        assertEquals(32403784L, MTagIdCodec.decode(url, 17, 22));
+
+        // beyond Integer.MAX_VALUE
+        assertEquals(3000000000L, MTagIdCodec.decode("3000000000"));
+        assertEquals(Long.MAX_VALUE, MTagIdCodec.decode(MTagIdCodec.toBase36(Long.MAX_VALUE)));
+        assertEquals(Long.MAX_VALUE, MTagIdCodec.decode(Long.toString(Long.MAX_VALUE)));
+        assertEquals("jaix4", MTagIdCodec.toBase36(32403784L));
+    }
+
+    @Test
+    public void testInvalidIds() throws Exception {
+        assertEquals(MTagIdCodec.INVALID, MTagIdCodec.decode(""));
+        assertEquals(MTagIdCodec.INVALID, MTagIdCodec.decode("-5"));
+        assertEquals(MTagIdCodec.INVALID, MTagIdCodec.decode("ab_c"));
+        assertEquals(MTagIdCodec.INVALID, MTagIdCodec.decode("ja\u00efx4"));
+        assertEquals(MTagIdCodec.INVALID, MTagIdCodec.decode("9223372036854775808"));
+        assertEquals(MTagIdCodec.INVALID, MTagIdCodec.decode("1y2p0ij32e8e8"));
+        assertEquals(MTagIdCodec.INVALID, MTagIdCodec.decode("abc", 2, 1));
+        assertEquals(MTagIdCodec.INVALID, MTagIdCodec.decode("12", 0, 2, 16));
+    }
+
+    @Test
+    public void testDecodeAll() throws Exception {
+        CharSequence[] ids = {"jaix4", null, "32403784", "bad-id", new StringBuilder("zz")};
+        long[] decoded = new long[6];
+        assertEquals(2, MTagIdCodec.decodeAll(ids, decoded));
+        assertArrayEquals(new long[] {32403784L, -1, 32403784L, -1, 1295L, 0}, decoded);
+
+        assertEquals(0, MTagIdCodec.decodeAll(ids, 2, decoded, 4, 1));
+        assertEquals(32403784L, decoded[4]);
+        try {
+            MTagIdCodec.decodeAll(ids, 3, decoded, 0, 3);
+            fail("ran past the ids");
+        } catch (IndexOutOfBoundsException e) {
+            // expected
+        }
+    }
+}
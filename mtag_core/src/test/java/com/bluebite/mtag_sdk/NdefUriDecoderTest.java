@@ -0,0 +1,140 @@
+//Copyright 2018 Blue Bite LLC.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package com.bluebite.mtag_sdk;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests decode NDEF bytes laid out the way tags store them.
+ */
+public class NdefUriDecoderTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String AUTH_REST = "mtag.io/njaix4?id=12345678&num=8675309&sig=00000F1234567678";
+
+    private static byte[] uriPayload(int code, String rest) {
+        byte[] bytes = rest.getBytes(UTF_8);
+        byte[] payload = new byte[bytes.length + 1];
+        payload[0] = (byte) code;
+        System.arraycopy(bytes, 0, payload, 1, bytes.length);
+        return payload;
+    }
+
+    /**
+     * Writes one record, short form when the payload fits.
+     */
+    private static void record(ByteArrayOutputStream out, boolean first, boolean last, int tnf,
+                               byte[] type, byte[] id, byte[] payload) {
+        boolean shortRecord = payload.length < 256;
+        int header = tnf | (first ? 0x80 : 0) | (last ? 0x40 : 0) | (shortRecord ? 0x10 : 0)
+                | (id != null ? 0x08 : 0);
+        out.write(header);
+        out.write(type.length);
+        if (shortRecord) {
+            out.write(payload.length);
+        } else {
+            out.write(payload.length >>> 24);
+            out.write(payload.length >>> 16);
+            out.write(payload.length >>> 8);
+            out.write(payload.length);
+        }
+        if (id != null) {
+            out.write(id.length);
+        }
+        out.write(type, 0, type.length);
+        if (id != null) {
+            out.write(id, 0, id.length);
+        }
+        out.write(payload, 0, payload.length);
+    }
+
+    private static byte[] uriMessage(int code, String rest) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        record(out, true, true, NdefUriDecoder.TNF_WELL_KNOWN, new byte[] {'U'}, null,
+                uriPayload(code, rest));
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testPrefixCodes() throws Exception {
+        assertEquals("https://" + AUTH_REST,
+                NdefUriDecoder.decodeUriPayload(uriPayload(0x04, AUTH_REST)));
+        assertEquals("http://www.mtag.io/abc",
+                NdefUriDecoder.decodeUriPayload(uriPayload(0x01, "mtag.io/abc")));
+        assertEquals("https://mtag.io/abc",
+                NdefUriDecoder.decodeUriPayload(uriPayload(0x00, "https://mtag.io/abc")));
+        assertEquals("urn:nfc:x", NdefUriDecoder.decodeUriPayload(uriPayload(0x23, "x")));
+        // reserved codes and empty payloads aren't URIs
+        assertNull(NdefUriDecoder.decodeUriPayload(uriPayload(0x24, "mtag.io/abc")));
+        assertNull(NdefUriDecoder.decodeUriPayload(new byte[0]));
+    }
+
+    @Test
+    public void testMessage() throws Exception {
+        String url = NdefUriDecoder.decodeMessage(uriMessage(0x04, AUTH_REST));
+        assertEquals("https://" + AUTH_REST, url);
+        // the decoded URL goes straight into the classifier
+        assertEquals(InteractionUrl.Type.AUTH, InteractionUrl.parse(url).getType());
+
+        // long records and ids are skipped over correctly
+        StringBuilder longRest = new StringBuilder("mtag.io/abc?");
+        while (longRest.length() < 300) {
+            longRest.append("x");
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        record(out, true, false, 0x02, "text/plain".getBytes(UTF_8), new byte[] {7},
+                "hello".getBytes(UTF_8));
+        record(out, false, true, NdefUriDecoder.TNF_WELL_KNOWN, new byte[] {'U'}, new byte[] {1},
+                uriPayload(0x04, longRest.toString()));
+        assertEquals("https://" + longRest, NdefUriDecoder.decodeMessage(out.toByteArray()));
+    }
+
+    @Test
+    public void testSmartPosterAndAbsoluteUri() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        record(out, true, true, NdefUriDecoder.TNF_WELL_KNOWN, new byte[] {'S', 'p'}, null,
+                uriMessage(0x03, "mtag.io/abc"));
+        assertEquals("http://mtag.io/abc", NdefUriDecoder.decodeMessage(out.toByteArray()));
+
+        assertEquals("https://mtag.io/abc", NdefUriDecoder.decodeRecord(
+                NdefUriDecoder.TNF_ABSOLUTE_URI, "https://mtag.io/abc".getBytes(UTF_8),
+                new byte[0]));
+    }
+
+    @Test
+    public void testMalformedMessages() throws Exception {
+        byte[] message = uriMessage(0x04, AUTH_REST);
+        byte[] truncated = new byte[message.length - 5];
+        System.arraycopy(message, 0, truncated, 0, truncated.length);
+        assertNull(NdefUriDecoder.decodeMessage(truncated));
+        assertNull(NdefUriDecoder.decodeMessage(new byte[] {(byte) 0xD1}));
+        assertNull(NdefUriDecoder.decodeMessage(new byte[0]));
+    }
+
+    @Test
+    public void testIsWebUrl() throws Exception {
+        assertTrue(NdefUriDecoder.isWebUrl("https://mtag.io/abc"));
+        assertTrue(NdefUriDecoder.isWebUrl("HTTP://mtag.io/abc"));
+        assertFalse(NdefUriDecoder.isWebUrl("tel:5551234"));
+        assertFalse(NdefUriDecoder.isWebUrl("https:"));
+        assertFalse(NdefUriDecoder.isWebUrl(null));
+    }
+}
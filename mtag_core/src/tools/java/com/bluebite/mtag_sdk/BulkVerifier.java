@@ -0,0 +1,580 @@
+//Copyright 2018 Blue Bite LLC.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package com.bluebite.mtag_sdk;
+
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Re-verifies a tap log offline.  The log, one URL per line, is memory-mapped in segments and
+ * split at line boundaries across a fork-join pool, where every line is classified with
+ * InteractionUrl.  Repeats of the same request (the same slug URL, or the same tag ID and
+ * one-time VID) are verified once, and the unique requests are POSTed in batches from a fixed
+ * number of connections.  Each batch's results are appended to the results file as it finishes.
+ * <p>
+ * Run from the command line with key=value options:
+ * <ul>
+ *     <li>in: tap log, one URL per line, # for comments.  Required.</li>
+ *     <li>out: results file, default in + ".results".</li>
+ *     <li>endpoint: interactions route, default the mTag API.  none only classifies.</li>
+ *     <li>threads: fork-join parallelism for classifying, default one per core.</li>
+ *     <li>concurrency: requests sent at once, default 16.</li>
+ *     <li>batch: requests per results write, default 256.</li>
+ *     <li>timeout: connect and read timeout in milliseconds, default 10000.</li>
+ * </ul>
+ * Results are tab separated: outcome, HTTP status, taps, URL.  Outcomes are VERIFIED,
+ * NOT_VERIFIED, UNKNOWN (no tag_verified in the response) or ERROR.
+ */
+public class BulkVerifier {
+
+    /**
+     * Outcome of one unique request.
+     */
+    public enum Outcome {
+        VERIFIED,
+        NOT_VERIFIED,
+        UNKNOWN,
+        ERROR
+    }
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final long SEGMENT_BYTES = 1L << 30;
+    private static final int OUTCOMES = Outcome.values().length;
+
+    public static final int DEFAULT_CONCURRENCY = 16;
+    public static final int DEFAULT_BATCH_SIZE = 256;
+    public static final int DEFAULT_TIMEOUT_MILLIS = 10000;
+
+    private final String endpoint;
+    private final int parallelism;
+    private final int concurrency;
+    private final int batchSize;
+    private final int timeoutMillis;
+    // lines a fork-join task classifies itself instead of splitting further, in bytes
+    int leafBytes = 1 << 20;
+
+    /**
+     * Counts from one run.
+     */
+    public static final class Summary {
+        private final long[] types;
+        private final long lines;
+        private final long duplicates;
+        private final long unverifiable;
+        private final long[] outcomes;
+
+        Summary(long[] types, long lines, long duplicates, long unverifiable, long[] outcomes) {
+            this.types = types;
+            this.lines = lines;
+            this.duplicates = duplicates;
+            this.unverifiable = unverifiable;
+            this.outcomes = outcomes;
+        }
+
+        /**
+         * @return URLs read, blank lines and comments excluded.
+         */
+        public long getLineCount() {
+            return lines;
+        }
+
+        /**
+         * @return URLs of the given format.
+         */
+        public long getCount(InteractionUrl.Type type) {
+            return types[type.ordinal()];
+        }
+
+        /**
+         * @return URLs repeating a request already seen in the log.
+         */
+        public long getDuplicateCount() {
+            return duplicates;
+        }
+
+        /**
+         * @return URLs that can't be verified, non-auth and basic formats or IDs past 64 bits.
+         */
+        public long getUnverifiableCount() {
+            return unverifiable;
+        }
+
+        /**
+         * @return Unique requests that were verified.
+         */
+        public long getUniqueCount() {
+            return lines - duplicates - unverifiable;
+        }
+
+        /**
+         * @return Unique requests with the given outcome, all 0 when only classifying.
+         */
+        public long getCount(Outcome outcome) {
+            return outcomes[outcome.ordinal()];
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder();
+            builder.append("lines ").append(lines).append('\n');
+            for (InteractionUrl.Type type : InteractionUrl.Type.values()) {
+                builder.append(type).append(' ').append(getCount(type)).append('\n');
+            }
+            builder.append("unverifiable ").append(unverifiable).append('\n');
+            builder.append("duplicates ").append(duplicates).append('\n');
+            builder.append("unique ").append(getUniqueCount()).append('\n');
+            for (Outcome outcome : Outcome.values()) {
+                builder.append(outcome).append(' ').append(getCount(outcome)).append('\n');
+            }
+            return builder.toString();
+        }
+    }
+
+    /**
+     * One unique request and how many taps asked for it.
+     */
+    private static final class Request {
+        final String url;
+        final AtomicInteger taps = new AtomicInteger(1);
+
+        Request(String url) {
+            this.url = url;
+        }
+    }
+
+    /**
+     * @param endpoint Interactions route, or null to only classify.
+     * @param parallelism Threads classifying the log.
+     * @param concurrency Requests sent at once.
+     * @param batchSize Requests whose results are written together.
+     * @param timeoutMillis Connect and read timeout for each request.
+     */
+    public BulkVerifier(String endpoint, int parallelism, int concurrency, int batchSize,
+                        int timeoutMillis) {
+        if (parallelism < 1 || concurrency < 1 || batchSize < 1) {
+            throw new IllegalArgumentException("parallelism, concurrency and batchSize must be positive");
+        }
+        this.endpoint = endpoint;
+        this.parallelism = parallelism;
+        this.concurrency = concurrency;
+        this.batchSize = batchSize;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (equals > 0) {
+                options.put(arg.substring(0, equals), arg.substring(equals + 1));
+            }
+        }
+        String in = options.get("in");
+        if (in == null) {
+            System.err.println("Usage: BulkVerifier in=<tap log> [out=<results>] [endpoint=<url>|none]"
+                    + " [threads=N] [concurrency=N] [batch=N] [timeout=ms]");
+            System.exit(2);
+        }
+        String endpoint = option(options, "endpoint", InteractionPayload.INTERACTIONS_URL);
+        BulkVerifier verifier = new BulkVerifier("none".equals(endpoint) ? null : endpoint,
+                Integer.parseInt(option(options, "threads",
+                        Integer.toString(Runtime.getRuntime().availableProcessors()))),
+                Integer.parseInt(option(options, "concurrency",
+                        Integer.toString(DEFAULT_CONCURRENCY))),
+                Integer.parseInt(option(options, "batch", Integer.toString(DEFAULT_BATCH_SIZE))),
+                Integer.parseInt(option(options, "timeout",
+                        Integer.toString(DEFAULT_TIMEOUT_MILLIS))));
+        long start = System.nanoTime();
+        Summary summary = verifier.run(new File(in), new File(option(options, "out",
+                in + ".results")));
+        System.out.print(summary);
+        System.out.printf("took %.1f s%n", (System.nanoTime() - start) / 1e9);
+    }
+
+    private static String option(Map<String, String> options, String name, String fallback) {
+        String value = options.get(name);
+        return value != null ? value : fallback;
+    }
+
+    /**
+     * Classifies every URL in a tap log and verifies each unique request once.
+     * @param tapLog Newline separated URLs.
+     * @param results File the results are written to, replaced if it exists.
+     * @return Counts per format and outcome.
+     * @throws IOException If the log can't be read or the results can't be written.
+     * @throws InterruptedException If interrupted while requests were being sent.
+     */
+    public Summary run(File tapLog, File results) throws IOException, InterruptedException {
+        AtomicLongArray types = new AtomicLongArray(InteractionUrl.Type.values().length + 1);
+        ConcurrentMap<String, Request> requests = new ConcurrentHashMap<>();
+        classify(tapLog, types, requests);
+
+        long[] typeCounts = new long[InteractionUrl.Type.values().length];
+        long lines = 0;
+        for (int i = 0; i < typeCounts.length; i++) {
+            typeCounts[i] = types.get(i);
+            lines += typeCounts[i];
+        }
+        long unverifiable = types.get(typeCounts.length);
+        long duplicates = lines - unverifiable - requests.size();
+
+        long[] outcomes = new long[OUTCOMES];
+        Writer writer = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(results), UTF_8));
+        try {
+            if (endpoint != null) {
+                submit(new ArrayList<>(requests.values()), writer, outcomes);
+            }
+        } finally {
+            writer.close();
+        }
+        return new Summary(typeCounts, lines, duplicates, unverifiable, outcomes);
+    }
+
+    /**
+     * Maps the log a segment at a time, every segment ending on a line break, and classifies
+     * each segment across the pool.
+     */
+    private void classify(File tapLog, AtomicLongArray types,
+                          ConcurrentMap<String, Request> requests) throws IOException {
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        RandomAccessFile file = new RandomAccessFile(tapLog, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            long size = channel.size();
+            long position = 0;
+            while (position < size) {
+                long length = Math.min(SEGMENT_BYTES, size - position);
+                MappedByteBuffer segment = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                        length);
+                int end = (int) length;
+                if (position + length < size) {
+                    // stop after the segment's last full line, the next segment starts there
+                    while (end > 0 && segment.get(end - 1) != '\n') {
+                        end--;
+                    }
+                    if (end == 0) {
+                        throw new IOException("Line longer than " + SEGMENT_BYTES + " bytes at "
+                                + position);
+                    }
+                }
+                pool.invoke(new ClassifyTask(segment, 0, end, types, requests));
+                position += end;
+            }
+        } finally {
+            file.close();
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Classifies the whole lines in [start, end) of a segment, splitting at a line break
+     * until ranges are small.
+     */
+    private final class ClassifyTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final ByteBuffer segment;
+        private final int start;
+        private final int end;
+        private final AtomicLongArray types;
+        private final ConcurrentMap<String, Request> requests;
+
+        ClassifyTask(ByteBuffer segment, int start, int end, AtomicLongArray types,
+                     ConcurrentMap<String, Request> requests) {
+            this.segment = segment;
+            this.start = start;
+            this.end = end;
+            this.types = types;
+            this.requests = requests;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start > leafBytes) {
+                int middle = start + (end - start) / 2;
+                while (middle < end && segment.get(middle - 1) != '\n') {
+                    middle++;
+                }
+                if (middle < end) {
+                    invokeAll(new ClassifyTask(segment, start, middle, types, requests),
+                            new ClassifyTask(segment, middle, end, types, requests));
+                    return;
+                }
+            }
+            classifyLines();
+        }
+
+        private void classifyLines() {
+            long[] counts = new long[types.length()];
+            byte[] line = new byte[256];
+            int lineStart = start;
+            while (lineStart < end) {
+                int lineEnd = lineStart;
+                while (lineEnd < end && segment.get(lineEnd) != '\n') {
+                    lineEnd++;
+                }
+                int next = lineEnd + 1;
+                // trim whitespace, including the \r of CRLF logs
+                while (lineStart < lineEnd && isWhitespace(segment.get(lineStart))) {
+                    lineStart++;
+                }
+                while (lineEnd > lineStart && isWhitespace(segment.get(lineEnd - 1))) {
+                    lineEnd--;
+                }
+                int length = lineEnd - lineStart;
+                if (length > 0 && segment.get(lineStart) != '#') {
+                    if (length > line.length) {
+                        line = new byte[Math.max(length, line.length * 2)];
+                    }
+                    for (int i = 0; i < length; i++) {
+                        line[i] = segment.get(lineStart + i);
+                    }
+                    classifyUrl(new String(line, 0, length, UTF_8), counts);
+                }
+                lineStart = next;
+            }
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] != 0) {
+                    types.addAndGet(i, counts[i]);
+                }
+            }
+        }
+
+        private void classifyUrl(String url, long[] counts) {
+            InteractionUrl parsed = InteractionUrl.parse(url);
+            counts[parsed.getType().ordinal()]++;
+            String key = requestKey(parsed);
+            if (key == null) {
+                counts[counts.length - 1]++;
+                return;
+            }
+            Request request = requests.putIfAbsent(key, new Request(url));
+            if (request != null) {
+                request.taps.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Requests are the same when they'd send the same parameters: slugs by their URL, other
+     * tags by ID and one-time VID.
+     * @return Identity of the request, or null if the URL can't be verified.
+     */
+    static String requestKey(InteractionUrl parsed) {
+        if (parsed.getType() == InteractionUrl.Type.SLUG) {
+            return parsed.getUrl();
+        }
+        if (!parsed.isVerifiable()) {
+            return null;
+        }
+        long id = MTagIdCodec.decode(parsed.getUrl(), parsed.getMTagIdStart(),
+                parsed.getMTagIdEnd());
+        if (id == MTagIdCodec.INVALID) {
+            return null;
+        }
+        StringBuilder key = new StringBuilder().append(id);
+        for (int i = 0; i < parsed.getParamCount(); i++) {
+            key.append('\t').append(parsed.getParamValue(i));
+        }
+        return key.toString();
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\r' || b == '\t';
+    }
+
+    /**
+     * Sends the unique requests from concurrency threads, each taking the next batch and
+     * appending its results to the writer once the whole batch is answered.  A failed write
+     * stops every sender after its current batch.
+     */
+    private void submit(final List<Request> requests, final Writer writer, final long[] outcomes)
+            throws IOException, InterruptedException {
+        final AtomicInteger nextBatch = new AtomicInteger();
+        final IOException[] writeFailure = new IOException[1];
+        final AtomicBoolean failed = new AtomicBoolean();
+        ExecutorService senders = Executors.newFixedThreadPool(concurrency);
+        for (int t = 0; t < concurrency; t++) {
+            senders.execute(new Runnable() {
+                @Override
+                public void run() {
+                    long[] counts = new long[OUTCOMES];
+                    StringBuilder batch = new StringBuilder();
+                    int first;
+                    try {
+                        while (!failed.get()
+                                && (first = nextBatch.getAndAdd(batchSize)) < requests.size()) {
+                            int last = Math.min(first + batchSize, requests.size());
+                            for (int i = first; i < last; i++) {
+                                verify(requests.get(i), batch, counts);
+                            }
+                            synchronized (writer) {
+                                try {
+                                    writer.append(batch);
+                                } catch (IOException e) {
+                                    writeFailure[0] = e;
+                                    failed.set(true);
+                                    return;
+                                }
+                            }
+                            batch.setLength(0);
+                        }
+                    } finally {
+                        // requests already sent count even if their results weren't written
+                        synchronized (outcomes) {
+                            for (int i = 0; i < OUTCOMES; i++) {
+                                outcomes[i] += counts[i];
+                            }
+                        }
+                    }
+                }
+            });
+        }
+        senders.shutdown();
+        try {
+            while (!senders.awaitTermination(1, TimeUnit.SECONDS)) {
+                // batches keep landing in the results file while we wait
+            }
+        } catch (InterruptedException e) {
+            senders.shutdownNow();
+            throw e;
+        }
+        synchronized (writer) {
+            if (writeFailure[0] != null) {
+                throw writeFailure[0];
+            }
+        }
+    }
+
+    private void verify(Request request, StringBuilder batch, long[] counts) {
+        int status = 0;
+        Outcome outcome = Outcome.ERROR;
+        Map<String, String> params = InteractionPayload.build(request.url);
+        try {
+            HttpURLConnection connection = post(params);
+            status = connection.getResponseCode();
+            byte[] body = readBody(connection, status);
+            if (status >= 200 && status < 300) {
+                outcome = outcome(body);
+            }
+        } catch (IOException e) {
+            // no response, reported as ERROR with status 0
+        }
+        counts[outcome.ordinal()]++;
+        batch.append(outcome).append('\t').append(status).append('\t')
+                .append(request.taps.get()).append('\t').append(request.url).append('\n');
+    }
+
+    private static Outcome outcome(byte[] body) {
+        InteractionResponseReader response = InteractionResponseReader.read(body);
+        if (response == null) {
+            return Outcome.ERROR;
+        }
+        switch (InteractionResult.from(response).getVerification()) {
+            case VERIFIED:
+                return Outcome.VERIFIED;
+            case NOT_VERIFIED:
+                return Outcome.NOT_VERIFIED;
+            default:
+                return Outcome.UNKNOWN;
+        }
+    }
+
+    /**
+     * Opens the connection and sends a request's form parameters.  Override to send requests
+     * some other way, e.g. through a proxy or with extra headers.
+     * @param params Request parameters from InteractionPayload.
+     * @return Connection whose response hasn't been read yet.
+     * @throws IOException If the request couldn't be sent.
+     */
+    protected HttpURLConnection post(Map<String, String> params) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(endpoint).openConnection();
+        connection.setConnectTimeout(timeoutMillis);
+        connection.setReadTimeout(timeoutMillis);
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+        StringBuilder form = new StringBuilder();
+        for (Map.Entry<String, String> param : params.entrySet()) {
+            if (form.length() > 0) {
+                form.append('&');
+            }
+            form.append(URLEncoder.encode(param.getKey(), "UTF-8")).append('=')
+                    .append(URLEncoder.encode(param.getValue(), "UTF-8"));
+        }
+        byte[] body = form.toString().getBytes(UTF_8);
+        connection.setFixedLengthStreamingMode(body.length);
+        OutputStream out = connection.getOutputStream();
+        try {
+            out.write(body);
+        } finally {
+            out.close();
+        }
+        return connection;
+    }
+
+    /**
+     * Reads the response body to the end, which lets the connection be kept alive.
+     */
+    private static byte[] readBody(HttpURLConnection connection, int status) throws IOException {
+        InputStream in = status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+        if (in == null) {
+            return new byte[0];
+        }
+        try {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                body.write(buffer, 0, read);
+            }
+            return body.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -18,17 +18,18 @@ package com.bluebite.mtag_sdk;
 
 import android.util.Log;
 
-import com.loopj.android.http.AsyncHttpClient;
-import com.loopj.android.http.JsonHttpResponseHandler;
-import com.loopj.android.http.RequestParams;
-
-import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.util.Arrays;
-import java.util.HashMap;
-
-import cz.msebera.android.httpclient.Header;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 /**
@@ -37,13 +38,37 @@ import cz.msebera.android.httpclient.Header;
 public class API {
     public static final String TAG = API.class.getSimpleName();
 
+    /**
+     * Route interactions are POSTed to unless setInteractionsUrl says otherwise.
+     */
+    public static final String INTERACTIONS_URL = InteractionPayload.INTERACTIONS_URL;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
     private BlueBiteInteractionDelegate mDelegate;
-    private AsyncHttpClient client = new AsyncHttpClient();
+    private volatile InteractionTransport transport;
+    private volatile String interactionsUrl = INTERACTIONS_URL;
+    private final InFlightInteractions inFlight = new InFlightInteractions();
+    private volatile InteractionResultCache resultCache;
+    private volatile OfflineInteractionQueue offlineQueue;
+    private final AtomicBoolean replaying = new AtomicBoolean();
+    private volatile InteractionMetrics metrics;
+    private volatile RetryPolicy retryPolicy;
+    private volatile InteractionTracer tracer;
+    private volatile CounterReplayFilter replayFilter;
+    private volatile boolean skipReplayedVids;
+    private volatile BurstMode burstMode;
+    private volatile AdaptiveConcurrencyLimiter limiter;
+    private volatile EndpointRouter router;
+    private volatile DiskInteractionCache diskCache;
+    private volatile Executor parseExecutor = InteractionExecutors.direct();
+    private volatile Executor callbackExecutor = InteractionExecutors.defaultCallbackExecutor();
+    private volatile Executor queueExecutor = InteractionExecutors.storage();
 
     public static int SMT_COUNTER_SEGMENTS = 5;
-    private static int MTAG_ID_B10_LENGTH = 8;
-    private static int MTAG_ID_B36_LENGTH = 6;
-    private static int TECH_PREFIX_LENGTH = 1;
+
+    private int batchSize = 25;
+    private int maxConcurrentRequests = 4;
 
     /**
      * Error message to filter for if you want to handle a non-verifiable but otherwise
@@ -51,271 +76,1008 @@ public class API {
      */
     public static String ERROR_NON_AUTH_URL = "Invalid URL format for Interaction URL: ";
 
+    /**
+     * Error message to filter for if you want to handle the interactions route being
+     * unreachable, i.e. no HTTP response was received at all.
+     */
+    public static String ERROR_NETWORK = "Network failure for Interaction: ";
+
+    /**
+     * Error message to filter for if you want to handle an interaction that couldn't be sent
+     * and was stored in the offline queue for a later replayOfflineQueue call.
+     */
+    public static String ERROR_INTERACTION_QUEUED = "Interaction queued for replay: ";
+
+    /**
+     * Error message to filter for if you want to handle a verify call whose deadline passed
+     * before a result arrived.
+     */
+    public static String ERROR_DEADLINE_EXCEEDED = "Deadline exceeded for Interaction: ";
+
+    /**
+     * Error message to filter for if you want to handle a one-time tag URL whose VID was
+     * already sent from this device, see setReplayFilter.
+     */
+    public static String ERROR_REPLAYED_VID = "Replayed VID for Interaction: ";
+
+    /**
+     * Error message to filter for if you want to handle a tap dropped because the burst mode
+     * queue was full, see setBurstMode.
+     */
+    public static String ERROR_BURST_REJECTED = "Burst queue full, dropped Interaction: ";
+
+    /**
+     * Error message to filter for if you want to handle a tag read by NfcReaderMode that
+     * didn't carry an http(s) URL.
+     */
+    public static String ERROR_INVALID_TAG_DATA = "Invalid tag data: ";
+
+    // reports futures started by interactionWasReceived to the mDelegate
+    private final InteractionFuture.Listener delegateListener = new InteractionFuture.Listener() {
+        @Override
+        public void onComplete(final InteractionFuture future) {
+            if (future.isCancelled()) {
+                return;
+            }
+            dispatch(new Runnable() {
+                @Override
+                public void run() {
+                    if (future.isSuccessful()) {
+                        deliver(mDelegate, future.getResult());
+                    } else {
+                        mDelegate.interactionDidFail(future.getError());
+                    }
+                }
+            });
+        }
+    };
+
+    // sends through the concurrency limiter and the endpoint router when they are set
+    private final HeaderInteractionTransport limitedTransport = new HeaderInteractionTransport() {
+        @Override
+        public Call post(String url, Map<String, String> params, Callback callback) {
+            return post(url, params, null, callback);
+        }
+
+        @Override
+        public Call post(String url, Map<String, String> params,
+                         final Map<String, String> headers, Callback callback) {
+            InteractionTransport t = transport();
+            if (headers != null && t instanceof HeaderInteractionTransport) {
+                final HeaderInteractionTransport withHeaders = (HeaderInteractionTransport) t;
+                t = new InteractionTransport() {
+                    @Override
+                    public Call post(String url, Map<String, String> params, Callback callback) {
+                        return withHeaders.post(url, params, headers, callback);
+                    }
+                };
+            }
+            final EndpointRouter r = router;
+            if (r != null) {
+                final InteractionTransport routed = t;
+                t = new InteractionTransport() {
+                    @Override
+                    public Call post(String url, Map<String, String> params, Callback callback) {
+                        return r.post(routed, params, callback, tracer);
+                    }
+                };
+            }
+            AdaptiveConcurrencyLimiter l = limiter;
+            if (l == null) {
+                return t.post(url, params, callback);
+            }
+            return l.post(t, url, params, callback);
+        }
+    };
+
+    // answers from the disk cache when one is set, before taking a limiter slot
+    private final InteractionTransport cachedTransport = new InteractionTransport() {
+        @Override
+        public Call post(String url, Map<String, String> params, Callback callback) {
+            DiskInteractionCache c = diskCache;
+            if (c == null) {
+                return limitedTransport.post(url, params, callback);
+            }
+            return c.post(limitedTransport, url, params, callback);
+        }
+    };
+
     public API(BlueBiteInteractionDelegate mDelegate) {
+        this(mDelegate, null);
+    }
+
+    /**
+     * @param mDelegate Delegate receiving interaction results.
+     * @param transport Transport sending requests to the interactions route, or null for the
+     *                  shared AsyncHttpInteractionTransport.
+     */
+    public API(BlueBiteInteractionDelegate mDelegate, InteractionTransport transport) {
         this.mDelegate = mDelegate;
+        this.transport = transport;
+    }
+
+    /**
+     * @param transport Transport sending requests to the interactions route, or null for the
+     *                  shared AsyncHttpInteractionTransport.
+     */
+    public void setTransport(InteractionTransport transport) {
+        this.transport = transport;
+    }
+
+    /**
+     * @return The transport requests are sent with.  The shared one is only built here, on
+     * first use, so creating an API costs no threads or connections.
+     */
+    private InteractionTransport transport() {
+        InteractionTransport t = transport;
+        return t != null ? t : AsyncHttpInteractionTransport.getShared();
+    }
+
+    /**
+     * Starts resolving the interactions route's host and opening a connection to it in the
+     * background, e.g. from an activity's onCreate, so the first tap doesn't pay for DNS, TCP
+     * and TLS setup.  Every API instance using the shared transport benefits.  Does nothing
+     * for transports that can't be warmed.
+     */
+    public void prewarm() {
+        InteractionTransport t = transport();
+        if (t instanceof AsyncHttpInteractionTransport) {
+            EndpointRouter r = router;
+            ((AsyncHttpInteractionTransport) t).prewarm(
+                    r != null ? r.getPreferredUrl() : interactionsUrl);
+        }
+    }
+
+    /**
+     * Points the SDK at a different interactions route, e.g. a local stand-in for load runs.
+     * @param interactionsUrl Full URL interactions are POSTed to.
+     */
+    public void setInteractionsUrl(String interactionsUrl) {
+        this.interactionsUrl = interactionsUrl;
     }
 
     /**
      * Method called by an activity which will handle parsing and verifying the provided
      * interaction url.
      * Method does not return, instead passing its results to the mDelegate.
+     * In burst mode the URL is queued and verified once a request slot is free.
      * @param url Interaction URL/URL to verify.
      */
     public void interactionWasReceived(String url) {
-        Log.v(TAG, "Interaction was received with url: " + url);
-
-        // some tags are now using slugs instead of mtag IDs.  If we find a slug, we just need
-        // to pass the entire URL to the interaction endpoint, instead of parsing out the params.
-        String[] split = url.split("\\?")[0].split("/");
-        String slug = split[split.length - 1];
-        if (slug.length() < MTAG_ID_B36_LENGTH) {
-            formatInteraction(url);
+        BurstMode burst = burstMode;
+        if (burst != null) {
+            burst.offer(url);
             return;
         }
+        verify(url).addListener(delegateListener);
+    }
 
-        String mTagId = parseMTagId(url);
-        if (mTagId.equals("")) {
-            mDelegate.interactionDidFail(ERROR_NON_AUTH_URL + url);
+    /**
+     * Queues interactionWasReceived calls and bounds how many are verified at once, for
+     * scanners producing taps faster than they can be answered.  interactionsWereReceived
+     * and verify aren't affected.
+     * @param burstMode Queue and policy to accept taps with, or null to send every tap right
+     *                  away.  Taps already queued are still sent.
+     */
+    public void setBurstMode(BurstMode burstMode) {
+        if (burstMode != null) {
+            burstMode.attach(this);
         }
+        this.burstMode = burstMode;
+    }
+
+    /**
+     * @return Burst mode taps are queued with, or null if burst mode is off.
+     */
+    public BurstMode getBurstMode() {
+        return burstMode;
+    }
 
-        String[] urlParts = url.split("/");
-        String urlTail = urlParts[urlParts.length - 1];
+    /**
+     * Verifies a tap taken off the burst mode queue, reporting it to the mDelegate.
+     */
+    InteractionFuture submitQueuedInteraction(String url) {
+        InteractionFuture future = verify(url);
+        future.addListener(delegateListener);
+        return future;
+    }
+
+    /**
+     * Reports a tap dropped by the burst mode queue to the mDelegate.
+     */
+    void rejectInteraction(final String url, int queueDepth) {
+        InteractionMetrics m = metrics;
+        if (m != null) {
+            m.recordFailure(InteractionMetrics.Failure.BURST_REJECTED);
+        }
+        BurstMode burst = burstMode;
+        trace(InteractionTracer.Event.TAP_REJECTED, queueDepth,
+                burst != null ? burst.getPolicy().ordinal() : -1);
+        dispatch(new Runnable() {
+            @Override
+            public void run() {
+                mDelegate.interactionDidFail(ERROR_BURST_REJECTED + url);
+            }
+        });
+    }
 
-        HashMap<String,String> params = new HashMap<>();
-        if (urlParts.length == SMT_COUNTER_SEGMENTS) { // Counter URL
-            Log.d(TAG, "SMT Counter");
-            params = handleCounterUrl(urlParts);
+    /**
+     * Reports a tag without an http(s) URL, read by NfcReaderMode, to the mDelegate.
+     */
+    void rejectTagData(final String description) {
+        InteractionMetrics m = metrics;
+        if (m != null) {
+            m.recordFailure(InteractionMetrics.Failure.INVALID_TAG_DATA);
         }
-        else if (urlTail.contains("&sig")) { // Auth Url
-            Log.d(TAG, "Auth RC");
-            HashMap<String, String> expectedQueryParams = new HashMap<>();
-            expectedQueryParams.put("id", "uid");
-            expectedQueryParams.put("num", "tag_version");
-            expectedQueryParams.put("sig", "vid");
-            params = handleAuthOrHidUrl(urlParts, expectedQueryParams);
+        trace(InteractionTracer.Event.INTERACTION_FAILED,
+                InteractionMetrics.Failure.INVALID_TAG_DATA.ordinal(), 0);
+        dispatch(new Runnable() {
+            @Override
+            public void run() {
+                mDelegate.interactionDidFail(ERROR_INVALID_TAG_DATA + description);
+            }
+        });
+    }
+
+    /**
+     * Verifies an interaction url without a deadline, see {@link #verify(String, long, TimeUnit)}.
+     * @param url Interaction URL/URL to verify.
+     * @return Future completed with the result.
+     */
+    public InteractionFuture verify(String url) {
+        return verify(url, 0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Verifies an interaction url and returns its pending result instead of reporting it to
+     * the mDelegate.  The future can be awaited from a worker thread, observed with a
+     * listener, or cancelled, e.g. when the user taps another tag; cancelling aborts the HTTP
+     * call unless another caller is waiting on the same request.
+     * @param url Interaction URL/URL to verify.
+     * @param deadline Time allowed for a result before the future fails with
+     *                 {@link #ERROR_DEADLINE_EXCEEDED}, 0 for none.
+     * @param unit Unit of deadline.
+     * @return Future completed with the result.
+     */
+    public InteractionFuture verify(String url, long deadline, TimeUnit unit) {
+        InteractionMetrics m = metrics;
+        long start = m != null ? m.now() : 0;
+        InteractionUrl parsed = InteractionUrl.parse(url);
+        if (m != null) {
+            m.recordSince(InteractionMetrics.Stage.URL_PARSE, start);
         }
-        else if (urlTail.contains("&tac")) { // HID URL
-            Log.d(TAG, "HID RC");
-            HashMap<String, String> expectedQueryParams = new HashMap<>();
-            expectedQueryParams.put("tagID", "hid");
-            expectedQueryParams.put("tac", "vid");
-            params = handleAuthOrHidUrl(urlParts, expectedQueryParams);
+        trace(InteractionTracer.Event.INTERACTION_RECEIVED, parsed.getType().ordinal(),
+                url.hashCode());
+
+        InteractionFuture future = new InteractionFuture(url);
+        future.setCall(submitInteraction(parsed, future.getDelegate()));
+        future.setDeadline(deadline, unit, new Runnable() {
+            @Override
+            public void run() {
+                InteractionMetrics m = metrics;
+                if (m != null) {
+                    m.recordFailure(InteractionMetrics.Failure.DEADLINE_EXCEEDED);
+                }
+                trace(InteractionTracer.Event.INTERACTION_FAILED,
+                        InteractionMetrics.Failure.DEADLINE_EXCEEDED.ordinal(), 0);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Verifies a whole list of interaction urls, e.g. every tagged item on a pallet.  URLs are
+     * grouped into batches of {@link #setBatchSize} and submitted with at most
+     * {@link #setMaxConcurrentRequests} requests in flight; the next batch starts as soon as
+     * a request slot frees up.  A failing URL only fails itself.
+     * If the mDelegate is a BlueBiteBatchInteractionDelegate results are reported per URL and
+     * per batch, as typed results if it is an InteractionResultBatchDelegate, otherwise each
+     * result goes to the plain delegate methods.
+     * @param urls Interaction URLs to verify.
+     */
+    public void interactionsWereReceived(List<String> urls) {
+        trace(InteractionTracer.Event.INTERACTIONS_RECEIVED, urls.size(), batchSize);
+        InteractionBatch batch = new InteractionBatch(this, urls, batchSize, mDelegate);
+        batch.start(maxConcurrentRequests);
+    }
+
+    /**
+     * @param batchSize Number of URLs reported together by interactionsWereReceived.
+     */
+    public void setBatchSize(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batchSize must be at least 1");
         }
-        else {
-            Log.d(TAG, "NO AUTH");
-            mDelegate.interactionDidFail(ERROR_NON_AUTH_URL + url);
-            return;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * @param maxConcurrentRequests Most requests interactionsWereReceived keeps in flight.
+     */
+    public void setMaxConcurrentRequests(int maxConcurrentRequests) {
+        if (maxConcurrentRequests < 1) {
+            throw new IllegalArgumentException("maxConcurrentRequests must be at least 1");
         }
+        this.maxConcurrentRequests = maxConcurrentRequests;
+    }
 
-        RequestParams requestParams = new RequestParams(params);
-        formatInteraction(mTagId, requestParams);
+    /**
+     * Sets where response bodies are decoded.  The default decodes on the transport's
+     * callback thread, which for the default transport is a network thread.
+     * @param parseExecutor Executor decoding responses, or null for the default.
+     */
+    public void setParseExecutor(Executor parseExecutor) {
+        this.parseExecutor = parseExecutor != null ? parseExecutor : InteractionExecutors.direct();
     }
 
     /**
-     * Handles formatting the request payload for slug based URLs.
-     * @param url Unchanged interaction URL.
+     * Sets where the mDelegate and batch delegates are called.  The default posts to the main
+     * thread when the app has a main Looper and calls right away otherwise, e.g. when the SDK
+     * runs headless on a plain JVM.  Use a serial executor to keep callbacks in order.
+     * @param callbackExecutor Executor running delegate callbacks, or null for the default.
      */
-    protected void formatInteraction(String url) {
-        RequestParams params = new RequestParams();
-        params.add("url", url);
-        registerInteraction(params);
+    public void setCallbackExecutor(Executor callbackExecutor) {
+        this.callbackExecutor = callbackExecutor != null
+                ? callbackExecutor : InteractionExecutors.defaultCallbackExecutor();
     }
 
     /**
-     * Handles formatting the request payload for mtag ID based URLs.
-     * @param mTagId ID in base 10 of the tapped tag.
-     * @param params Request parameters parsed from the Interaction URL.
+     * Sets where replayOfflineQueue reads and acknowledges the offline queue's files.  The
+     * default is a shared background thread, so the callback thread, usually the main thread,
+     * never waits on storage.
+     * @param queueExecutor Executor running offline queue I/O, or null for the default.
      */
-    protected void formatInteraction(String mTagId, RequestParams params) {
-        params.put("tag_id", mTagId);
-        params.put("tech", "n");
-        Log.d(TAG, "register params: " + params.toString());
-        registerInteraction(params);
+    public void setQueueExecutor(Executor queueExecutor) {
+        this.queueExecutor = queueExecutor != null ? queueExecutor : InteractionExecutors.storage();
     }
 
     /**
-     * Handles the actual POSTing of the request to the interactions route.  Passes the success
-     * or failure along to the proper delegate.
-     * @param params RequestParams entity containing either the unchanged URL or parsed URL
-     *               depending on the structure of the received interaction URL.
+     * Runs a delegate callback on the callback executor.
+     */
+    void dispatch(Runnable callback) {
+        callbackExecutor.execute(callback);
+    }
+
+    /**
+     * Enables keeping responses for tags without one-time data on disk, so repeat taps and
+     * cold starts are answered from local storage while stale entries are revalidated in the
+     * background.  Unlike the result cache, the disk cache outlives the process.
+     * @param diskCache Cache to serve and store responses with, or null to disable it.
+     */
+    public void setDiskCache(DiskInteractionCache diskCache) {
+        this.diskCache = diskCache;
+    }
+
+    /**
+     * @return Disk cache responses are served from, or null if it is disabled.
+     */
+    public DiskInteractionCache getDiskCache() {
+        return diskCache;
+    }
+
+    /**
+     * Bounds the requests in flight with a limit adapted to response times and 429/5xx
+     * statuses.  Retries and hedged copies count against the limit too.  Without a limiter
+     * every request is sent right away.
+     * @param limiter Limiter to send requests through, or null to disable limiting.
+     */
+    public void setConcurrencyLimiter(AdaptiveConcurrencyLimiter limiter) {
+        this.limiter = limiter;
+    }
+
+    /**
+     * @return Limiter requests are sent through, or null if limiting is disabled.
+     */
+    public AdaptiveConcurrencyLimiter getConcurrencyLimiter() {
+        return limiter;
+    }
+
+    /**
+     * Spreads requests over several interactions routes, e.g. one per region, sending each to
+     * the fastest healthy one and failing over when it doesn't answer.  The router's
+     * endpoints replace setInteractionsUrl for sending, while cache keys keep using it.
+     * @param router Router choosing the endpoint of every request, or null to always use
+     *               the interactions URL.
+     */
+    public void setEndpointRouter(EndpointRouter router) {
+        this.router = router;
+    }
+
+    /**
+     * @return Router choosing request endpoints, or null if routing is disabled.
+     */
+    public EndpointRouter getEndpointRouter() {
+        return router;
+    }
+
+    /**
+     * Enables retrying failed requests and hedging slow ones.  Without a policy every request
+     * is sent once and its failure reported right away.
+     * @param retryPolicy Policy to send requests under, or null to disable retries.
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
+    /**
+     * Enables tracing what the SDK does into the tracer's ring buffer.  Without a tracer
+     * nothing is traced, and nothing is written to logcat except errors.
+     * @param tracer Tracer to record into, or null to disable tracing.
+     */
+    public void setTracer(InteractionTracer tracer) {
+        this.tracer = tracer;
+    }
+
+    /**
+     * @return Tracer events are recorded into, or null if tracing is disabled.
+     */
+    public InteractionTracer getTracer() {
+        return tracer;
+    }
+
+    /**
+     * Records a trace event if a tracer is set and the event's level is enabled.
+     */
+    void trace(InteractionTracer.Event event, long arg0, long arg1) {
+        InteractionTracer t = tracer;
+        if (t != null) {
+            t.record(event, arg0, arg1);
+        }
+    }
+
+    /**
+     * Enables spotting one-time tag URLs (counter, auth and HID tags) whose tag ID and VID
+     * were already sent from this device, which points at a copied or replayed URL.  Replays
+     * are traced as REPLAY_DETECTED.  The filter is probabilistic, so a fresh VID is very
+     * rarely taken for a replay; keep skipNetwork off if that must never cost a verification.
+     * @param replayFilter Filter remembering recently sent VIDs, or null to disable the check.
+     * @param skipNetwork True to fail replays with {@link #ERROR_REPLAYED_VID} without asking
+     *                    the server, false to only trace them and send the request anyway.
+     */
+    public void setReplayFilter(CounterReplayFilter replayFilter, boolean skipNetwork) {
+        this.skipReplayedVids = skipNetwork;
+        this.replayFilter = replayFilter;
+    }
+
+    /**
+     * @return Filter VIDs are checked against, or null if the check is disabled.
+     */
+    public CounterReplayFilter getReplayFilter() {
+        return replayFilter;
+    }
+
+    /**
+     * Enables recording per-stage latencies and outcome counts.  Without metrics set nothing
+     * is timed or counted.
+     * @param metrics Registry to record into, or null to disable recording.
+     */
+    public void setMetrics(InteractionMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return Registry interactions are recorded into, or null if recording is disabled.
      */
-    protected void registerInteraction(RequestParams params) {
-        Log.d(TAG, "[registerInteraction]params: " + params.toString());
-        String targetUrl = "https://api.mtag.io/v2/interactions";
+    public InteractionMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Enables answering repeat taps of cacheable tags from memory.
+     * @param resultCache Cache to serve and store results with, or null to disable caching.
+     */
+    public void setResultCache(InteractionResultCache resultCache) {
+        this.resultCache = resultCache;
+    }
 
-        JsonHttpResponseHandler responseHandler = new JsonHttpResponseHandler() {
+    /**
+     * Enables keeping interactions that fail with no response from the server, so they can be
+     * sent again once the network is back.  Queued interactions are reported to the delegate
+     * with {@link #ERROR_INTERACTION_QUEUED}.
+     * @param offlineQueue Queue to store unsent interactions in, or null to disable queueing.
+     */
+    public void setOfflineQueue(OfflineInteractionQueue offlineQueue) {
+        this.offlineQueue = offlineQueue;
+    }
+
+    /**
+     * Sends the interactions stored in the offline queue, oldest first, in batches of the
+     * queue's replay batch size.  Call this when connectivity returns.  Results are reported
+     * like interactionsWereReceived results.  Replay stops early if the network fails again;
+     * interactions that still got no response stay where they were in the queue.
+     */
+    public void replayOfflineQueue() {
+        final OfflineInteractionQueue queue = offlineQueue;
+        if (queue == null || !replaying.compareAndSet(false, true)) {
+            return;
+        }
+        queueExecutor.execute(new Runnable() {
             @Override
-            public void onSuccess(int statusCode, Header[] headers, JSONObject response) {
-                Log.d(TAG, "Interactions response: " + response);
-                JSONObject parsedResponse = handleResponse(response);
-                mDelegate.interactionDataWasReceived(parsedResponse);
+            public void run() {
+                replayNextBatch(queue);
             }
+        });
+    }
+
+    private void replayNextBatch(final OfflineInteractionQueue queue) {
+        final List<String> urls = queue.peek(queue.getReplayBatchSize());
+        if (urls.isEmpty()) {
+            replaying.set(false);
+            return;
+        }
+        trace(InteractionTracer.Event.REPLAY_STARTED, urls.size(), queue.size());
+
+        final BlueBiteBatchInteractionDelegate batchDelegate =
+                mDelegate instanceof BlueBiteBatchInteractionDelegate
+                        ? (BlueBiteBatchInteractionDelegate) mDelegate : null;
+        final InteractionResultBatchDelegate resultBatchDelegate =
+                mDelegate instanceof InteractionResultBatchDelegate
+                        ? (InteractionResultBatchDelegate) mDelegate : null;
+        InteractionResultBatchDelegate replayDelegate = new InteractionResultBatchDelegate() {
+            private final Set<String> unsent =
+                    Collections.synchronizedSet(new HashSet<String>());
+            private final AtomicInteger unsentCount = new AtomicInteger();
 
-            // TODO: clean up error handling in these responses
             @Override
-            public void onFailure(int statusCode, Header[] headers, Throwable throwable, JSONObject errorResponse) {
-                Log.e(TAG, "DID FAIL with status code: " + statusCode + " And cause " + errorResponse.toString());
-                mDelegate.interactionDidFail(errorResponse.toString());
+            public void interactionResultWasReceived(String url, InteractionResult result) {
+                if (resultBatchDelegate != null) {
+                    resultBatchDelegate.interactionResultWasReceived(url, result);
+                } else if (batchDelegate != null) {
+                    batchDelegate.interactionDataWasReceived(url, result.toJSONObject());
+                } else {
+                    deliver(mDelegate, result);
+                }
             }
 
             @Override
-            public void onFailure(int statusCode, Header[] headers, String responseString, Throwable throwable) {
-                Log.e(TAG, "DID FAIL with status code: " + statusCode + " And cause " + responseString);
-                mDelegate.interactionDidFail(responseString);
+            public void interactionDataWasReceived(String url, JSONObject results) {
+                if (batchDelegate != null) {
+                    batchDelegate.interactionDataWasReceived(url, results);
+                } else {
+                    mDelegate.interactionDataWasReceived(results);
+                }
+            }
+
+            @Override
+            public void interactionDidFail(String url, String error) {
+                if (error.startsWith(ERROR_NETWORK)) {
+                    // still offline, the interaction stays queued
+                    unsent.add(url);
+                    unsentCount.incrementAndGet();
+                } else if (batchDelegate != null) {
+                    batchDelegate.interactionDidFail(url, error);
+                } else {
+                    mDelegate.interactionDidFail(error);
+                }
+            }
+
+            @Override
+            public void batchWasCompleted(int batchIndex, int batchCount, int succeeded,
+                                          int failed) {
+                // only the records ahead of the first unsent one can go, so the queue keeps
+                // its order.  Answered URLs behind it are sent again on the next replay.
+                int handled = 0;
+                while (handled < urls.size() && !unsent.contains(urls.get(handled))) {
+                    handled++;
+                }
+                final int acknowledged = handled;
+                final int replayed = urls.size() - unsentCount.get();
+                queueExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        queue.acknowledge(acknowledged);
+                        queue.recordReplayed(replayed);
+                        if (acknowledged < urls.size()) {
+                            replaying.set(false);
+                        } else {
+                            replayNextBatch(queue);
+                        }
+                    }
+                });
+            }
+
+            @Override
+            public void interactionDataWasReceived(JSONObject results) {
+            }
+
+            @Override
+            public void interactionDidFail(String error) {
             }
         };
+        new InteractionBatch(this, urls, urls.size(), replayDelegate, false)
+                .start(maxConcurrentRequests);
+    }
 
-        client.post(targetUrl, params, responseHandler);
+    /**
+     * Formats and submits a single classified interaction, reporting its outcome to the given
+     * delegate.  Cacheable tags are answered from the result cache when possible.  If an
+     * identical request is already in flight, e.g. the tag was tapped twice, the delegate is
+     * attached to it instead of sending another one.
+     * @param parsed Classified Interaction URL.
+     * @param delegate Delegate receiving the result of this interaction only.
+     * @return Call detaching the delegate from its request, or null if the delegate was
+     * already answered.
+     */
+    InteractionTransport.Call submitInteraction(InteractionUrl parsed,
+                                                BlueBiteInteractionDelegate delegate) {
+        return submitInteraction(parsed, delegate, true);
     }
 
     /**
-     * Receives the valid response JSON body and parses out the relevant fields.  Fields that are
-     * not found in the response body, or are null, are omitted.  A null tag_verified field is
-     * treated as a failure, but should be shown to the user as a potential service hiccup and not
-     * a true authentication failure.
-     * @param response JSON body from the registerInteraction call.
-     * @return Formatted JSON response passed to the BlueBiteInteractionDelegate.
+     * @param queueFailures False to not store the interaction in the offline queue when it
+     *                      gets no response, e.g. because it is being replayed from it.
      */
-    protected JSONObject handleResponse(JSONObject response) {
-        JSONObject formattedResponse = new JSONObject();
-        try {
-            JSONObject device = response.getJSONObject("device");
-            formattedResponse.put("deviceCountry", device.getString("country"));
-        } catch (JSONException e) {
-            try {
-                formattedResponse.put("deviceCountry", null);
-            } catch (JSONException e1) {
-                e1.printStackTrace();
+    InteractionTransport.Call submitInteraction(InteractionUrl parsed,
+                                                BlueBiteInteractionDelegate delegate,
+                                                boolean queueFailures) {
+        String url = parsed.getUrl();
+        String mTagId = null;
+        InteractionMetrics m = metrics;
+        long payloadNanos = 0;
+        if (m != null) {
+            m.recordTagType(parsed.getType());
+        }
+
+        // some tags are now using slugs instead of mtag IDs.  If we find a slug, we just need
+        // to pass the entire URL to the interaction endpoint, instead of parsing out the params.
+        if (parsed.getType() != InteractionUrl.Type.SLUG) {
+            long start = m != null ? m.now() : 0;
+            if (parsed.isVerifiable()) {
+                mTagId = convertIdToBase10(parsed.getMTagId());
+            }
+            if (mTagId == null) {
+                if (m != null) {
+                    m.recordFailure(InteractionMetrics.Failure.NON_AUTH_URL);
+                }
+                trace(InteractionTracer.Event.INTERACTION_FAILED,
+                        InteractionMetrics.Failure.NON_AUTH_URL.ordinal(), 0);
+                delegate.interactionDidFail(ERROR_NON_AUTH_URL + url);
+                return null;
+            }
+            if (m != null) {
+                payloadNanos = m.now() - start;
             }
         }
 
-        // get tagverified
-        try {
-            formattedResponse.put("tagVerified", response.getBoolean("tag_verified"));
-        } catch (JSONException e) {
-            try {
-                formattedResponse.put("tagVerified", null);
-            } catch (JSONException e1) {
-                e1.printStackTrace();
+        String key = InFlightInteractions.keyFor(parsed, mTagId);
+        InteractionResultCache cache = resultCache;
+        boolean cacheable = cache != null && InteractionResultCache.isCacheable(parsed);
+        if (cacheable) {
+            InteractionResult cached = cache.get(key);
+            if (cached != null) {
+                trace(InteractionTracer.Event.CACHE_HIT, parsed.getType().ordinal(),
+                        url.hashCode());
+                deliver(delegate, cached);
+                return null;
             }
         }
 
-        // get the location info if any
-        try {
-            formattedResponse.put("location", response.getJSONObject("location"));
-        } catch (JSONException e) {
-            try {
-                formattedResponse.put("location", null);
-            } catch (JSONException e1) {
-                e1.printStackTrace();
+        InFlightInteractions.Request request = inFlight.join(key, delegate);
+        if (request == null) {
+            trace(InteractionTracer.Event.REQUEST_JOINED, parsed.getType().ordinal(),
+                    url.hashCode());
+            return inFlight.leaveCall(key, delegate);
+        }
+        if (mTagId != null && isReplay(parsed, mTagId)) {
+            dispatchFailure(m, InteractionMetrics.Failure.REPLAYED_VID, 0, request,
+                    ERROR_REPLAYED_VID + url);
+            return inFlight.leaveCall(key, delegate);
+        }
+        BlueBiteInteractionDelegate requestDelegate = request;
+        if (cacheable) {
+            requestDelegate = cachingDelegate(cache, key, requestDelegate);
+        }
+        OfflineInteractionQueue queue = offlineQueue;
+        if (queue != null && queueFailures) {
+            requestDelegate = queueingDelegate(queue, url, requestDelegate);
+        }
+
+        if (mTagId == null) {
+            request.setCall(formatInteraction(url, requestDelegate));
+        } else {
+            long start = m != null ? m.now() : 0;
+            Map<String, String> params = InteractionPayload.urlParams(parsed);
+            if (m != null) {
+                m.record(InteractionMetrics.Stage.PAYLOAD_BUILD, payloadNanos + m.now() - start);
             }
+            request.setCall(formatInteraction(mTagId, params, requestDelegate));
         }
+        return inFlight.leaveCall(key, delegate);
+    }
 
-        // get the campaign info if any
-        try {
-            formattedResponse.put("campaigns", response.getJSONArray("campaigns"));
-        } catch (JSONException e) {
-            try {
-                formattedResponse.put("campaigns", null);
-            } catch (JSONException e1) {
-                e1.printStackTrace();
+    /**
+     * Checks a one-time URL's VID against the replay filter.  VIDs are only remembered once
+     * the server accepted them, see rememberVid, so a tap that never got through, or was
+     * throttled or hit a server error, can be sent again.
+     * @return True if the request should be failed as a replay instead of being sent.
+     */
+    private boolean isReplay(InteractionUrl parsed, String mTagId) {
+        CounterReplayFilter filter = replayFilter;
+        if (filter == null) {
+            return false;
+        }
+        for (int i = 0; i < parsed.getParamCount(); i++) {
+            if (!"vid".equals(parsed.getParamName(i))) {
+                continue;
             }
+            String vid = parsed.getParamValue(i);
+            if (vid == null || !filter.mightContain(mTagId, vid)) {
+                return false;
+            }
+            boolean skip = skipReplayedVids;
+            trace(InteractionTracer.Event.REPLAY_DETECTED, parsed.getType().ordinal(),
+                    skip ? 1 : 0);
+            return skip;
+        }
+        return false;
+    }
+
+    /**
+     * Adds a one-time request's VID to the replay filter once the server has accepted it.
+     * Other statuses, 429 and 5xx in particular, leave the VID free to be sent again.
+     */
+    private void rememberVid(int statusCode, Map<String, String> params) {
+        if (statusCode < 200 || statusCode >= 300) {
+            return;
         }
+        CounterReplayFilter filter = replayFilter;
+        String vid = params.get("vid");
+        String mTagId = params.get(InteractionPayload.PARAM_TAG_ID);
+        if (filter != null && vid != null && mTagId != null) {
+            filter.checkAndAdd(mTagId, vid);
+        }
+    }
+
+    /**
+     * Wraps a request delegate so successful results are stored in the result cache.  Results
+     * without a tagVerified value point at a service hiccup and aren't stored.
+     */
+    private BlueBiteInteractionDelegate cachingDelegate(
+            final InteractionResultCache cache, final String key,
+            final BlueBiteInteractionDelegate delegate) {
+        return new InteractionResultDelegate() {
+            @Override
+            public void interactionResultWasReceived(InteractionResult result) {
+                if (result.getVerification() != InteractionResult.Verification.UNKNOWN) {
+                    cache.put(key, result);
+                }
+                deliver(delegate, result);
+            }
 
-        return formattedResponse;
+            @Override
+            public void interactionDataWasReceived(JSONObject results) {
+                if (results.has("tagVerified")) {
+                    cache.put(key, InteractionResult.fromFormattedResponse(results));
+                }
+                delegate.interactionDataWasReceived(results);
+            }
+
+            @Override
+            public void interactionDidFail(String error) {
+                delegate.interactionDidFail(error);
+            }
+        };
     }
 
     /**
-     * Parses an Auth or HID URL into a Map.
-     * @param urlParts The Interaction URL split on "/" for easier parsing.
-     * @param expectedQueryParams A Map relating the authentication API's expected param names
-     *                            and their URL query parameter key names.
-     * @return A Map of the API's expected param names with the value of their corresponding
-     * query parameter names.
+     * Wraps a request delegate so interactions that got no response from the server are
+     * stored in the offline queue instead of being lost.
      */
-    private HashMap<String,String> handleAuthOrHidUrl(
-            String[] urlParts, HashMap<String, String> expectedQueryParams) {
-        Log.d(TAG, "handleAuthUrl" + Arrays.toString(urlParts));
-        HashMap<String, String> params = new HashMap<>();
+    private BlueBiteInteractionDelegate queueingDelegate(
+            final OfflineInteractionQueue queue, final String url,
+            final BlueBiteInteractionDelegate delegate) {
+        return new InteractionResultDelegate() {
+            @Override
+            public void interactionResultWasReceived(InteractionResult result) {
+                deliver(delegate, result);
+            }
+
+            @Override
+            public void interactionDataWasReceived(JSONObject results) {
+                delegate.interactionDataWasReceived(results);
+            }
+
+            @Override
+            public void interactionDidFail(String error) {
+                if (error.startsWith(ERROR_NETWORK) && queue.offer(url)) {
+                    delegate.interactionDidFail(ERROR_INTERACTION_QUEUED + url);
+                } else {
+                    delegate.interactionDidFail(error);
+                }
+            }
+        };
+    }
 
-        //grab url query parameters
-        String[] urlQueryParams = urlParts[urlParts.length - 1].split("\\?")[1].split("&");
-        Log.d(TAG, "AuthUrl urlQueryParams: " + Arrays.toString(urlQueryParams));
+    /**
+     * Handles formatting the request payload for slug based URLs.
+     * @param url Unchanged interaction URL.
+     * @param delegate Delegate receiving the result.
+     * @return The started call, or null if it can't be cancelled.
+     */
+    protected InteractionTransport.Call formatInteraction(String url,
+                                                          BlueBiteInteractionDelegate delegate) {
+        return registerInteraction(InteractionPayload.slugParams(url), delegate);
+    }
 
+    /**
+     * Handles formatting the request payload for mtag ID based URLs.
+     * @param mTagId ID in base 10 of the tapped tag.
+     * @param params Request parameters parsed from the Interaction URL.
+     * @param delegate Delegate receiving the result.
+     * @return The started call, or null if it can't be cancelled.
+     */
+    protected InteractionTransport.Call formatInteraction(String mTagId,
+                                                          Map<String, String> params,
+                                                          BlueBiteInteractionDelegate delegate) {
+        return registerInteraction(InteractionPayload.putTagId(params, mTagId), delegate);
+    }
 
-        for (String urlArg : urlQueryParams) {
-            String[] splitArg = urlArg.split("=");
-            String argName = splitArg[0];
-            String argValue = splitArg[1];
-            if (expectedQueryParams.containsKey(argName)) {
-                params.put(expectedQueryParams.get(argName), argValue);
+    /**
+     * Handles the actual POSTing of the request to the interactions route.  Passes the success
+     * or failure along to the proper delegate.
+     * @param params Request parameters containing either the unchanged URL or parsed URL
+     *               depending on the structure of the received interaction URL.
+     * @param delegate Delegate receiving the result.
+     * @return The started call, or null if it can't be cancelled.
+     */
+    protected InteractionTransport.Call registerInteraction(
+            final Map<String, String> params, final BlueBiteInteractionDelegate delegate) {
+        final InteractionMetrics m = metrics;
+        final long sent = m != null ? m.now() : 0;
+        InteractionTransport.Callback callback = new InteractionTransport.Callback() {
+            @Override
+            public void onResponse(int statusCode, Map<String, String> headers,
+                                   final byte[] body) {
+                if (m != null) {
+                    m.recordSince(InteractionMetrics.Stage.NETWORK, sent);
+                    String reused = headers.get(InteractionTransport.HEADER_CONNECTION_REUSED);
+                    if (reused != null) {
+                        m.recordConnection(Boolean.parseBoolean(reused));
+                    }
+                }
+                trace(InteractionTracer.Event.RESPONSE_RECEIVED, statusCode, body.length);
+                rememberVid(statusCode, params);
+                if (statusCode < 200 || statusCode >= 300) {
+                    String responseString = new String(body, UTF_8);
+                    Log.e(TAG, "DID FAIL with status code: " + statusCode + " And cause " + responseString);
+                    dispatchFailure(m, InteractionMetrics.Failure.HTTP_STATUS, statusCode,
+                            delegate, responseString);
+                    return;
+                }
+
+                parseExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        handleResponseBody(body, delegate, m);
+                    }
+                });
+            }
+
+            @Override
+            public void onFailure(Throwable cause) {
+                if (m != null) {
+                    m.recordSince(InteractionMetrics.Stage.NETWORK, sent);
+                }
+                Log.e(TAG, "DID FAIL with no response and cause " + cause);
+                dispatchFailure(m, InteractionMetrics.Failure.NETWORK, 0, delegate,
+                        ERROR_NETWORK + cause);
             }
+        };
+
+        RetryPolicy policy = retryPolicy;
+        if (policy == null) {
+            trace(InteractionTracer.Event.REQUEST_SENT, params.size(), 1);
+            return cachedTransport.post(interactionsUrl, params, callback);
         }
-        return params;
+        return new RetryingInteractionCall(cachedTransport, interactionsUrl, params, policy,
+                callback, tracer).start();
     }
 
+    /**
+     * Decodes a 2xx response body and passes the result along to the delegate.
+     */
+    private void handleResponseBody(byte[] body, BlueBiteInteractionDelegate delegate,
+                                    InteractionMetrics m) {
+        long start = m != null ? m.now() : 0;
+        InteractionResponseReader response = InteractionResponseReader.read(body);
+        if (response == null) {
+            String responseString = new String(body, UTF_8);
+            Log.e(TAG, "Unparseable interactions response: " + responseString);
+            dispatchFailure(m, InteractionMetrics.Failure.MALFORMED_RESPONSE, 200, delegate,
+                    responseString);
+            return;
+        }
+        InteractionResult result = handleResponse(response);
+        if (m == null) {
+            deliver(delegate, result);
+            return;
+        }
+        m.recordSince(InteractionMetrics.Stage.RESPONSE_PARSE, start);
+        m.recordSuccess();
+        start = m.now();
+        deliver(delegate, result);
+        m.recordSince(InteractionMetrics.Stage.DISPATCH, start);
+    }
 
     /**
-     * Handles parsing the relevant query parameters for a counter URL.
-     * @param urlParts The Interaction URL split on "/" for easier parsing.
-     * @return A Map of the API's expected param names with the value of their corresponding
-     * query parameter names.
+     * Hands a result to a delegate in the form it asked for, building the JSON payload only
+     * for delegates that don't take InteractionResults.
+     * @param delegate Delegate receiving the result.
+     * @param result Result to deliver.
      */
-    private HashMap<String,String> handleCounterUrl(String[] urlParts) {
-        Log.d(TAG, "handleCounterUrl" + Arrays.toString(urlParts));
-        String urlTail = urlParts[urlParts.length - 1];
-        // trim any extra query params
-        String fullVID = urlTail.split("\\?")[0];
-        HashMap<String, String> params = new HashMap<>();
-        params.put("vid", fullVID);
+    static void deliver(BlueBiteInteractionDelegate delegate, InteractionResult result) {
+        if (delegate instanceof InteractionResultDelegate) {
+            ((InteractionResultDelegate) delegate).interactionResultWasReceived(result);
+        } else {
+            delegate.interactionDataWasReceived(result.toJSONObject());
+        }
+    }
 
-        return params;
+    /**
+     * Reports a failed request to its delegate, counting the failure and timing the callback
+     * when metrics are enabled.
+     */
+    private void dispatchFailure(InteractionMetrics m, InteractionMetrics.Failure failure,
+                                 int statusCode, BlueBiteInteractionDelegate delegate,
+                                 String error) {
+        trace(InteractionTracer.Event.INTERACTION_FAILED, failure.ordinal(), statusCode);
+        if (m == null) {
+            delegate.interactionDidFail(error);
+            return;
+        }
+        m.recordFailure(failure);
+        long start = m.now();
+        delegate.interactionDidFail(error);
+        m.recordSince(InteractionMetrics.Stage.DISPATCH, start);
+    }
+
+    /**
+     * Builds the result from the fields the streaming reader pulled out of the response body.
+     * Location and campaigns are left undecoded until the delegate asks for them, and the rest
+     * of the body is never materialized.
+     * @param response Fields read from the registerInteraction response body.
+     * @return Result passed to the BlueBiteInteractionDelegate.
+     */
+    protected InteractionResult handleResponse(InteractionResponseReader response) {
+        return InteractionResult.from(response);
+    }
+
+    /**
+     * Receives the valid response JSON body and parses out the relevant fields.  Fields that are
+     * not found in the response body, or are null, are omitted.  A null tag_verified field is
+     * treated as a failure, but should be shown to the user as a potential service hiccup and not
+     * a true authentication failure.
+     * @param response JSON body from the registerInteraction call.
+     * @return Formatted JSON response passed to the BlueBiteInteractionDelegate.
+     */
+    protected JSONObject handleResponse(JSONObject response) {
+        return InteractionResult.fromResponse(response).toJSONObject();
     }
 
     /**
      * Takes the Interaction URL and attempts to parse the mTag ID (base 36 or base 10) from it.
      * If it finds the ID, attempts to convert it to base 10.
      * @param url Interaction URL to parse.
-     * @return Base 10 mTag URL as a String.
+     * @return Base 10 mTag URL as a String, or an empty string if there is no valid ID.
      */
     protected String parseMTagId(String url) {
-        String[] urlParts = url.split("/");
-        String urlTail = urlParts[urlParts.length - 1];
-        String idAndTechType;
-
-        if (urlTail.length() <= MTAG_ID_B10_LENGTH + TECH_PREFIX_LENGTH
-                || urlTail.length() <= MTAG_ID_B36_LENGTH + TECH_PREFIX_LENGTH) {
-            // basic mTag structure
-            idAndTechType = urlTail;
-        } else if (urlTail.contains("&sig") || urlTail.contains("&tac")) {
-            // auth or hid tag
-            idAndTechType = urlTail.split("\\?")[0];
-        } else if (urlParts.length == SMT_COUNTER_SEGMENTS) {
-            // smt counter tag
-            String[] smtUrlAsArray = url.split("/");
-            idAndTechType = smtUrlAsArray[smtUrlAsArray.length - 2];
-        } else {  // it isn't a verifiable tag
+        InteractionUrl parsed = InteractionUrl.parse(url);
+        if (!parsed.hasMTagId()) {  // it isn't a verifiable tag
             return "";
         }
-        String mTagId = idAndTechType.substring(1);
-        return convertIdToBase10(mTagId);
+        // decoded in place, the ID is never copied out of the URL
+        long id = MTagIdCodec.decode(url, parsed.getMTagIdStart(), parsed.getMTagIdEnd());
+        return id == MTagIdCodec.INVALID ? "" : Long.toString(id);
     }
 
     /**
      * Accepts the mTag ID discovered by parseMtagID and attempts to convert it to base 10.
+     * Interactions whose ID can't be converted fail with {@link #ERROR_NON_AUTH_URL}.
      * @param mTagId Base 36 or base 10 mTag ID.
-     * @return Base 10 mTag ID as String.
+     * @return Base 10 mTag ID as String, or null if it isn't a valid 64 bit ID.
      */
     protected String convertIdToBase10(String mTagId) {
-        // assume its b10 even though it probably isn't
-        int idAsBase10;
-
-        try {
-            idAsBase10 = Integer.parseInt(mTagId);
-        } catch (NumberFormatException e) {
-            // is base36 like we expected
-            idAsBase10 = Integer.parseInt(mTagId, 36);
-        }
-        return "" + idAsBase10;
+        long id = MTagIdCodec.decode(mTagId);
+        return id == MTagIdCodec.INVALID ? null : Long.toString(id);
     }
 }
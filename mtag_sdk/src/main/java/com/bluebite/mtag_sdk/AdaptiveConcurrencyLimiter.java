@@ -0,0 +1,306 @@
+//Copyright 2018 Blue Bite LLC.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+
+package com.bluebite.mtag_sdk;
+
+
+import java.util.ArrayDeque;
+import java.util.Map;
+
+/**
+ * Bounds the interactions requests in flight with a limit that follows what the network and
+ * server can take, see API.setConcurrencyLimiter.
+ * <p>
+ * The limit is adjusted additive increase, multiplicative decrease style.  While responses
+ * come back within latencyTolerance times the lowest recent latency, and the limit is actually
+ * being used, it grows by about one per limit responses.  A response slower than that, or a
+ * 429 or 5xx status, cuts it by backoffRatio, at most once per lowest latency so one burst of
+ * errors only counts once.  Missing responses leave the limit alone since they point at the
+ * device's connection rather than the server.  Requests over the limit wait, oldest first.
+ */
+public class AdaptiveConcurrencyLimiter {
+
+    // the baseline latency is the minimum over the current and previous window, so it can
+    // rise again when the network gets lastingly slower.  Windows are long so a stretch of
+    // overload doesn't quietly become the new normal.
+    private static final long BASELINE_WINDOW_NANOS = 60L * 1000 * 1000 * 1000;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private volatile double latencyTolerance = 1.5;
+    private volatile double backoffRatio = 0.9;
+
+    // guarded by this
+    private double limit;
+    private int inFlight;
+    private final ArrayDeque<Pending> waiting = new ArrayDeque<>();
+    private long windowMinNanos = Long.MAX_VALUE;
+    private long previousWindowMinNanos = Long.MAX_VALUE;
+    private long windowStartNanos;
+    private boolean sampled;
+    private long lastBackoffNanos;
+    private boolean backedOff;
+    private long increases;
+    private long decreases;
+
+    /**
+     * @param initialLimit Requests allowed in flight before any feedback arrived.
+     * @param minLimit Lowest the limit goes.
+     * @param maxLimit Highest the limit goes.
+     */
+    public AdaptiveConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit) {
+        if (minLimit < 1 || maxLimit < minLimit) {
+            throw new IllegalArgumentException("need 1 <= minLimit <= maxLimit");
+        }
+        if (initialLimit < minLimit || initialLimit > maxLimit) {
+            throw new IllegalArgumentException("initialLimit must be between min and max");
+        }
+        this.limit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+    }
+
+    /**
+     * @param latencyTolerance How many times the lowest recent latency a response may take
+     *                         before it counts as a sign of overload, 1.5 by default.
+     * @param backoffRatio Factor the limit is multiplied by on overload, 0.9 by default.
+     */
+    public void setFeedback(double latencyTolerance, double backoffRatio) {
+        if (latencyTolerance <= 1) {
+            throw new IllegalArgumentException("latencyTolerance must be above 1");
+        }
+        if (backoffRatio <= 0 || backoffRatio >= 1) {
+            throw new IllegalArgumentException("backoffRatio must be between 0 and 1");
+        }
+        this.latencyTolerance = latencyTolerance;
+        this.backoffRatio = backoffRatio;
+    }
+
+    /**
+     * @return Requests currently allowed in flight.
+     */
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    public synchronized int getInFlightCount() {
+        return inFlight;
+    }
+
+    /**
+     * @return Requests waiting for the limit to allow them.
+     */
+    public synchronized int getWaitingCount() {
+        return waiting.size();
+    }
+
+    /**
+     * @return Lowest recent response time, or -1 before the first response.
+     */
+    public synchronized long getBaselineLatencyNanos() {
+        long baseline = Math.min(windowMinNanos, previousWindowMinNanos);
+        return baseline == Long.MAX_VALUE ? -1 : baseline;
+    }
+
+    /**
+     * @return Times the limit was raised by one whole request.
+     */
+    public synchronized long getIncreaseCount() {
+        return increases;
+    }
+
+    /**
+     * @return Times the limit was cut.
+     */
+    public synchronized long getDecreaseCount() {
+        return decreases;
+    }
+
+    /**
+     * @return Current time in nanoseconds, overridden by tests to simulate latency.
+     */
+    protected long now() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Sends a request through the transport once the limit allows it.
+     * @return Handle that cancels the request whether it was sent yet or not.
+     */
+    InteractionTransport.Call post(InteractionTransport transport, String url,
+                                   Map<String, String> params,
+                                   InteractionTransport.Callback callback) {
+        Pending pending = new Pending(transport, url, params, callback);
+        synchronized (this) {
+            if (inFlight >= (int) limit || !waiting.isEmpty()) {
+                waiting.add(pending);
+                return pending;
+            }
+            inFlight++;
+        }
+        pending.send();
+        return pending;
+    }
+
+    /**
+     * Frees a request's slot, learns from its outcome and sends whatever now fits.
+     * @param statusCode Response status, 0 when there was none, -1 when it was cancelled.
+     */
+    private void release(long sentNanos, int statusCode) {
+        long latency = now() - sentNanos;
+        ArrayDeque<Pending> ready = null;
+        synchronized (this) {
+            int used = inFlight--;
+            if (statusCode > 0) {
+                learn(latency, statusCode, used);
+            }
+            while (!waiting.isEmpty() && inFlight < (int) limit) {
+                if (ready == null) {
+                    ready = new ArrayDeque<>();
+                }
+                ready.add(waiting.poll());
+                inFlight++;
+            }
+        }
+        if (ready != null) {
+            for (Pending pending : ready) {
+                pending.send();
+            }
+        }
+    }
+
+    // guarded by this
+    private void learn(long latency, int statusCode, int used) {
+        long at = now();
+        if (!sampled) {
+            sampled = true;
+            windowStartNanos = at;
+        } else if (at - windowStartNanos >= BASELINE_WINDOW_NANOS) {
+            previousWindowMinNanos = windowMinNanos;
+            windowMinNanos = Long.MAX_VALUE;
+            windowStartNanos = at;
+        }
+        if (latency < windowMinNanos) {
+            windowMinNanos = latency;
+        }
+        long baseline = Math.min(windowMinNanos, previousWindowMinNanos);
+
+        boolean overloaded = statusCode == 429 || statusCode >= 500
+                || latency > baseline * latencyTolerance;
+        if (overloaded) {
+            if (!backedOff || at - lastBackoffNanos >= baseline) {
+                limit = Math.max(minLimit, limit * backoffRatio);
+                lastBackoffNanos = at;
+                backedOff = true;
+                decreases++;
+            }
+        } else if (used >= (int) limit / 2 && limit < maxLimit) {
+            // only grow a limit that is being used, an idle client proves nothing
+            int before = (int) limit;
+            limit = Math.min(maxLimit, limit + 1 / limit);
+            if ((int) limit > before) {
+                increases++;
+            }
+        }
+    }
+
+    /**
+     * A request waiting for or holding a slot.
+     */
+    private class Pending implements InteractionTransport.Call, InteractionTransport.Callback {
+        private final InteractionTransport transport;
+        private final String url;
+        private final Map<String, String> params;
+        private final InteractionTransport.Callback callback;
+
+        // guarded by this
+        private InteractionTransport.Call call;
+        private long sentNanos;
+        private boolean sent;
+        private boolean done;
+
+        Pending(InteractionTransport transport, String url, Map<String, String> params,
+                InteractionTransport.Callback callback) {
+            this.transport = transport;
+            this.url = url;
+            this.params = params;
+            this.callback = callback;
+        }
+
+        void send() {
+            synchronized (this) {
+                if (done) {
+                    // cancelled while waiting, pass the slot on
+                    release(now(), -1);
+                    return;
+                }
+                sent = true;
+                sentNanos = now();
+            }
+            InteractionTransport.Call started = transport.post(url, params, this);
+            boolean cancelled;
+            synchronized (this) {
+                call = started;
+                cancelled = done && started != null;
+            }
+            if (cancelled) {
+                started.cancel();
+            }
+        }
+
+        /**
+         * @return True the first time the request finishes, holding its slot if it was sent.
+         */
+        private synchronized boolean finish() {
+            if (done) {
+                return false;
+            }
+            done = true;
+            return sent;
+        }
+
+        @Override
+        public void onResponse(int statusCode, Map<String, String> headers, byte[] body) {
+            if (finish()) {
+                release(sentNanos, statusCode);
+            }
+            callback.onResponse(statusCode, headers, body);
+        }
+
+        @Override
+        public void onFailure(Throwable cause) {
+            if (finish()) {
+                release(sentNanos, 0);
+            }
+            callback.onFailure(cause);
+        }
+
+        @Override
+        public void cancel() {
+            boolean holdsSlot = finish();
+            InteractionTransport.Call started;
+            synchronized (this) {
+                started = call;
+            }
+            if (holdsSlot) {
+                release(sentNanos, -1);
+            }
+            if (started != null) {
+                started.cancel();
+            }
+        }
+    }
+}
@@ -0,0 +1,232 @@
+//Copyright 2018 Blue Bite LLC.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package com.bluebite.mtag_sdk;
+
+
+import com.loopj.android.http.AsyncHttpClient;
+import com.loopj.android.http.AsyncHttpResponseHandler;
+import com.loopj.android.http.RequestHandle;
+import com.loopj.android.http.RequestParams;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import cz.msebera.android.httpclient.Header;
+import cz.msebera.android.httpclient.HttpConnection;
+import cz.msebera.android.httpclient.HttpRequest;
+import cz.msebera.android.httpclient.HttpRequestInterceptor;
+import cz.msebera.android.httpclient.HttpResponse;
+import cz.msebera.android.httpclient.client.HttpClient;
+import cz.msebera.android.httpclient.conn.ConnectionKeepAliveStrategy;
+import cz.msebera.android.httpclient.message.BasicHeader;
+import cz.msebera.android.httpclient.protocol.HttpContext;
+import cz.msebera.android.httpclient.protocol.HttpCoreContext;
+
+/**
+ * Default InteractionTransport, backed by an AsyncHttpClient and its pool of connections.
+ * API instances use one shared transport unless told otherwise, so every instance reuses the
+ * same kept-alive connections to the interactions route.  The shared transport and its thread
+ * pool are only created when the first request is sent or {@link #prewarm} is called.
+ * Callbacks arrive on the client's network threads, with
+ * InteractionTransport.HEADER_CONNECTION_REUSED added to the response headers.
+ */
+public class AsyncHttpInteractionTransport implements HeaderInteractionTransport {
+
+    public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 10000;
+    public static final int DEFAULT_RESPONSE_TIMEOUT_MILLIS = 10000;
+    public static final int DEFAULT_MAX_CONNECTIONS = 10;
+    public static final long DEFAULT_KEEP_ALIVE_MILLIS = 60000;
+
+    // built on first use, not when API is loaded
+    private static class SharedHolder {
+        static final AsyncHttpInteractionTransport SHARED = new AsyncHttpInteractionTransport(
+                DEFAULT_CONNECT_TIMEOUT_MILLIS, DEFAULT_RESPONSE_TIMEOUT_MILLIS,
+                DEFAULT_MAX_CONNECTIONS, DEFAULT_KEEP_ALIVE_MILLIS);
+    }
+
+    private final AsyncHttpClient client = new AsyncHttpClient();
+    private final AtomicBoolean warming = new AtomicBoolean();
+
+    // callbacks run on the thread that executed the request, so the interceptor can hand the
+    // connection state over through a thread local
+    private final ThreadLocal<Boolean> connectionReused = new ThreadLocal<>();
+
+    /**
+     * @return The transport shared by API instances created without one.
+     */
+    public static AsyncHttpInteractionTransport getShared() {
+        return SharedHolder.SHARED;
+    }
+
+    /**
+     * @param connectTimeoutMillis How long to wait for a connection to be established.
+     * @param responseTimeoutMillis How long to wait for the server to respond.
+     * @param maxConnections Most simultaneous connections in the pool.
+     * @param keepAliveMillis How long an idle connection stays in the pool when the server
+     *                        doesn't say otherwise.
+     */
+    @SuppressWarnings("deprecation") // loopj 1.4.9 only exposes these HttpClient APIs
+    public AsyncHttpInteractionTransport(int connectTimeoutMillis, int responseTimeoutMillis,
+                                         int maxConnections, final long keepAliveMillis) {
+        client.setConnectTimeout(connectTimeoutMillis);
+        client.setResponseTimeout(responseTimeoutMillis);
+        client.setMaxConnections(maxConnections);
+
+        // deprecated types are named in full below, an import would warn outside the suppression
+        HttpClient httpClient = client.getHttpClient();
+        // setMaxConnections only updates params the pool read when it was built
+        if (httpClient.getConnectionManager() instanceof
+                cz.msebera.android.httpclient.impl.conn.tsccm.ThreadSafeClientConnManager) {
+            cz.msebera.android.httpclient.impl.conn.tsccm.ThreadSafeClientConnManager pool =
+                    (cz.msebera.android.httpclient.impl.conn.tsccm.ThreadSafeClientConnManager)
+                            httpClient.getConnectionManager();
+            pool.setMaxTotal(maxConnections);
+            pool.setDefaultMaxPerRoute(maxConnections);
+        }
+        if (httpClient instanceof cz.msebera.android.httpclient.impl.client.AbstractHttpClient) {
+            cz.msebera.android.httpclient.impl.client.AbstractHttpClient abstractClient =
+                    (cz.msebera.android.httpclient.impl.client.AbstractHttpClient) httpClient;
+            final ConnectionKeepAliveStrategy serverStrategy =
+                    abstractClient.getConnectionKeepAliveStrategy();
+            abstractClient.setKeepAliveStrategy(new ConnectionKeepAliveStrategy() {
+                @Override
+                public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+                    // honor a Keep-Alive header if the server sent one
+                    long duration = serverStrategy.getKeepAliveDuration(response, context);
+                    return duration > 0 ? duration : keepAliveMillis;
+                }
+            });
+            abstractClient.addRequestInterceptor(new HttpRequestInterceptor() {
+                @Override
+                public void process(HttpRequest request, HttpContext context) {
+                    Object connection = context.getAttribute(HttpCoreContext.HTTP_CONNECTION);
+                    if (connection instanceof HttpConnection) {
+                        // requests already sent on this connection mean it was kept alive
+                        connectionReused.set(((HttpConnection) connection).getMetrics()
+                                .getRequestCount() > 0);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Resolves the host and opens a connection to it in the background, so the first real
+     * request finds a warm connection in the pool.  Calls made while a warm up is running
+     * are ignored.
+     * @param url URL on the host to connect to, e.g. the interactions route.
+     */
+    public void prewarm(String url) {
+        if (!warming.compareAndSet(false, true)) {
+            return;
+        }
+        AsyncHttpResponseHandler responseHandler = new AsyncHttpResponseHandler() {
+            @Override
+            public void onSuccess(int statusCode, Header[] headers, byte[] responseBody) {
+                // the interceptor flagged this thread too, don't leave that to a later request
+                connectionReused.remove();
+                warming.set(false);
+            }
+
+            @Override
+            public void onFailure(int statusCode, Header[] headers, byte[] responseBody,
+                                  Throwable error) {
+                // any answer, even an error status, leaves a kept-alive connection behind
+                connectionReused.remove();
+                warming.set(false);
+            }
+        };
+        responseHandler.setUsePoolThread(true);
+        client.head(url, responseHandler);
+    }
+
+    /**
+     * @return The underlying client, for settings this class doesn't expose.
+     */
+    public AsyncHttpClient getClient() {
+        return client;
+    }
+
+    @Override
+    public Call post(String url, Map<String, String> params, Callback callback) {
+        return post(url, params, null, callback);
+    }
+
+    @Override
+    public Call post(String url, Map<String, String> params, Map<String, String> headers,
+                     final Callback callback) {
+        AsyncHttpResponseHandler responseHandler = new AsyncHttpResponseHandler() {
+            @Override
+            public void onSuccess(int statusCode, Header[] headers, byte[] responseBody) {
+                callback.onResponse(statusCode, responseHeaders(headers), body(responseBody));
+            }
+
+            @Override
+            public void onFailure(int statusCode, Header[] headers, byte[] responseBody,
+                                  Throwable error) {
+                if (statusCode == 0) {
+                    connectionReused.remove();
+                    callback.onFailure(error);
+                } else {
+                    callback.onResponse(statusCode, responseHeaders(headers),
+                            body(responseBody));
+                }
+            }
+        };
+        // callbacks stay on the network thread, API decides where decoding and dispatch run
+        responseHandler.setUsePoolThread(true);
+
+        final RequestHandle handle = headers == null || headers.isEmpty()
+                ? client.post(url, new RequestParams(params), responseHandler)
+                : client.post(null, url, toHeaders(headers), new RequestParams(params), null,
+                        responseHandler);
+        return new Call() {
+            @Override
+            public void cancel() {
+                handle.cancel(true);
+            }
+        };
+    }
+
+    private static byte[] body(byte[] responseBody) {
+        return responseBody != null ? responseBody : new byte[0];
+    }
+
+    private static Header[] toHeaders(Map<String, String> headers) {
+        Header[] array = new Header[headers.size()];
+        int i = 0;
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            array[i++] = new BasicHeader(header.getKey(), header.getValue());
+        }
+        return array;
+    }
+
+    private Map<String, String> responseHeaders(Header[] headers) {
+        Map<String, String> map = new HashMap<>();
+        if (headers != null) {
+            for (Header header : headers) {
+                map.put(header.getName(), header.getValue());
+            }
+        }
+        Boolean reused = connectionReused.get();
+        if (reused != null) {
+            connectionReused.remove();
+            map.put(HEADER_CONNECTION_REUSED, reused.toString());
+        }
+        return map;
+    }
+}
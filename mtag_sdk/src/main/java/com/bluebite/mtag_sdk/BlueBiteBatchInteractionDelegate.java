@@ -0,0 +1,49 @@
+//Copyright 2018 Blue Bite LLC.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package com.bluebite.mtag_sdk;
+
+
+import org.json.JSONObject;
+
+/**
+ * Implementation which will be called by the SDK for each URL passed to
+ * API.interactionsWereReceived, and once each batch of those URLs has finished.
+ */
+public interface BlueBiteBatchInteractionDelegate extends BlueBiteInteractionDelegate {
+    /**
+     * Called when one Interaction of a batch has been successfully registered.
+     * @param url Interaction URL the results belong to.
+     * @param results Abbreviated payload returned by the authentication API.
+     */
+    void interactionDataWasReceived(String url, JSONObject results);
+
+    /**
+     * Called when one Interaction of a batch has failed to be registered.  The other URLs of
+     * the batch are unaffected.
+     * @param url Interaction URL that failed.
+     * @param error Basic description of what went wrong.
+     */
+    void interactionDidFail(String url, String error);
+
+    /**
+     * Called once every URL of a batch has either succeeded or failed.
+     * @param batchIndex Index of the batch, starting at 0.
+     * @param batchCount Number of batches the URLs were grouped into.
+     * @param succeeded Number of URLs in the batch that were registered.
+     * @param failed Number of URLs in the batch that failed.
+     */
+    void batchWasCompleted(int batchIndex, int batchCount, int succeeded, int failed);
+}
@@ -0,0 +1,246 @@
+//Copyright 2018 Blue Bite LLC.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+
+package com.bluebite.mtag_sdk;
+
+
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Bounded intake for taps arriving faster than the interactions route answers them, e.g. from
+ * tunnel readers or conveyor scanning, see API.setBurstMode.
+ * <p>
+ * While burst mode is on, interactionWasReceived only queues the URL.  At most
+ * maxConcurrentRequests of the queued URLs are verified at a time, the next one starting as
+ * soon as a result arrives, and results reach the API's delegate as usual.  When the queue is
+ * full the {@link Policy} decides which tap gives way; taps that are dropped fail with
+ * API.ERROR_BURST_REJECTED.
+ */
+public class BurstMode {
+
+    /**
+     * What happens to a tap arriving while the queue is full.
+     */
+    public enum Policy {
+        /** The oldest queued tap is dropped to make room. */
+        DROP_OLDEST,
+        /** The new tap is dropped. */
+        DROP_NEWEST,
+        /**
+         * A tap whose URL is already queued is merged into it, so the URL is verified and
+         * reported once.  This happens whether or not the queue is full.  Other taps arriving
+         * while the queue is full are dropped.
+         */
+        MERGE_DUPLICATES,
+        /**
+         * interactionWasReceived waits for room in the queue.  Never use this on the main
+         * thread.
+         */
+        BLOCK
+    }
+
+    private final int capacity;
+    private final int maxConcurrentRequests;
+    private final Policy policy;
+
+    private API api;
+
+    // guarded by this
+    private final ArrayDeque<String> queue;
+    private final Set<String> queued = new HashSet<>();
+    private int inFlight;
+    private boolean draining;
+    private int peakDepth;
+    private long accepted;
+    private long rejected;
+    private long merged;
+
+    // frees the slot of every finished tap and starts the next one
+    private final InteractionFuture.Listener slotListener = new InteractionFuture.Listener() {
+        @Override
+        public void onComplete(InteractionFuture future) {
+            synchronized (BurstMode.this) {
+                inFlight--;
+            }
+            drain();
+        }
+    };
+
+    /**
+     * @param capacity Most taps waiting to be sent.
+     * @param maxConcurrentRequests Most taps being verified at once.
+     * @param policy What happens to taps arriving while the queue is full.
+     */
+    public BurstMode(int capacity, int maxConcurrentRequests, Policy policy) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1");
+        }
+        if (maxConcurrentRequests < 1) {
+            throw new IllegalArgumentException("maxConcurrentRequests must be at least 1");
+        }
+        if (policy == null) {
+            throw new IllegalArgumentException("policy must not be null");
+        }
+        this.capacity = capacity;
+        this.maxConcurrentRequests = maxConcurrentRequests;
+        this.policy = policy;
+        this.queue = new ArrayDeque<>(capacity);
+    }
+
+    /**
+     * Binds this burst mode to the API whose taps it queues.
+     */
+    synchronized void attach(API api) {
+        if (this.api != null && this.api != api) {
+            throw new IllegalStateException("BurstMode is already used by another API");
+        }
+        this.api = api;
+    }
+
+    /**
+     * Queues a tap, applying the policy if the queue is full.
+     * @param url Interaction URL that was tapped.
+     */
+    void offer(String url) {
+        String dropped = null;
+        boolean rejectNew = false;
+        synchronized (this) {
+            if (policy == Policy.MERGE_DUPLICATES && queued.contains(url)) {
+                merged++;
+                return;
+            }
+            if (queue.size() >= capacity) {
+                switch (policy) {
+                    case DROP_OLDEST:
+                        dropped = queue.poll();
+                        queued.remove(dropped);
+                        break;
+                    case BLOCK:
+                        try {
+                            while (queue.size() >= capacity) {
+                                wait();
+                            }
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            rejectNew = true;
+                        }
+                        break;
+                    default:
+                        rejectNew = true;
+                }
+                if (rejectNew) {
+                    dropped = url;
+                }
+                if (dropped != null) {
+                    rejected++;
+                }
+            }
+            if (!rejectNew) {
+                queue.add(url);
+                queued.add(url);
+                accepted++;
+                peakDepth = Math.max(peakDepth, queue.size());
+            }
+        }
+        if (dropped != null) {
+            api.rejectInteraction(dropped, getQueueDepth());
+        }
+        drain();
+    }
+
+    /**
+     * Starts queued taps while request slots are free.  Taps answered synchronously complete
+     * inside verify(), so only the outermost call loops instead of recursing per tap.
+     */
+    private void drain() {
+        synchronized (this) {
+            if (draining) {
+                return;
+            }
+            draining = true;
+        }
+        while (true) {
+            String url;
+            synchronized (this) {
+                if (inFlight >= maxConcurrentRequests || queue.isEmpty()) {
+                    draining = false;
+                    return;
+                }
+                url = queue.poll();
+                queued.remove(url);
+                inFlight++;
+                notifyAll();
+            }
+            api.submitQueuedInteraction(url).addListener(slotListener);
+        }
+    }
+
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int getMaxConcurrentRequests() {
+        return maxConcurrentRequests;
+    }
+
+    /**
+     * @return Taps waiting to be sent.
+     */
+    public synchronized int getQueueDepth() {
+        return queue.size();
+    }
+
+    /**
+     * @return Most taps that were waiting at once.
+     */
+    public synchronized int getPeakQueueDepth() {
+        return peakDepth;
+    }
+
+    /**
+     * @return Taps being verified right now.
+     */
+    public synchronized int getInFlightCount() {
+        return inFlight;
+    }
+
+    /**
+     * @return Taps that were queued.
+     */
+    public synchronized long getAcceptedCount() {
+        return accepted;
+    }
+
+    /**
+     * @return Taps dropped because the queue was full.
+     */
+    public synchronized long getRejectedCount() {
+        return rejected;
+    }
+
+    /**
+     * @return Taps merged into an already queued tap of the same URL.
+     */
+    public synchronized long getMergedCount() {
+        return merged;
+    }
+}
@@ -0,0 +1,764 @@
+//Copyright 2018 Blue Bite LLC.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+
+package com.bluebite.mtag_sdk;
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
+
+/**
+ * Opt-in, on-disk cache of interactions responses for tags whose requests carry no one-time
+ * data, so campaigns and location survive app restarts and repeat taps skip the download,
+ * see API.setDiskCache.
+ * <p>
+ * Each response body is kept in its own file next to a memory-mapped index of fixed size
+ * slots holding the key hash, expiry, last access and size of every entry, so lookups that
+ * miss and eviction decisions never touch the entry files.  Entries are evicted least
+ * recently used first once maxEntries or maxBytes is exceeded.
+ * <p>
+ * An entry is fresh for the server's Cache-Control max-age, or defaultTtlMillis without one.
+ * A fresh entry is served without a request.  A stale one is still served right away, for up
+ * to maxStaleMillis past its expiry, while a background request revalidates it with the
+ * stored ETag in If-None-Match; a 304 extends the entry and a 200 replaces it.
+ * <p>
+ * Lookups and writes run on a storage executor, never on the thread sending the request, and
+ * the lock guarding the index is never held while entry files are read or written.
+ */
+public class DiskInteractionCache {
+
+    private static final int INDEX_MAGIC = 0x6d444931; // "mDI1"
+    private static final int ENTRY_MAGIC = 0x6d444531; // "mDE1"
+    private static final String INDEX_NAME = "index";
+    private static final String ENTRY_SUFFIX = ".e";
+    private static final int HEADER_BYTES = 16;
+
+    private static final FilenameFilter ENTRY_FILES = new FilenameFilter() {
+        @Override
+        public boolean accept(File dir, String name) {
+            return name.endsWith(ENTRY_SUFFIX) || name.endsWith(".tmp");
+        }
+    };
+
+    // slot layout, USED is 0 for an empty slot
+    private static final int SLOT_BYTES = 32;
+    private static final int HASH = 0;
+    private static final int EXPIRES = 8;
+    private static final int ACCESSED = 16;
+    private static final int SIZE = 24;
+    private static final int USED = 28;
+
+    private final File directory;
+    private final long maxBytes;
+    private final int maxEntries;
+    private final long defaultTtlMillis;
+    private final long maxStaleMillis;
+    private final int mask;
+    private volatile Executor executor = InteractionExecutors.storage();
+
+    // guarded by this
+    private final MappedByteBuffer index;
+    private final Set<String> revalidating = new HashSet<>();
+    // entry files of removed slots, deleted once the lock is released
+    private final List<File> removedFiles = new ArrayList<>();
+    private int count;
+    private long bytes;
+    private long accessSequence;
+    private long hits;
+    private long staleHits;
+    private long misses;
+    private long revalidations;
+
+    /**
+     * A cached response body.
+     */
+    static class Entry {
+        final byte[] body;
+        final String etag;
+        final boolean fresh;
+
+        Entry(byte[] body, String etag, boolean fresh) {
+            this.body = body;
+            this.etag = etag;
+            this.fresh = fresh;
+        }
+    }
+
+    /**
+     * Opens the cache, keeping whatever a previous process stored.
+     * @param directory Directory holding the cache's files, created if missing.
+     * @param maxBytes Most bytes of response bodies kept.
+     * @param maxEntries Most responses kept.
+     * @param defaultTtlMillis How long a response is fresh when the server doesn't say.
+     * @param maxStaleMillis How long past its expiry a response is still served while it is
+     *                       revalidated.
+     * @throws IOException If the directory or its index can't be read or written.
+     */
+    public DiskInteractionCache(File directory, long maxBytes, int maxEntries,
+                                long defaultTtlMillis, long maxStaleMillis) throws IOException {
+        if (maxEntries < 1 || maxEntries > 1 << 20) {
+            throw new IllegalArgumentException("maxEntries must be between 1 and 2^20");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can't create cache directory " + directory);
+        }
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.maxEntries = maxEntries;
+        this.defaultTtlMillis = defaultTtlMillis;
+        this.maxStaleMillis = maxStaleMillis;
+
+        // keep the table at most half full so probes stay short
+        int slots = Integer.highestOneBit(maxEntries) << 2;
+        this.mask = slots - 1;
+        this.index = openIndex(slots);
+        for (int slot = 0; slot < slots; slot++) {
+            if (used(slot)) {
+                count++;
+                bytes += index.getInt(offset(slot) + SIZE);
+                accessSequence = Math.max(accessSequence, index.getLong(offset(slot) + ACCESSED));
+            }
+        }
+        deleteOrphans();
+        evict();
+        deleteRemovedFiles();
+    }
+
+    /**
+     * Sets where lookups and writes run.  The default is a shared background thread.
+     * @param executor Executor running one task at a time, as entry files of the same key
+     *                 must not be written concurrently, or null for the default.
+     */
+    public void setExecutor(Executor executor) {
+        this.executor = executor != null ? executor : InteractionExecutors.storage();
+    }
+
+    /**
+     * Deletes entry files the index doesn't know about, left behind by a crash between
+     * writing an entry and indexing it.
+     */
+    private void deleteOrphans() {
+        File[] files = directory.listFiles(ENTRY_FILES);
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(ENTRY_SUFFIX)) {
+                try {
+                    String hex = name.substring(0, name.length() - ENTRY_SUFFIX.length());
+                    if (find(parseHex(hex)) >= 0) {
+                        continue;
+                    }
+                } catch (NumberFormatException e) {
+                    // not one of ours, fall through and delete it
+                }
+            }
+            file.delete();
+        }
+    }
+
+    private static long parseHex(String hex) {
+        if (hex.isEmpty() || hex.length() > 16) {
+            throw new NumberFormatException(hex);
+        }
+        long value = 0;
+        for (int i = 0; i < hex.length(); i++) {
+            int digit = Character.digit(hex.charAt(i), 16);
+            if (digit < 0) {
+                throw new NumberFormatException(hex);
+            }
+            value = value << 4 | digit;
+        }
+        return value;
+    }
+
+    private MappedByteBuffer openIndex(int slots) throws IOException {
+        File file = new File(directory, INDEX_NAME);
+        long length = HEADER_BYTES + (long) slots * SLOT_BYTES;
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            boolean valid = raf.length() == length && raf.readInt() == INDEX_MAGIC
+                    && raf.readInt() == slots;
+            if (!valid) {
+                // written by another version or with other limits, start over
+                deleteEntryFiles();
+                raf.setLength(0);
+                raf.setLength(length);
+                raf.seek(0);
+                raf.writeInt(INDEX_MAGIC);
+                raf.writeInt(slots);
+            }
+            // the mapping stays valid after the file is closed
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private void deleteEntryFiles() {
+        File[] files = directory.listFiles(ENTRY_FILES);
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * @param params Request parameters.
+     * @return True if responses to this request may be cached, i.e. it carries no VID.
+     */
+    public static boolean isCacheable(Map<String, String> params) {
+        return !params.containsKey("vid");
+    }
+
+    /**
+     * @param url Interactions route.
+     * @param params Request parameters, which identify the tag.
+     * @return Key the response is stored under.
+     */
+    static String keyFor(String url, Map<String, String> params) {
+        StringBuilder key = new StringBuilder(url).append('?');
+        for (Map.Entry<String, String> param : new TreeMap<>(params).entrySet()) {
+            key.append(param.getKey()).append('=').append(param.getValue()).append('&');
+        }
+        return key.toString();
+    }
+
+    /**
+     * Sends a request through the cache: fresh entries are answered from disk, stale ones are
+     * answered from disk and revalidated in the background, and misses go to the network and
+     * are stored.  The lookup runs on the storage executor, so answers from disk arrive there.
+     * @param downstream Transport sending requests that can't be answered from disk.
+     * @return Call cancelling the lookup or the request it started.
+     */
+    InteractionTransport.Call post(final HeaderInteractionTransport downstream, final String url,
+                                   final Map<String, String> params,
+                                   final InteractionTransport.Callback callback) {
+        if (!isCacheable(params)) {
+            return downstream.post(url, params, null, callback);
+        }
+        final LookupCall call = new LookupCall();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!call.isCancelled()) {
+                    call.started(lookup(downstream, url, params, callback));
+                }
+            }
+        });
+        return call;
+    }
+
+    /**
+     * @return The call sent to the network for a miss, null if answered from disk.
+     */
+    private InteractionTransport.Call lookup(HeaderInteractionTransport downstream, String url,
+                                             Map<String, String> params,
+                                             InteractionTransport.Callback callback) {
+        String key = keyFor(url, params);
+        Entry entry = get(key);
+        if (entry == null) {
+            return downstream.post(url, params, null, storingCallback(key, callback));
+        }
+
+        Map<String, String> headers = entry.etag == null
+                ? Collections.<String, String>emptyMap()
+                : Collections.singletonMap("ETag", entry.etag);
+        callback.onResponse(200, headers, entry.body);
+        if (!entry.fresh) {
+            synchronized (this) {
+                if (!revalidating.add(key)) {
+                    return null;
+                }
+                revalidations++;
+            }
+            Map<String, String> conditional = entry.etag == null ? null
+                    : Collections.singletonMap("If-None-Match", entry.etag);
+            downstream.post(url, params, conditional, storingCallback(key, null));
+        }
+        return null;
+    }
+
+    /**
+     * Wraps a callback so 2xx responses are stored and 304 responses extend the entry, on the
+     * storage executor.
+     * @param callback Callback to pass the response on to, null for background revalidation.
+     */
+    private InteractionTransport.Callback storingCallback(
+            final String key, final InteractionTransport.Callback callback) {
+        return new InteractionTransport.Callback() {
+            @Override
+            public void onResponse(final int statusCode, final Map<String, String> headers,
+                                   final byte[] body) {
+                final long ttl = ttlMillis(headers);
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (statusCode >= 200 && statusCode < 300 && ttl >= 0) {
+                            put(key, body, header(headers, "ETag"), ttl);
+                        } else if (statusCode == 304) {
+                            refresh(key, ttl);
+                        }
+                        finish(key);
+                    }
+                });
+                if (callback != null) {
+                    callback.onResponse(statusCode, headers, body);
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable cause) {
+                finish(key);
+                if (callback != null) {
+                    callback.onFailure(cause);
+                }
+            }
+        };
+    }
+
+    private synchronized void finish(String key) {
+        revalidating.remove(key);
+    }
+
+    /**
+     * @return Freshness lifetime from Cache-Control, the default without one, or -1 if the
+     * response must not be stored.
+     */
+    private long ttlMillis(Map<String, String> headers) {
+        String cacheControl = header(headers, "Cache-Control");
+        if (cacheControl == null) {
+            return defaultTtlMillis;
+        }
+        long ttl = defaultTtlMillis;
+        for (String directive : cacheControl.split(",")) {
+            directive = directive.trim().toLowerCase();
+            if (directive.equals("no-store")) {
+                return -1;
+            } else if (directive.equals("no-cache")) {
+                ttl = 0;
+            } else if (directive.startsWith("max-age=")) {
+                try {
+                    ttl = Long.parseLong(directive.substring(8).trim()) * 1000;
+                } catch (NumberFormatException e) {
+                    // keep the default
+                }
+            }
+        }
+        return ttl;
+    }
+
+    private static String header(Map<String, String> headers, String name) {
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            if (name.equalsIgnoreCase(header.getKey())) {
+                return header.getValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param key Key the response was stored under.
+     * @return The entry if it is fresh or may still be served stale, null otherwise.
+     */
+    Entry get(String key) {
+        long hash = hash(key);
+        boolean expired;
+        synchronized (this) {
+            int slot = find(hash);
+            if (slot < 0) {
+                misses++;
+                return null;
+            }
+            expired = currentTimeMillis() - index.getLong(offset(slot) + EXPIRES)
+                    > maxStaleMillis;
+            if (expired) {
+                remove(slot);
+                misses++;
+            }
+        }
+        if (expired) {
+            deleteRemovedFiles();
+            return null;
+        }
+
+        Entry entry = readEntry(key, hash);
+        boolean fresh;
+        synchronized (this) {
+            int slot = find(hash);
+            if (entry == null || slot < 0) {
+                // lost, damaged, a different key with the same hash, or removed meanwhile
+                if (slot >= 0) {
+                    remove(slot);
+                }
+                misses++;
+                entry = null;
+                fresh = false;
+            } else {
+                index.putLong(offset(slot) + ACCESSED, ++accessSequence);
+                fresh = currentTimeMillis() < index.getLong(offset(slot) + EXPIRES);
+                if (fresh) {
+                    hits++;
+                } else {
+                    staleHits++;
+                }
+            }
+        }
+        if (entry == null) {
+            deleteRemovedFiles();
+            return null;
+        }
+        return new Entry(entry.body, entry.etag, fresh);
+    }
+
+    /**
+     * Stores a response, replacing any earlier one for the key.
+     * @return False if it couldn't be written, in which case it just isn't cached.
+     */
+    boolean put(String key, byte[] body, String etag, long ttlMillis) {
+        long hash = hash(key);
+        synchronized (this) {
+            int slot = find(hash);
+            if (slot >= 0) {
+                remove(slot);
+            }
+        }
+        deleteRemovedFiles();
+        long size;
+        try {
+            size = writeEntry(key, hash, body, etag);
+        } catch (IOException e) {
+            return false;
+        }
+        synchronized (this) {
+            int slot = find(hash);
+            if (slot >= 0) {
+                // stored again while this one was written, keep the file just written
+                remove(slot);
+                removedFiles.remove(entryFile(hash));
+            }
+            slot = -find(hash) - 1;
+            int offset = offset(slot);
+            index.putLong(offset + HASH, hash);
+            index.putLong(offset + EXPIRES, currentTimeMillis() + ttlMillis);
+            index.putLong(offset + ACCESSED, ++accessSequence);
+            index.putInt(offset + SIZE, (int) size);
+            index.putInt(offset + USED, 1);
+            count++;
+            bytes += size;
+            evict();
+        }
+        deleteRemovedFiles();
+        return true;
+    }
+
+    /**
+     * Marks an entry fresh again after the server confirmed it is unchanged.
+     */
+    synchronized void refresh(String key, long ttlMillis) {
+        int slot = find(hash(key));
+        if (slot >= 0 && ttlMillis >= 0) {
+            index.putLong(offset(slot) + EXPIRES, currentTimeMillis() + ttlMillis);
+        }
+    }
+
+    /**
+     * Drops every entry.  Hit and miss counts are kept.
+     */
+    public void clear() {
+        synchronized (this) {
+            for (int slot = 0; slot <= mask; slot++) {
+                index.putInt(offset(slot) + USED, 0);
+            }
+            removedFiles.clear();
+            count = 0;
+            bytes = 0;
+        }
+        deleteEntryFiles();
+    }
+
+    /**
+     * Writes the index out to the file system, to also survive power loss.
+     */
+    public synchronized void flush() {
+        index.force();
+    }
+
+    /**
+     * @return Number of cached responses.
+     */
+    public synchronized int size() {
+        return count;
+    }
+
+    /**
+     * @return Bytes taken by cached responses.
+     */
+    public synchronized long getSizeBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return Requests answered with a fresh entry.
+     */
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    /**
+     * @return Requests answered with a stale entry while it was revalidated.
+     */
+    public synchronized long getStaleHitCount() {
+        return staleHits;
+    }
+
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    /**
+     * @return Background revalidation requests sent.
+     */
+    public synchronized long getRevalidationCount() {
+        return revalidations;
+    }
+
+    /**
+     * @return Current wall clock time, overridable so tests can move the clock.  Wall clock
+     * time is used since expiries outlive the process.
+     */
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    // guarded by this
+    private void evict() {
+        while (count > maxEntries || (bytes > maxBytes && count > 0)) {
+            int oldest = -1;
+            long oldestAccess = Long.MAX_VALUE;
+            for (int slot = 0; slot <= mask; slot++) {
+                if (used(slot)) {
+                    long accessed = index.getLong(offset(slot) + ACCESSED);
+                    if (accessed < oldestAccess) {
+                        oldest = slot;
+                        oldestAccess = accessed;
+                    }
+                }
+            }
+            remove(oldest);
+        }
+    }
+
+    /**
+     * @return The slot holding hash, or -(free slot) - 1 if it isn't in the table.
+     */
+    private int find(long hash) {
+        int slot = (int) hash & mask;
+        while (used(slot)) {
+            if (index.getLong(offset(slot) + HASH) == hash) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -slot - 1;
+    }
+
+    /**
+     * Empties a slot and queues its file for deletion, shifting later entries of the same
+     * probe run back so lookups never stop early at the hole.
+     */
+    private void remove(int slot) {
+        long hash = index.getLong(offset(slot) + HASH);
+        count--;
+        bytes -= index.getInt(offset(slot) + SIZE);
+        removedFiles.add(entryFile(hash));
+
+        int hole = slot;
+        int next = slot;
+        while (true) {
+            next = (next + 1) & mask;
+            if (!used(next)) {
+                break;
+            }
+            int home = (int) index.getLong(offset(next) + HASH) & mask;
+            // move next into the hole unless its home lies cyclically in (hole, next]
+            boolean stays = hole <= next ? hole < home && home <= next
+                    : hole < home || home <= next;
+            if (!stays) {
+                for (int i = 0; i < SLOT_BYTES; i += 4) {
+                    index.putInt(offset(hole) + i, index.getInt(offset(next) + i));
+                }
+                hole = next;
+            }
+        }
+        index.putInt(offset(hole) + USED, 0);
+    }
+
+    /**
+     * Deletes the files of removed slots, outside the lock.
+     */
+    private void deleteRemovedFiles() {
+        File[] files;
+        synchronized (this) {
+            if (removedFiles.isEmpty()) {
+                return;
+            }
+            files = removedFiles.toArray(new File[removedFiles.size()]);
+            removedFiles.clear();
+        }
+        for (File file : files) {
+            file.delete();
+        }
+    }
+
+    private boolean used(int slot) {
+        return index.getInt(offset(slot) + USED) != 0;
+    }
+
+    private static int offset(int slot) {
+        return HEADER_BYTES + slot * SLOT_BYTES;
+    }
+
+    private File entryFile(long hash) {
+        return new File(directory, Long.toHexString(hash) + ENTRY_SUFFIX);
+    }
+
+    /**
+     * Writes an entry file aside and renames it into place.
+     * @return Size of the file.
+     */
+    private long writeEntry(String key, long hash, byte[] body, String etag) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(body.length + key.length() + 64);
+        DataOutputStream data = new DataOutputStream(buffer);
+        data.writeInt(ENTRY_MAGIC);
+        data.writeUTF(key);
+        data.writeUTF(etag != null ? etag : "");
+        data.writeInt(body.length);
+        data.write(body);
+        data.flush();
+
+        File file = entryFile(hash);
+        File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            buffer.writeTo(out);
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Can't replace cache entry " + file);
+        }
+        return buffer.size();
+    }
+
+    /**
+     * @return The entry stored for key, or null if it is missing, damaged or another key's.
+     */
+    private Entry readEntry(String key, long hash) {
+        File file = entryFile(hash);
+        try {
+            DataInputStream in = new DataInputStream(new FileInputStream(file));
+            try {
+                if (in.readInt() != ENTRY_MAGIC || !key.equals(in.readUTF())) {
+                    return null;
+                }
+                String etag = in.readUTF();
+                int length = in.readInt();
+                if (length < 0 || length > file.length()) {
+                    return null;
+                }
+                byte[] body = new byte[length];
+                in.readFully(body);
+                return new Entry(body, etag.isEmpty() ? null : etag, false);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 64 bit FNV-1a over the key, finished with a mixer so the low bits used for the slot
+     * depend on every character.
+     */
+    private static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash = (hash ^ key.charAt(i)) * 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    /**
+     * Call handed out before the lookup decided whether the request goes to the network.
+     */
+    private static class LookupCall implements InteractionTransport.Call {
+        // guarded by this
+        private InteractionTransport.Call call;
+        private boolean cancelled;
+
+        synchronized boolean isCancelled() {
+            return cancelled;
+        }
+
+        void started(InteractionTransport.Call started) {
+            boolean cancel;
+            synchronized (this) {
+                call = started;
+                cancel = cancelled && started != null;
+            }
+            if (cancel) {
+                started.cancel();
+            }
+        }
+
+        @Override
+        public void cancel() {
+            InteractionTransport.Call started;
+            synchronized (this) {
+                cancelled = true;
+                started = call;
+            }
+            if (started != null) {
+                started.cancel();
+            }
+        }
+    }
+}
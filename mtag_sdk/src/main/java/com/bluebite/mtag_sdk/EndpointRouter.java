@@ -0,0 +1,537 @@
+//Copyright 2018 Blue Bite LLC.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package com.bluebite.mtag_sdk;
+
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Spreads interactions requests over several regional endpoints, see API.setEndpointRouter.
+ * <p>
+ * Every endpoint keeps a smoothed round trip time and error rate.  Each request goes to the
+ * healthy endpoint with the lowest round trip time, penalized by its error rate.  Endpoints
+ * that were never measured, or not used for a while, are tried first so their numbers stay
+ * current.  A run of consecutive network failures or 5xx statuses opens an endpoint's
+ * circuit: it gets no requests until the open period ends, then a single probe decides
+ * whether it closes again.  If every circuit is open, the one opened longest ago is tried
+ * anyway rather than failing the tap without a request.
+ * <p>
+ * A request that fails without a response or with a 5xx status is sent again to the next
+ * best endpoint it hasn't tried yet.  Requests carrying a vid (counter, auth and HID tags) are
+ * one-time and never failed over, since the first endpoint may already have counted the VID.
+ */
+public class EndpointRouter {
+
+    /**
+     * Circuit breaker state of an endpoint.
+     */
+    public enum State {
+        /** Getting requests. */
+        CLOSED,
+        /** Failing, skipped until the open period ends. */
+        OPEN,
+        /** Open period over, one probe request decides what happens next. */
+        HALF_OPEN
+    }
+
+    // weight of the newest sample in the smoothed round trip time and error rate
+    private static final double RTT_WEIGHT = 0.2;
+    private static final double ERROR_WEIGHT = 0.1;
+
+    private final List<Endpoint> endpoints;
+    private volatile int failureThreshold = 5;
+    private volatile long openNanos = TimeUnit.SECONDS.toNanos(30);
+    private volatile long refreshNanos = TimeUnit.SECONDS.toNanos(60);
+    private volatile double errorPenalty = 4;
+
+    // guarded by this
+    private long failovers;
+    private long circuitsOpened;
+
+    /**
+     * Routing state of one endpoint.  Getters read the router's current numbers.
+     */
+    public final class Endpoint {
+        private final String url;
+        private final int index;
+
+        // guarded by the router
+        private State state = State.CLOSED;
+        private long rttNanos = -1;
+        private double errorRate;
+        private int consecutiveFailures;
+        private long openedNanos;
+        private long lastSentNanos;
+        private boolean probing;
+        private long requests;
+        private long failures;
+
+        Endpoint(String url, int index) {
+            this.url = url;
+            this.index = index;
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        public State getState() {
+            synchronized (EndpointRouter.this) {
+                return state;
+            }
+        }
+
+        /**
+         * @return Smoothed round trip time, or -1 before the first response.
+         */
+        public long getSmoothedRttNanos() {
+            synchronized (EndpointRouter.this) {
+                return rttNanos;
+            }
+        }
+
+        /**
+         * @return Smoothed fraction of requests that failed, 0 to 1.
+         */
+        public double getErrorRate() {
+            synchronized (EndpointRouter.this) {
+                return errorRate;
+            }
+        }
+
+        /**
+         * @return Requests routed to this endpoint, failovers included.
+         */
+        public long getRequestCount() {
+            synchronized (EndpointRouter.this) {
+                return requests;
+            }
+        }
+
+        /**
+         * @return Requests that failed without a response or with a 5xx or 429 status.
+         */
+        public long getFailureCount() {
+            synchronized (EndpointRouter.this) {
+                return failures;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return url;
+        }
+    }
+
+    /**
+     * @param urls Interactions routes to choose between, e.g. one per region.
+     */
+    public EndpointRouter(String... urls) {
+        if (urls.length == 0) {
+            throw new IllegalArgumentException("need at least one endpoint");
+        }
+        List<Endpoint> list = new ArrayList<>(urls.length);
+        for (int i = 0; i < urls.length; i++) {
+            list.add(new Endpoint(urls[i], i));
+        }
+        this.endpoints = Collections.unmodifiableList(list);
+    }
+
+    /**
+     * @param failureThreshold Consecutive failures that open an endpoint's circuit, 5 by
+     *                         default.
+     * @param openMillis How long an open circuit keeps requests away, 30 seconds by default.
+     */
+    public void setCircuitBreaker(int failureThreshold, long openMillis) {
+        if (failureThreshold < 1 || openMillis < 0) {
+            throw new IllegalArgumentException("failureThreshold must be positive");
+        }
+        this.failureThreshold = failureThreshold;
+        this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMillis);
+    }
+
+    /**
+     * @param errorPenalty How much the error rate weighs against the round trip time: an
+     *                     endpoint scores rtt * (1 + errorPenalty * errorRate), 4 by default.
+     * @param refreshMillis How long an endpoint may go without requests before one is sent to
+     *                      re-measure it, 60 seconds by default.
+     */
+    public void setSelection(double errorPenalty, long refreshMillis) {
+        if (errorPenalty < 0 || refreshMillis <= 0) {
+            throw new IllegalArgumentException("errorPenalty and refreshMillis must be positive");
+        }
+        this.errorPenalty = errorPenalty;
+        this.refreshNanos = TimeUnit.MILLISECONDS.toNanos(refreshMillis);
+    }
+
+    /**
+     * @return The endpoints, in the order they were given.
+     */
+    public List<Endpoint> getEndpoints() {
+        return endpoints;
+    }
+
+    /**
+     * @return Failed requests that were sent again to another endpoint.
+     */
+    public synchronized long getFailoverCount() {
+        return failovers;
+    }
+
+    /**
+     * @return Times a circuit opened, re-opening after a failed probe included.
+     */
+    public synchronized long getCircuitOpenCount() {
+        return circuitsOpened;
+    }
+
+    /**
+     * @return Routing state of every endpoint and the failover counts, for logging or upload.
+     */
+    public synchronized JSONObject toJSONObject() {
+        JSONObject json = new JSONObject();
+        try {
+            JSONArray endpointJson = new JSONArray();
+            for (Endpoint endpoint : endpoints) {
+                JSONObject e = new JSONObject();
+                e.put("url", endpoint.url);
+                e.put("state", endpoint.state.name());
+                e.put("rttNanos", endpoint.rttNanos);
+                e.put("errorRate", endpoint.errorRate);
+                e.put("requests", endpoint.requests);
+                e.put("failures", endpoint.failures);
+                endpointJson.put(e);
+            }
+            json.put("endpoints", endpointJson);
+            json.put("failovers", failovers);
+            json.put("circuitsOpened", circuitsOpened);
+        } catch (JSONException e) {
+            // only thrown for non-finite numbers, which the rates never are
+        }
+        return json;
+    }
+
+    @Override
+    public String toString() {
+        return toJSONObject().toString();
+    }
+
+    /**
+     * @return Current time in nanoseconds, overridden by tests to simulate latency.
+     */
+    protected long now() {
+        return System.nanoTime();
+    }
+
+    /**
+     * @return URL the next request would most likely go to, without counting it as routed.
+     */
+    synchronized String getPreferredUrl() {
+        Endpoint best = null;
+        for (Endpoint endpoint : endpoints) {
+            if (endpoint.state != State.CLOSED) {
+                continue;
+            }
+            if (endpoint.rttNanos < 0) {
+                // never measured endpoints are tried first
+                return endpoint.url;
+            }
+            if (best == null || score(endpoint) < score(best)) {
+                best = endpoint;
+            }
+        }
+        return (best != null ? best : endpoints.get(0)).url;
+    }
+
+    /**
+     * Sends a request to the best endpoint, failing over to others as allowed.
+     * @param transport Transport sending to the chosen endpoint's URL.
+     * @param tracer Tracer recording failovers and opened circuits, or null.
+     * @return Handle that cancels whichever attempt is running.
+     */
+    InteractionTransport.Call post(InteractionTransport transport, Map<String, String> params,
+                                   InteractionTransport.Callback callback,
+                                   InteractionTracer tracer) {
+        Routed routed = new Routed(transport, params, callback, tracer);
+        routed.send(select(null));
+        return routed;
+    }
+
+    private double score(Endpoint endpoint) {
+        return endpoint.rttNanos * (1 + errorPenalty * endpoint.errorRate);
+    }
+
+    /**
+     * Picks the endpoint for the next attempt and counts it as routed.
+     * @param tried Endpoints the request already went to, or null for its first attempt.
+     * @return The endpoint, or null if every endpoint was tried.
+     */
+    private synchronized Endpoint select(boolean[] tried) {
+        long at = now();
+        Endpoint best = null;
+        Endpoint stale = null;
+        Endpoint oldestOpen = null;
+        for (Endpoint endpoint : endpoints) {
+            if (tried != null && tried[endpoint.index]) {
+                continue;
+            }
+            if (endpoint.state != State.CLOSED) {
+                boolean probeAllowed = !endpoint.probing
+                        && at - endpoint.openedNanos >= openNanos;
+                if (probeAllowed) {
+                    // open period over, this request is the probe
+                    endpoint.state = State.HALF_OPEN;
+                    return route(endpoint, at, true);
+                }
+                if (oldestOpen == null || endpoint.openedNanos < oldestOpen.openedNanos) {
+                    oldestOpen = endpoint;
+                }
+                continue;
+            }
+            if (endpoint.rttNanos < 0) {
+                // never measured
+                return route(endpoint, at, false);
+            }
+            if (stale == null && at - endpoint.lastSentNanos >= refreshNanos) {
+                stale = endpoint;
+            }
+            if (best == null || score(endpoint) < score(best)) {
+                best = endpoint;
+            }
+        }
+        if (stale != null) {
+            return route(stale, at, false);
+        }
+        if (best != null) {
+            return route(best, at, false);
+        }
+        if (oldestOpen != null && tried == null) {
+            // every circuit is open, trying one beats failing without a request
+            return route(oldestOpen, at, false);
+        }
+        return null;
+    }
+
+    // guarded by this
+    private Endpoint route(Endpoint endpoint, long at, boolean probe) {
+        endpoint.requests++;
+        endpoint.lastSentNanos = at;
+        if (probe) {
+            endpoint.probing = true;
+        }
+        return endpoint;
+    }
+
+    /**
+     * Learns from an attempt's outcome.
+     * @param statusCode Response status, 0 when there was none, -1 when it was cancelled.
+     * @return True if the attempt failed in a way another endpoint might not.
+     */
+    private boolean record(Endpoint endpoint, long sentNanos, int statusCode,
+                           InteractionTracer tracer) {
+        boolean opened;
+        int failuresInRow;
+        boolean failed = statusCode == 0 || statusCode >= 500;
+        synchronized (this) {
+            boolean probe = endpoint.state == State.HALF_OPEN;
+            endpoint.probing = false;
+            if (statusCode < 0) {
+                return false;
+            }
+            if (statusCode > 0) {
+                long rtt = now() - sentNanos;
+                endpoint.rttNanos = endpoint.rttNanos < 0 ? rtt
+                        : (long) (endpoint.rttNanos + RTT_WEIGHT * (rtt - endpoint.rttNanos));
+            }
+            // a throttled endpoint is healthy but busy, it only counts against the error rate
+            boolean error = failed || statusCode == 429;
+            endpoint.errorRate += ERROR_WEIGHT * ((error ? 1 : 0) - endpoint.errorRate);
+            if (error) {
+                endpoint.failures++;
+            }
+            if (!failed) {
+                endpoint.consecutiveFailures = 0;
+                endpoint.state = State.CLOSED;
+                return false;
+            }
+            failuresInRow = ++endpoint.consecutiveFailures;
+            opened = probe || endpoint.state == State.CLOSED && failuresInRow >= failureThreshold;
+            if (opened) {
+                endpoint.state = State.OPEN;
+                endpoint.openedNanos = now();
+                circuitsOpened++;
+            }
+        }
+        if (opened && tracer != null) {
+            tracer.record(InteractionTracer.Event.CIRCUIT_OPENED, endpoint.index, failuresInRow);
+        }
+        return true;
+    }
+
+    /**
+     * One request across its attempts.
+     */
+    private class Routed implements InteractionTransport.Call {
+        private final InteractionTransport transport;
+        private final Map<String, String> params;
+        private final InteractionTransport.Callback callback;
+        private final InteractionTracer tracer;
+        private final boolean[] tried = new boolean[endpoints.size()];
+
+        // guarded by this
+        private InteractionTransport.Call call;
+        private Attempt current;
+        private boolean cancelled;
+
+        Routed(InteractionTransport transport, Map<String, String> params,
+               InteractionTransport.Callback callback, InteractionTracer tracer) {
+            this.transport = transport;
+            this.params = params;
+            this.callback = callback;
+            this.tracer = tracer;
+        }
+
+        void send(Endpoint endpoint) {
+            Attempt attempt = new Attempt(this, endpoint, now());
+            synchronized (this) {
+                if (cancelled) {
+                    record(endpoint, attempt.sentNanos, -1, null);
+                    return;
+                }
+                tried[endpoint.index] = true;
+                current = attempt;
+                call = null;
+            }
+            InteractionTransport.Call started = transport.post(endpoint.url, params, attempt);
+            boolean cancel;
+            synchronized (this) {
+                if (current == attempt) {
+                    call = started;
+                }
+                cancel = cancelled && started != null;
+            }
+            if (cancel) {
+                started.cancel();
+            }
+        }
+
+        /**
+         * @return True if the failed attempt was sent again elsewhere.
+         */
+        boolean failOver(Attempt attempt) {
+            if (params.containsKey("vid")) {
+                return false;
+            }
+            Endpoint next;
+            synchronized (this) {
+                if (cancelled || current != attempt) {
+                    return false;
+                }
+                next = select(tried);
+            }
+            if (next == null) {
+                return false;
+            }
+            synchronized (EndpointRouter.this) {
+                failovers++;
+            }
+            if (tracer != null) {
+                tracer.record(InteractionTracer.Event.ENDPOINT_FAILOVER, attempt.endpoint.index,
+                        next.index);
+            }
+            send(next);
+            return true;
+        }
+
+        @Override
+        public void cancel() {
+            InteractionTransport.Call started;
+            Attempt attempt;
+            synchronized (this) {
+                if (cancelled) {
+                    return;
+                }
+                cancelled = true;
+                started = call;
+                attempt = current;
+            }
+            if (attempt != null && attempt.finish()) {
+                record(attempt.endpoint, attempt.sentNanos, -1, null);
+            }
+            if (started != null) {
+                started.cancel();
+            }
+        }
+    }
+
+    /**
+     * One attempt at one endpoint.
+     */
+    private class Attempt implements InteractionTransport.Callback {
+        private final Routed routed;
+        private final Endpoint endpoint;
+        private final long sentNanos;
+        // guarded by this
+        private boolean done;
+
+        Attempt(Routed routed, Endpoint endpoint, long sentNanos) {
+            this.routed = routed;
+            this.endpoint = endpoint;
+            this.sentNanos = sentNanos;
+        }
+
+        /**
+         * @return True the first time the attempt finishes.
+         */
+        synchronized boolean finish() {
+            if (done) {
+                return false;
+            }
+            done = true;
+            return true;
+        }
+
+        @Override
+        public void onResponse(int statusCode, Map<String, String> headers, byte[] body) {
+            if (!finish()) {
+                return;
+            }
+            if (record(endpoint, sentNanos, statusCode, routed.tracer) && routed.failOver(this)) {
+                return;
+            }
+            routed.callback.onResponse(statusCode, headers, body);
+        }
+
+        @Override
+        public void onFailure(Throwable cause) {
+            if (!finish()) {
+                return;
+            }
+            if (record(endpoint, sentNanos, 0, routed.tracer) && routed.failOver(this)) {
+                return;
+            }
+            routed.callback.onFailure(cause);
+        }
+    }
+}
@@ -0,0 +1,39 @@
+//Copyright 2018 Blue Bite LLC.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+
+package com.bluebite.mtag_sdk;
+
+
+import java.util.Map;
+
+/**
+ * InteractionTransport that can also send request headers, which lets the disk cache
+ * revalidate entries with If-None-Match.  Transports that don't implement it still work with
+ * the disk cache, they just always download the full response when an entry is stale.
+ */
+public interface HeaderInteractionTransport extends InteractionTransport {
+
+    /**
+     * POSTs form encoded parameters with extra request headers.
+     * @param url Target URL.
+     * @param params Form parameters.
+     * @param headers Request headers, null for none.
+     * @param callback Receives the response.
+     * @return Handle to cancel the request with.
+     */
+    Call post(String url, Map<String, String> params, Map<String, String> headers,
+              Callback callback);
+}
@@ -0,0 +1,193 @@
+//Copyright 2018 Blue Bite LLC.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package com.bluebite.mtag_sdk;
+
+
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Tracks the interactions requests currently in flight so duplicate taps of the same tag can
+ * share one network round trip.  The first caller for a key gets a Request to hand to the
+ * transport; later callers are attached to it until the response arrives.  A caller that
+ * leaves is detached, and the underlying call is only cancelled once nobody is left waiting.
+ */
+class InFlightInteractions {
+
+    // guarded by itself
+    private final HashMap<String, Request> requests = new HashMap<>();
+
+    /**
+     * Builds the key identifying an interaction by the parameters that will be sent for it.
+     * @param parsed Classified Interaction URL.
+     * @param mTagId Base 10 mTag ID, ignored for slug URLs.
+     * @return Normalized request key.
+     */
+    static String keyFor(InteractionUrl parsed, String mTagId) {
+        if (parsed.getType() == InteractionUrl.Type.SLUG) {
+            return parsed.getUrl();
+        }
+        StringBuilder key = new StringBuilder(64);
+        key.append(mTagId);
+        for (int i = 0; i < parsed.getParamCount(); i++) {
+            String value = parsed.getParamValue(i);
+            if (value != null) {
+                key.append('&').append(parsed.getParamName(i)).append('=').append(value);
+            }
+        }
+        return key.toString();
+    }
+
+    /**
+     * Attaches a delegate to the request for a key.
+     * @param key Normalized request key from keyFor.
+     * @param delegate Delegate waiting for the result.
+     * @return Request to register with the transport, or null if a request for the key is
+     * already in flight and will answer this delegate too.
+     */
+    Request join(String key, BlueBiteInteractionDelegate delegate) {
+        synchronized (requests) {
+            Request request = requests.get(key);
+            if (request != null) {
+                request.delegates.add(delegate);
+                return null;
+            }
+            request = new Request(key);
+            request.delegates.add(delegate);
+            requests.put(key, request);
+            return request;
+        }
+    }
+
+    /**
+     * Detaches a delegate from the request for a key, e.g. because its caller gave up on the
+     * result.  Cancels the request's call if no other delegate is waiting for it.
+     * @param key Normalized request key from keyFor.
+     * @param delegate Delegate passed to join.
+     */
+    void leave(String key, BlueBiteInteractionDelegate delegate) {
+        InteractionTransport.Call abandoned = null;
+        synchronized (requests) {
+            Request request = requests.get(key);
+            if (request == null || !request.delegates.remove(delegate)) {
+                return;
+            }
+            if (request.delegates.isEmpty()) {
+                requests.remove(key);
+                request.abandoned = true;
+                abandoned = request.call;
+            }
+        }
+        if (abandoned != null) {
+            abandoned.cancel();
+        }
+    }
+
+    /**
+     * @param key Normalized request key from keyFor.
+     * @param delegate Delegate passed to join.
+     * @return Call whose cancel() detaches the delegate, see leave.
+     */
+    InteractionTransport.Call leaveCall(final String key,
+                                        final BlueBiteInteractionDelegate delegate) {
+        return new InteractionTransport.Call() {
+            @Override
+            public void cancel() {
+                leave(key, delegate);
+            }
+        };
+    }
+
+    /**
+     * @return Number of distinct requests currently in flight.
+     */
+    int size() {
+        synchronized (requests) {
+            return requests.size();
+        }
+    }
+
+    /**
+     * One request on the wire, fanning its result out to every delegate attached to it.
+     */
+    final class Request implements InteractionResultDelegate {
+        private final String key;
+        // guarded by requests
+        private final List<BlueBiteInteractionDelegate> delegates = new ArrayList<>(2);
+        private InteractionTransport.Call call;
+        private boolean abandoned;
+
+        private Request(String key) {
+            this.key = key;
+        }
+
+        /**
+         * @param call Call the transport started for this request, cancelled right away if
+         *             every delegate already left.
+         */
+        void setCall(InteractionTransport.Call call) {
+            if (call == null) {
+                return;
+            }
+            synchronized (requests) {
+                if (!abandoned) {
+                    this.call = call;
+                    return;
+                }
+            }
+            call.cancel();
+        }
+
+        @Override
+        public void interactionResultWasReceived(InteractionResult result) {
+            for (BlueBiteInteractionDelegate delegate : finish()) {
+                API.deliver(delegate, result);
+            }
+        }
+
+        @Override
+        public void interactionDataWasReceived(JSONObject results) {
+            for (BlueBiteInteractionDelegate delegate : finish()) {
+                delegate.interactionDataWasReceived(results);
+            }
+        }
+
+        @Override
+        public void interactionDidFail(String error) {
+            for (BlueBiteInteractionDelegate delegate : finish()) {
+                delegate.interactionDidFail(error);
+            }
+        }
+
+        private List<BlueBiteInteractionDelegate> finish() {
+            synchronized (requests) {
+                if (requests.get(key) == this) {
+                    requests.remove(key);
+                }
+                if (delegates.isEmpty()) {
+                    return Collections.emptyList();
+                }
+                List<BlueBiteInteractionDelegate> waiting = new ArrayList<>(delegates);
+                delegates.clear();
+                return waiting;
+            }
+        }
+    }
+}
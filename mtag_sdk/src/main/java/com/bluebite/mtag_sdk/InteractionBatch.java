@@ -0,0 +1,217 @@
+//Copyright 2018 Blue Bite LLC.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package com.bluebite.mtag_sdk;
+
+
+import android.util.Log;
+
+import org.json.JSONObject;
+
+import java.util.List;
+
+/**
+ * Drives the submission of a list of Interaction URLs for API.interactionsWereReceived.
+ * URLs are classified up front, then submitted in order with a bounded number of requests in
+ * flight.  Every completion frees a slot for the next URL, which may already belong to the
+ * next batch, so batches are pipelined rather than run one after the other.  Results reach
+ * the delegate through the API's callback executor, in the order they completed.
+ */
+class InteractionBatch {
+    private static final String TAG = InteractionBatch.class.getSimpleName();
+
+    private final API api;
+    private final InteractionUrl[] urls;
+    private final int batchSize;
+    private final int batchCount;
+    private final BlueBiteInteractionDelegate delegate;
+    private final BlueBiteBatchInteractionDelegate batchDelegate;
+    private final InteractionResultBatchDelegate resultBatchDelegate;
+    private final boolean queueFailures;
+
+    // guarded by this
+    private int nextIndex;
+    private int freeSlots;
+    private boolean draining;
+    private final int[] pending;
+    private final int[] succeeded;
+    private final int[] failed;
+
+    InteractionBatch(API api, List<String> urls, int batchSize,
+                     BlueBiteInteractionDelegate delegate) {
+        this(api, urls, batchSize, delegate, true);
+    }
+
+    /**
+     * @param queueFailures False to keep URLs that get no response out of the offline queue,
+     *                      used when the URLs are being replayed from it.
+     */
+    InteractionBatch(API api, List<String> urls, int batchSize,
+                     BlueBiteInteractionDelegate delegate, boolean queueFailures) {
+        this.api = api;
+        this.queueFailures = queueFailures;
+        this.urls = new InteractionUrl[urls.size()];
+        InteractionMetrics metrics = api.getMetrics();
+        for (int i = 0; i < this.urls.length; i++) {
+            long start = metrics != null ? metrics.now() : 0;
+            this.urls[i] = InteractionUrl.parse(urls.get(i));
+            if (metrics != null) {
+                metrics.recordSince(InteractionMetrics.Stage.URL_PARSE, start);
+            }
+        }
+        this.batchSize = batchSize;
+        this.batchCount = (this.urls.length + batchSize - 1) / batchSize;
+        this.delegate = delegate;
+        this.batchDelegate = delegate instanceof BlueBiteBatchInteractionDelegate
+                ? (BlueBiteBatchInteractionDelegate) delegate : null;
+        this.resultBatchDelegate = delegate instanceof InteractionResultBatchDelegate
+                ? (InteractionResultBatchDelegate) delegate : null;
+        this.pending = new int[batchCount];
+        this.succeeded = new int[batchCount];
+        this.failed = new int[batchCount];
+        for (int i = 0; i < batchCount; i++) {
+            pending[i] = Math.min(batchSize, this.urls.length - i * batchSize);
+        }
+    }
+
+    /**
+     * Submits the first URLs, the rest follow as earlier requests complete.
+     * @param maxConcurrentRequests Most requests kept in flight.
+     */
+    void start(int maxConcurrentRequests) {
+        synchronized (this) {
+            freeSlots = maxConcurrentRequests;
+        }
+        drain();
+    }
+
+    /**
+     * Submits URLs while request slots are free.  URLs that fail synchronously complete
+     * inside submit(), so only the outermost call loops instead of recursing per URL.
+     */
+    private void drain() {
+        synchronized (this) {
+            if (draining) {
+                return;
+            }
+            draining = true;
+        }
+        while (true) {
+            int index;
+            synchronized (this) {
+                if (freeSlots == 0 || nextIndex >= urls.length) {
+                    draining = false;
+                    return;
+                }
+                freeSlots--;
+                index = nextIndex++;
+            }
+            submit(index);
+        }
+    }
+
+    private void submit(final int index) {
+        final InteractionUrl url = urls[index];
+        BlueBiteInteractionDelegate urlDelegate = new InteractionResultDelegate() {
+            @Override
+            public void interactionResultWasReceived(final InteractionResult result) {
+                api.dispatch(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (resultBatchDelegate != null) {
+                            resultBatchDelegate.interactionResultWasReceived(url.getUrl(),
+                                    result);
+                        } else if (batchDelegate != null) {
+                            batchDelegate.interactionDataWasReceived(url.getUrl(),
+                                    result.toJSONObject());
+                        } else {
+                            API.deliver(delegate, result);
+                        }
+                    }
+                });
+                complete(index, true);
+            }
+
+            @Override
+            public void interactionDataWasReceived(final JSONObject results) {
+                api.dispatch(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (batchDelegate != null) {
+                            batchDelegate.interactionDataWasReceived(url.getUrl(), results);
+                        } else {
+                            delegate.interactionDataWasReceived(results);
+                        }
+                    }
+                });
+                complete(index, true);
+            }
+
+            @Override
+            public void interactionDidFail(final String error) {
+                api.dispatch(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (batchDelegate != null) {
+                            batchDelegate.interactionDidFail(url.getUrl(), error);
+                        } else {
+                            delegate.interactionDidFail(error);
+                        }
+                    }
+                });
+                complete(index, false);
+            }
+        };
+
+        try {
+            api.submitInteraction(url, urlDelegate, queueFailures);
+        } catch (RuntimeException e) {
+            // a malformed URL shouldn't take the rest of the batch down with it
+            Log.e(TAG, "Failed to submit " + url.getUrl(), e);
+            urlDelegate.interactionDidFail(API.ERROR_NON_AUTH_URL + url.getUrl());
+        }
+    }
+
+    private void complete(int index, boolean success) {
+        int batch = index / batchSize;
+        boolean batchDone;
+        int batchSucceeded;
+        int batchFailed;
+        synchronized (this) {
+            if (success) {
+                succeeded[batch]++;
+            } else {
+                failed[batch]++;
+            }
+            batchDone = --pending[batch] == 0;
+            batchSucceeded = succeeded[batch];
+            batchFailed = failed[batch];
+            freeSlots++;
+        }
+        if (batchDone && batchDelegate != null) {
+            final int completedBatch = batch;
+            final int completedSucceeded = batchSucceeded;
+            final int completedFailed = batchFailed;
+            api.dispatch(new Runnable() {
+                @Override
+                public void run() {
+                    batchDelegate.batchWasCompleted(completedBatch, batchCount,
+                            completedSucceeded, completedFailed);
+                }
+            });
+        }
+        drain();
+    }
+}
@@ -0,0 +1,95 @@
+//Copyright 2018 Blue Bite LLC.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+
+package com.bluebite.mtag_sdk;
+
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Executors for API.setParseExecutor, API.setCallbackExecutor and API.setQueueExecutor.
+ */
+public final class InteractionExecutors {
+
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private InteractionExecutors() {
+    }
+
+    /**
+     * @return Executor running every task right away on the submitting thread.
+     */
+    public static Executor direct() {
+        return DIRECT;
+    }
+
+    /**
+     * @return Executor posting tasks to the main thread's Looper, or null when there is no
+     * main Looper, e.g. on a plain JVM.
+     */
+    public static Executor mainThread() {
+        Looper mainLooper = Looper.getMainLooper();
+        if (mainLooper == null) {
+            return null;
+        }
+        final Handler handler = new Handler(mainLooper);
+        return new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                handler.post(command);
+            }
+        };
+    }
+
+    /**
+     * @return The main thread when there is one, otherwise direct().
+     */
+    static Executor defaultCallbackExecutor() {
+        Executor mainThread = mainThread();
+        return mainThread != null ? mainThread : DIRECT;
+    }
+
+    /**
+     * @return Single daemon thread shared by file I/O that shouldn't run on the callback
+     * thread, created on first use.
+     */
+    static Executor storage() {
+        return StorageHolder.EXECUTOR;
+    }
+
+    private static class StorageHolder {
+        static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor(
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "mtag-storage");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+}
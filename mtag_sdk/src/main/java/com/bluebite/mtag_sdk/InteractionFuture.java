@@ -0,0 +1,252 @@
+//Copyright 2018 Blue Bite LLC.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+
+package com.bluebite.mtag_sdk;
+
+
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Pending result of {@link API#verify}.  Completes exactly once, with an InteractionResult, an
+ * error message matching what interactionDidFail would receive, or by being cancelled.
+ * Cancelling stops the HTTP call unless another caller is waiting on the same request.
+ */
+public class InteractionFuture implements Future<InteractionResult> {
+
+    /**
+     * Called once the future is done, on the thread that completed it.  Listeners added after
+     * that are called right away on the adding thread.
+     */
+    public interface Listener {
+        void onComplete(InteractionFuture future);
+    }
+
+    private static final int PENDING = 0;
+    private static final int SUCCEEDED = 1;
+    private static final int FAILED = 2;
+    private static final int CANCELLED = 3;
+
+    private final String url;
+    private final CountDownLatch done = new CountDownLatch(1);
+    private final BlueBiteInteractionDelegate delegate = new InteractionResultDelegate() {
+        @Override
+        public void interactionResultWasReceived(InteractionResult result) {
+            complete(SUCCEEDED, result, null);
+        }
+
+        @Override
+        public void interactionDataWasReceived(JSONObject results) {
+            complete(SUCCEEDED, InteractionResult.fromFormattedResponse(results), null);
+        }
+
+        @Override
+        public void interactionDidFail(String error) {
+            complete(FAILED, null, error);
+        }
+    };
+
+    // guarded by this
+    private int state = PENDING;
+    private InteractionResult result;
+    private String error;
+    private InteractionTransport.Call call;
+    private ScheduledFuture<?> deadline;
+    private List<Listener> listeners = new ArrayList<>(1);
+
+    InteractionFuture(String url) {
+        this.url = url;
+    }
+
+    /**
+     * @return The Interaction URL being verified.
+     */
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * @param listener Listener to call once the future is done.
+     */
+    public void addListener(Listener listener) {
+        synchronized (this) {
+            if (state == PENDING) {
+                listeners.add(listener);
+                return;
+            }
+        }
+        listener.onComplete(this);
+    }
+
+    /**
+     * @return True if the interaction was registered and a result is available.
+     */
+    public synchronized boolean isSuccessful() {
+        return state == SUCCEEDED;
+    }
+
+    /**
+     * @return The result, or null unless the future succeeded.
+     */
+    public synchronized InteractionResult getResult() {
+        return result;
+    }
+
+    /**
+     * @return Why the interaction failed, or null unless the future failed.
+     */
+    public synchronized String getError() {
+        return error;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return complete(CANCELLED, null, null);
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return state == CANCELLED;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return state != PENDING;
+    }
+
+    @Override
+    public InteractionResult get() throws InterruptedException, ExecutionException {
+        done.await();
+        return report();
+    }
+
+    @Override
+    public InteractionResult get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        if (!done.await(timeout, unit)) {
+            throw new TimeoutException("Interaction still pending: " + url);
+        }
+        return report();
+    }
+
+    private synchronized InteractionResult report() throws ExecutionException {
+        if (state == CANCELLED) {
+            throw new CancellationException("Interaction cancelled: " + url);
+        } else if (state == FAILED) {
+            throw new ExecutionException(error, null);
+        }
+        return result;
+    }
+
+    /**
+     * @return Delegate completing this future, handed to the API's request path.
+     */
+    BlueBiteInteractionDelegate getDelegate() {
+        return delegate;
+    }
+
+    /**
+     * @param call Call to cancel if this future is cancelled or its deadline passes.  Cancelled
+     *             right away if that already happened.
+     */
+    void setCall(InteractionTransport.Call call) {
+        if (call == null) {
+            return;
+        }
+        synchronized (this) {
+            if (state == PENDING) {
+                this.call = call;
+                return;
+            }
+        }
+        call.cancel();
+    }
+
+    /**
+     * Fails the future with API.ERROR_DEADLINE_EXCEEDED unless it completes within the given
+     * time.
+     * @param timeout Time allowed, nothing is scheduled for 0 or less.
+     * @param unit Unit of timeout.
+     * @param onExceeded Run after the deadline failed the future, or null.
+     */
+    void setDeadline(long timeout, TimeUnit unit, final Runnable onExceeded) {
+        if (timeout <= 0) {
+            return;
+        }
+        ScheduledFuture<?> scheduled = InteractionScheduler.get().schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (complete(FAILED, null, API.ERROR_DEADLINE_EXCEEDED + url)
+                        && onExceeded != null) {
+                    onExceeded.run();
+                }
+            }
+        }, timeout, unit);
+        synchronized (this) {
+            if (state == PENDING) {
+                deadline = scheduled;
+                return;
+            }
+        }
+        scheduled.cancel(false);
+    }
+
+    private boolean complete(int newState, InteractionResult newResult, String newError) {
+        List<Listener> toNotify;
+        InteractionTransport.Call toCancel;
+        ScheduledFuture<?> timer;
+        synchronized (this) {
+            if (state != PENDING) {
+                return false;
+            }
+            state = newState;
+            result = newResult;
+            error = newError;
+            toNotify = listeners;
+            listeners = null;
+            // a result arriving through the call needs no cancel, anything else abandons it
+            toCancel = newState == SUCCEEDED || call == null ? null : call;
+            call = null;
+            timer = deadline;
+            deadline = null;
+        }
+        done.countDown();
+        if (timer != null) {
+            timer.cancel(false);
+        }
+        if (toCancel != null) {
+            toCancel.cancel();
+        }
+        for (Listener listener : toNotify) {
+            listener.onComplete(this);
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return "InteractionFuture{" + url + "}";
+    }
+}
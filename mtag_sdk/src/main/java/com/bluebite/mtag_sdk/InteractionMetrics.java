@@ -0,0 +1,368 @@
+//Copyright 2018 Blue Bite LLC.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+
+package com.bluebite.mtag_sdk;
+
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Opt-in registry of per-stage latencies and outcome counters for interactions, see
+ * API.setMetrics.  Recording only touches atomics, so it is lock-free and safe from any thread.
+ * While no registry is set the API skips timing altogether.
+ */
+public class InteractionMetrics {
+
+    /**
+     * Stages between a tap and the delegate callback.
+     */
+    public enum Stage {
+        /** Classifying the Interaction URL. */
+        URL_PARSE,
+        /** Converting the mTag ID and building the request parameters. */
+        PAYLOAD_BUILD,
+        /** From handing the request to the transport until its response or failure arrives. */
+        NETWORK,
+        /** Reading the response body into an InteractionResult. */
+        RESPONSE_PARSE,
+        /** Handing the result to the delegate, or to the callback executor when one posts. */
+        DISPATCH
+    }
+
+    /**
+     * Reasons an interaction is reported to interactionDidFail.
+     */
+    public enum Failure {
+        /** The URL isn't verifiable, see API.ERROR_NON_AUTH_URL. */
+        NON_AUTH_URL,
+        /** The interactions route answered with a non 2xx status. */
+        HTTP_STATUS,
+        /** The interactions route answered 2xx with a body that isn't a JSON object. */
+        MALFORMED_RESPONSE,
+        /** No response was received, see API.ERROR_NETWORK. */
+        NETWORK,
+        /** The tag ID and VID were already sent from this device, see API.ERROR_REPLAYED_VID. */
+        REPLAYED_VID,
+        /** A tap was dropped by a full burst mode queue, see API.ERROR_BURST_REJECTED. */
+        BURST_REJECTED,
+        /** API.verify gave up waiting for a result, see API.ERROR_DEADLINE_EXCEEDED. */
+        DEADLINE_EXCEEDED,
+        /** A tag read by NfcReaderMode had no http(s) URL, see API.ERROR_INVALID_TAG_DATA. */
+        INVALID_TAG_DATA
+    }
+
+    private static final InteractionUrl.Type[] TYPES = InteractionUrl.Type.values();
+    private static final Stage[] STAGES = Stage.values();
+    private static final Failure[] FAILURES = Failure.values();
+
+    private final Histogram[] histograms = new Histogram[STAGES.length];
+    private final AtomicLongArray tagTypes = new AtomicLongArray(TYPES.length);
+    private final AtomicLongArray failures = new AtomicLongArray(FAILURES.length);
+    private final AtomicLong succeeded = new AtomicLong();
+    private final AtomicLong warmConnections = new AtomicLong();
+    private final AtomicLong coldConnections = new AtomicLong();
+
+    public InteractionMetrics() {
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new Histogram();
+        }
+    }
+
+    /**
+     * @return Current time to pass to recordSince, in nanoseconds.
+     */
+    public long now() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Records the time a stage took.
+     * @param stage Stage that finished.
+     * @param startNanos Value of now() when the stage started.
+     */
+    public void recordSince(Stage stage, long startNanos) {
+        record(stage, now() - startNanos);
+    }
+
+    /**
+     * @param stage Stage that finished.
+     * @param nanos Time it took.
+     */
+    public void record(Stage stage, long nanos) {
+        histograms[stage.ordinal()].record(nanos);
+    }
+
+    /**
+     * @param type Classification of a received Interaction URL.
+     */
+    public void recordTagType(InteractionUrl.Type type) {
+        tagTypes.incrementAndGet(type.ordinal());
+    }
+
+    public void recordSuccess() {
+        succeeded.incrementAndGet();
+    }
+
+    public void recordFailure(Failure failure) {
+        failures.incrementAndGet(failure.ordinal());
+    }
+
+    /**
+     * @param reused True if a request went over an already open, warm connection, false if
+     * it had to set up a new one.
+     */
+    public void recordConnection(boolean reused) {
+        (reused ? warmConnections : coldConnections).incrementAndGet();
+    }
+
+    /**
+     * @return Copy of everything recorded so far.  Counters keep running.
+     */
+    public Snapshot snapshot() {
+        Histogram.Summary[] summaries = new Histogram.Summary[STAGES.length];
+        for (int i = 0; i < STAGES.length; i++) {
+            summaries[i] = histograms[i].summarize();
+        }
+        long[] typeCounts = new long[TYPES.length];
+        for (int i = 0; i < typeCounts.length; i++) {
+            typeCounts[i] = tagTypes.get(i);
+        }
+        long[] failureCounts = new long[FAILURES.length];
+        for (int i = 0; i < failureCounts.length; i++) {
+            failureCounts[i] = failures.get(i);
+        }
+        return new Snapshot(summaries, typeCounts, failureCounts, succeeded.get(),
+                warmConnections.get(), coldConnections.get());
+    }
+
+    /**
+     * Lock-free log-linear latency histogram.  Each power of two is split into four buckets,
+     * so reported percentiles are within 25% of the recorded value.
+     */
+    static final class Histogram {
+        private static final int SUB_BUCKET_BITS = 2;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final AtomicLong total = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        void record(long nanos) {
+            if (nanos < 0) {
+                nanos = 0;
+            }
+            counts.incrementAndGet(bucketOf(nanos));
+            total.incrementAndGet();
+            sum.addAndGet(nanos);
+            long currentMax = max.get();
+            while (nanos > currentMax && !max.compareAndSet(currentMax, nanos)) {
+                currentMax = max.get();
+            }
+        }
+
+        static int bucketOf(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+            int subBucket = (int) (value >>> exponent) & (SUB_BUCKETS - 1);
+            return (exponent + 1) * SUB_BUCKETS + subBucket;
+        }
+
+        /**
+         * @return Largest value that falls into the bucket.
+         */
+        static long upperBoundOf(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int exponent = bucket / SUB_BUCKETS - 1;
+            long subBucket = bucket % SUB_BUCKETS;
+            long lower = (SUB_BUCKETS | subBucket) << exponent;
+            return lower + (1L << exponent) - 1;
+        }
+
+        Summary summarize() {
+            long[] copy = new long[BUCKETS];
+            long count = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                copy[i] = counts.get(i);
+                count += copy[i];
+            }
+            return new Summary(count, sum.get(), max.get(), percentile(copy, count, 0.50),
+                    percentile(copy, count, 0.95), percentile(copy, count, 0.99));
+        }
+
+        private static long percentile(long[] buckets, long count, double quantile) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(quantile * count);
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= rank) {
+                    return upperBoundOf(i);
+                }
+            }
+            return upperBoundOf(buckets.length - 1);
+        }
+
+        /**
+         * Latency figures of one stage, in nanoseconds.
+         */
+        static final class Summary {
+            final long count;
+            final long sum;
+            final long max;
+            final long p50;
+            final long p95;
+            final long p99;
+
+            Summary(long count, long sum, long max, long p50, long p95, long p99) {
+                this.count = count;
+                this.sum = sum;
+                this.max = max;
+                this.p50 = p50;
+                this.p95 = p95;
+                this.p99 = p99;
+            }
+        }
+    }
+
+    /**
+     * Immutable copy of the metrics at one point in time.  Latencies are in nanoseconds.
+     */
+    public static final class Snapshot {
+        private final Histogram.Summary[] stages;
+        private final long[] tagTypes;
+        private final long[] failures;
+        private final long succeeded;
+        private final long warmConnections;
+        private final long coldConnections;
+
+        Snapshot(Histogram.Summary[] stages, long[] tagTypes, long[] failures, long succeeded,
+                 long warmConnections, long coldConnections) {
+            this.stages = stages;
+            this.tagTypes = tagTypes;
+            this.failures = failures;
+            this.succeeded = succeeded;
+            this.warmConnections = warmConnections;
+            this.coldConnections = coldConnections;
+        }
+
+        public long getCount(Stage stage) {
+            return stages[stage.ordinal()].count;
+        }
+
+        public long getMeanNanos(Stage stage) {
+            Histogram.Summary summary = stages[stage.ordinal()];
+            return summary.count == 0 ? 0 : summary.sum / summary.count;
+        }
+
+        public long getMaxNanos(Stage stage) {
+            return stages[stage.ordinal()].max;
+        }
+
+        public long getP50Nanos(Stage stage) {
+            return stages[stage.ordinal()].p50;
+        }
+
+        public long getP95Nanos(Stage stage) {
+            return stages[stage.ordinal()].p95;
+        }
+
+        public long getP99Nanos(Stage stage) {
+            return stages[stage.ordinal()].p99;
+        }
+
+        public long getTagTypeCount(InteractionUrl.Type type) {
+            return tagTypes[type.ordinal()];
+        }
+
+        public long getFailureCount(Failure failure) {
+            return failures[failure.ordinal()];
+        }
+
+        public long getSuccessCount() {
+            return succeeded;
+        }
+
+        /**
+         * @return Requests sent over an already open connection.
+         */
+        public long getWarmConnectionCount() {
+            return warmConnections;
+        }
+
+        /**
+         * @return Requests that had to open a new connection.
+         */
+        public long getColdConnectionCount() {
+            return coldConnections;
+        }
+
+        /**
+         * @return The snapshot as JSON, e.g. for uploading alongside crash reports.
+         */
+        public JSONObject toJSONObject() {
+            JSONObject json = new JSONObject();
+            try {
+                JSONObject stageJson = new JSONObject();
+                for (Stage stage : STAGES) {
+                    JSONObject latency = new JSONObject();
+                    latency.put("count", getCount(stage));
+                    latency.put("meanNanos", getMeanNanos(stage));
+                    latency.put("p50Nanos", getP50Nanos(stage));
+                    latency.put("p95Nanos", getP95Nanos(stage));
+                    latency.put("p99Nanos", getP99Nanos(stage));
+                    latency.put("maxNanos", getMaxNanos(stage));
+                    stageJson.put(stage.name(), latency);
+                }
+                json.put("stages", stageJson);
+
+                JSONObject typeJson = new JSONObject();
+                for (InteractionUrl.Type type : TYPES) {
+                    typeJson.put(type.name(), getTagTypeCount(type));
+                }
+                json.put("tagTypes", typeJson);
+
+                JSONObject failureJson = new JSONObject();
+                for (Failure failure : FAILURES) {
+                    failureJson.put(failure.name(), getFailureCount(failure));
+                }
+                json.put("failures", failureJson);
+                json.put("succeeded", succeeded);
+                json.put("warmConnections", warmConnections);
+                json.put("coldConnections", coldConnections);
+            } catch (JSONException e) {
+                // only thrown for null names
+            }
+            return json;
+        }
+
+        @Override
+        public String toString() {
+            return toJSONObject().toString();
+        }
+    }
+}
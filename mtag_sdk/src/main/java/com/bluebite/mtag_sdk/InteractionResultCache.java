@@ -0,0 +1,136 @@
+//Copyright 2018 Blue Bite LLC.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package com.bluebite.mtag_sdk;
+
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Opt-in, in-memory cache of interactions results for tags whose requests carry no one-time
+ * data, so repeat taps can be answered without a network round trip.  Entries are evicted
+ * least recently used first once maxEntries is reached, and expire ttlMillis after they were
+ * stored.  Counter, auth and HID URLs are never cached since their VIDs are single use.
+ */
+public class InteractionResultCache {
+
+    private final int maxEntries;
+    private final long ttlNanos;
+
+    // guarded by this
+    private final LinkedHashMap<String, CachedResult> entries;
+    private long hits;
+    private long misses;
+
+    /**
+     * @param maxEntries Most results kept before the least recently used one is dropped.
+     * @param ttlMillis How long a result may be served after it was received.
+     */
+    public InteractionResultCache(final int maxEntries, long ttlMillis) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("maxEntries must be at least 1");
+        }
+        this.maxEntries = maxEntries;
+        this.ttlNanos = ttlMillis * 1000000L;
+        this.entries = new LinkedHashMap<String, CachedResult>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedResult> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * @param parsed Classified Interaction URL.
+     * @return True if results for this kind of URL may be cached.
+     */
+    public static boolean isCacheable(InteractionUrl parsed) {
+        return parsed.getType() == InteractionUrl.Type.SLUG
+                || parsed.getType() == InteractionUrl.Type.BASIC;
+    }
+
+    /**
+     * @param key Tag identity, see InFlightInteractions.keyFor.
+     * @return The cached result, or null on a miss.
+     */
+    public synchronized InteractionResult get(String key) {
+        CachedResult entry = entries.get(key);
+        if (entry != null && entry.expiresAt - now() > 0) {
+            hits++;
+            return entry.results;
+        }
+        if (entry != null) {
+            entries.remove(key);
+        }
+        misses++;
+        return null;
+    }
+
+    /**
+     * @param key Tag identity, see InFlightInteractions.keyFor.
+     * @param result Typed InteractionResult served for the key until the entry expires.  Hits
+     *               share it, each delivery builds its own payload from it.
+     */
+    public synchronized void put(String key, InteractionResult result) {
+        entries.put(key, new CachedResult(result, now() + ttlNanos));
+    }
+
+    /**
+     * Drops every cached result.  Hit and miss counts are kept.
+     */
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    /**
+     * @return Number of cached results, expired ones included until they are next looked up.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return Most results kept at once.
+     */
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    /**
+     * @return Current time in nanoseconds, overridable so tests can move the clock.
+     */
+    protected long now() {
+        return System.nanoTime();
+    }
+
+    private static class CachedResult {
+        final InteractionResult results;
+        final long expiresAt;
+
+        CachedResult(InteractionResult results, long expiresAt) {
+            this.results = results;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,32 @@
+//Copyright 2018 Blue Bite LLC.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+
+package com.bluebite.mtag_sdk;
+
+
+/**
+ * Delegate receiving interaction results as a typed {@link InteractionResult} instead of JSON.
+ * When a delegate implements this interface the SDK calls interactionResultWasReceived in place
+ * of interactionDataWasReceived, so the JSON form is never built unless the delegate asks for
+ * it with {@link InteractionResult#toJSONObject()}.
+ */
+public interface InteractionResultDelegate extends BlueBiteInteractionDelegate {
+    /**
+     * Called when an Interaction has been successfully registered with the BlueBite API.
+     * @param result Fields read from the authentication API's response.
+     */
+    void interactionResultWasReceived(InteractionResult result);
+}
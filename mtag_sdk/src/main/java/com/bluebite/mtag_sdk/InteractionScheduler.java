@@ -0,0 +1,54 @@
+//Copyright 2018 Blue Bite LLC.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+
+package com.bluebite.mtag_sdk;
+
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Single daemon thread shared by the SDK's timers: deadlines, retry backoffs and hedges.
+ * Created on first use.  Tasks must be short and hand real work to other threads.
+ */
+final class InteractionScheduler {
+
+    private InteractionScheduler() {
+    }
+
+    static ScheduledExecutorService get() {
+        return Holder.EXECUTOR;
+    }
+
+    private static class Holder {
+        static final ScheduledThreadPoolExecutor EXECUTOR = create();
+
+        private static ScheduledThreadPoolExecutor create() {
+            ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1,
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable runnable) {
+                            Thread thread = new Thread(runnable, "mtag-timers");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            executor.setRemoveOnCancelPolicy(true);
+            return executor;
+        }
+    }
+}
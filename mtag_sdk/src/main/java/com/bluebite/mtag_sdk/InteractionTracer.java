@@ -0,0 +1,211 @@
+//Copyright 2018 Blue Bite LLC.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+
+package com.bluebite.mtag_sdk;
+
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Level gated tracer recording what the SDK does into a fixed size ring buffer, see
+ * API.setTracer.  Every event is a handful of longs: no strings are built and nothing is
+ * allocated while recording, and events below the tracer's level return after one comparison.
+ * The buffer keeps the most recent events and is turned into text only when dumped.
+ * Subclasses may override record to forward events elsewhere.
+ */
+public class InteractionTracer {
+
+    /**
+     * Severity of an event, ordered like android.util.Log's levels.
+     */
+    public enum Level {
+        VERBOSE,
+        DEBUG,
+        INFO,
+        WARN,
+        ERROR,
+        /** Records nothing. */
+        OFF
+    }
+
+    /**
+     * Events the SDK records, each with two numeric arguments.
+     */
+    public enum Event {
+        /** A single interaction URL was received. */
+        INTERACTION_RECEIVED(Level.VERBOSE, "type", "urlHash"),
+        /** A list of interaction URLs was received. */
+        INTERACTIONS_RECEIVED(Level.VERBOSE, "count", "batchSize"),
+        /** An interaction was answered from the result cache. */
+        CACHE_HIT(Level.DEBUG, "type", "urlHash"),
+        /** An interaction joined an identical request already in flight. */
+        REQUEST_JOINED(Level.DEBUG, "type", "urlHash"),
+        /** A request was handed to the transport. */
+        REQUEST_SENT(Level.DEBUG, "params", "attempt"),
+        /** A failed request will be sent again. */
+        RETRY_SCHEDULED(Level.INFO, "attempt", "backoffMillis"),
+        /** A slow request was hedged with a second copy. */
+        REQUEST_HEDGED(Level.INFO, "attempt", "delayMillis"),
+        /** The interactions route answered. */
+        RESPONSE_RECEIVED(Level.DEBUG, "status", "bytes"),
+        /** An interaction failed, see InteractionMetrics.Failure for the cause. */
+        INTERACTION_FAILED(Level.WARN, "failure", "status"),
+        /** Queued interactions are being sent. */
+        REPLAY_STARTED(Level.INFO, "count", "queued"),
+        /** A one-time VID was already sent from this device, see API.setReplayFilter. */
+        REPLAY_DETECTED(Level.WARN, "type", "skipped"),
+        /** A full burst mode queue dropped a tap. */
+        TAP_REJECTED(Level.WARN, "depth", "policy"),
+        /** A failed request was sent again to another endpoint, see API.setEndpointRouter. */
+        ENDPOINT_FAILOVER(Level.WARN, "from", "to"),
+        /** An endpoint's circuit opened and it stops getting requests for a while. */
+        CIRCUIT_OPENED(Level.WARN, "endpoint", "failures");
+
+        final Level level;
+        final String arg0;
+        final String arg1;
+
+        Event(Level level, String arg0, String arg1) {
+            this.level = level;
+            this.arg0 = arg0;
+            this.arg1 = arg1;
+        }
+
+        public Level getLevel() {
+            return level;
+        }
+    }
+
+    private static final String TAG = InteractionTracer.class.getSimpleName();
+    private static final Event[] EVENTS = Event.values();
+    // stamp, time, event and thread, arg0, arg1
+    private static final int SLOT_LONGS = 5;
+
+    private final int capacity;
+    private final AtomicLongArray slots;
+    private final AtomicLong next = new AtomicLong();
+    private volatile int level;
+
+    /**
+     * @param capacity Number of most recent events kept, rounded up to a power of two.
+     * @param level Lowest level recorded.
+     */
+    public InteractionTracer(int capacity, Level level) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1");
+        }
+        int size = Integer.highestOneBit(capacity);
+        this.capacity = size < capacity ? size << 1 : size;
+        this.slots = new AtomicLongArray(this.capacity * SLOT_LONGS);
+        this.level = level.ordinal();
+    }
+
+    /**
+     * @param level Lowest level recorded, OFF to stop recording.
+     */
+    public void setLevel(Level level) {
+        this.level = level.ordinal();
+    }
+
+    public Level getLevel() {
+        return Level.values()[level];
+    }
+
+    /**
+     * @return True if events at the level are recorded.
+     */
+    public boolean isEnabled(Level level) {
+        return level.ordinal() >= this.level;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return Number of events recorded since the tracer was created, dropped ones included.
+     */
+    public long getRecordedCount() {
+        return next.get();
+    }
+
+    /**
+     * Records an event if its level is enabled.  Lock-free, safe from any thread.
+     * @param event Event that happened.
+     * @param arg0 First argument, see the event's documentation.
+     * @param arg1 Second argument.
+     */
+    public void record(Event event, long arg0, long arg1) {
+        if (event.level.ordinal() < level) {
+            return;
+        }
+        long sequence = next.getAndIncrement();
+        int base = (int) (sequence & (capacity - 1)) * SLOT_LONGS;
+        // clear the stamp first so a concurrent dump can tell the slot is being rewritten
+        slots.set(base, 0);
+        slots.set(base + 1, System.nanoTime());
+        slots.set(base + 2, ((long) event.ordinal() << 32)
+                | (Thread.currentThread().getId() & 0xffffffffL));
+        slots.set(base + 3, arg0);
+        slots.set(base + 4, arg1);
+        slots.set(base, sequence + 1);
+    }
+
+    /**
+     * Formats the events still in the buffer, oldest first.  Events being overwritten while
+     * dumping are skipped.
+     * @return One line per event, timestamped relative to the oldest event.
+     */
+    public List<String> dump() {
+        long end = next.get();
+        long start = Math.max(0, end - capacity);
+        List<String> lines = new ArrayList<>((int) (end - start));
+        long firstTime = 0;
+        for (long sequence = start; sequence < end; sequence++) {
+            int base = (int) (sequence & (capacity - 1)) * SLOT_LONGS;
+            long stamp = slots.get(base);
+            long time = slots.get(base + 1);
+            long eventAndThread = slots.get(base + 2);
+            long arg0 = slots.get(base + 3);
+            long arg1 = slots.get(base + 4);
+            if (stamp != sequence + 1 || slots.get(base) != stamp) {
+                continue;
+            }
+            if (lines.isEmpty()) {
+                firstTime = time;
+            }
+            Event event = EVENTS[(int) (eventAndThread >>> 32)];
+            lines.add(String.format("+%.3fms thread=%d %s %s %s=%d %s=%d",
+                    (time - firstTime) / 1e6, eventAndThread & 0xffffffffL, event.level,
+                    event, event.arg0, arg0, event.arg1, arg1));
+        }
+        return lines;
+    }
+
+    /**
+     * Writes the events still in the buffer to logcat at debug level.
+     */
+    public void dumpToLog() {
+        for (String line : dump()) {
+            Log.d(TAG, line);
+        }
+    }
+}
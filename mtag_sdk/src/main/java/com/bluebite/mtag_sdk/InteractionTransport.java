@@ -0,0 +1,74 @@
+//Copyright 2018 Blue Bite LLC.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package com.bluebite.mtag_sdk;
+
+
+import java.util.Map;
+
+/**
+ * Sends interactions requests on behalf of API.  Swap implementations with API.setTransport to
+ * share connections between API instances, tune the HTTP client, or answer requests in-process
+ * for tests and load runs.
+ */
+public interface InteractionTransport {
+
+    /**
+     * Pseudo response header a transport may add, "true" or "false", to say whether the
+     * request went over a connection that was already open.  API counts it in
+     * InteractionMetrics.
+     */
+    String HEADER_CONNECTION_REUSED = "X-Mtag-Connection-Reused";
+
+    /**
+     * Handle on a request that has been sent.
+     */
+    interface Call {
+        /**
+         * Aborts the request.  Its Callback won't be invoked afterwards.
+         */
+        void cancel();
+    }
+
+    /**
+     * Receives the outcome of a request.  Exactly one method is called per request, on any
+     * thread the transport chooses.
+     */
+    interface Callback {
+        /**
+         * Called when the server responded, whatever the status code.
+         * @param statusCode HTTP status code.
+         * @param headers Response headers, names as sent by the server.
+         * @param body Raw response body, empty if there was none.
+         */
+        void onResponse(int statusCode, Map<String, String> headers, byte[] body);
+
+        /**
+         * Called when no response was received, e.g. the network is down or the request
+         * timed out.
+         * @param cause What went wrong.
+         */
+        void onFailure(Throwable cause);
+    }
+
+    /**
+     * POSTs form encoded parameters.
+     * @param url Target URL.
+     * @param params Form parameters.
+     * @param callback Receives the response.
+     * @return Handle to cancel the request with.
+     */
+    Call post(String url, Map<String, String> params, Callback callback);
+}
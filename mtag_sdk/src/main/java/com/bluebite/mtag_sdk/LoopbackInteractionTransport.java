@@ -0,0 +1,144 @@
+//Copyright 2018 Blue Bite LLC.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package com.bluebite.mtag_sdk;
+
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * In-process InteractionTransport that answers requests with a Responder instead of going to
+ * the network.  Useful for tests, and for load runs that want to measure the SDK without the
+ * cost of a real connection.  Responses are delivered on the calling thread, or after a
+ * latency on a scheduler that can be changed while requests are running.
+ */
+public class LoopbackInteractionTransport implements InteractionTransport {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Produces the response for a request.
+     */
+    public interface Responder {
+        /**
+         * @param url Target URL of the request.
+         * @param params Form parameters of the request.
+         * @return Response to deliver.
+         * @throws IOException To simulate the request getting no response at all.
+         */
+        Response respond(String url, Map<String, String> params) throws IOException;
+    }
+
+    /**
+     * A canned response.
+     */
+    public static class Response {
+        final int statusCode;
+        final Map<String, String> headers;
+        final byte[] body;
+
+        public Response(int statusCode, Map<String, String> headers, byte[] body) {
+            this.statusCode = statusCode;
+            this.headers = headers;
+            this.body = body;
+        }
+
+        public Response(int statusCode, String body) {
+            this(statusCode, Collections.<String, String>emptyMap(), body.getBytes(UTF_8));
+        }
+    }
+
+    private final Responder responder;
+    private final ScheduledExecutorService scheduler;
+    private volatile long latencyMillis;
+
+    /**
+     * Answers every request synchronously, on the thread that sent it.
+     * @param responder Produces the responses.
+     */
+    public LoopbackInteractionTransport(Responder responder) {
+        this(responder, null, 0);
+    }
+
+    /**
+     * Answers every request after a fixed latency.
+     * @param responder Produces the responses, called on the scheduler's threads.
+     * @param scheduler Scheduler delivering the responses.
+     * @param latencyMillis Delay before each response.
+     */
+    public LoopbackInteractionTransport(Responder responder, ScheduledExecutorService scheduler,
+                                        long latencyMillis) {
+        this.responder = responder;
+        this.scheduler = scheduler;
+        this.latencyMillis = latencyMillis;
+    }
+
+    /**
+     * Changes the delay of requests sent from now on, e.g. to simulate a server slowing down.
+     * Only applies when a scheduler was given.
+     * @param latencyMillis Delay before each response.
+     */
+    public void setLatencyMillis(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    @Override
+    public Call post(final String url, final Map<String, String> params,
+                     final Callback callback) {
+        final AtomicBoolean cancelled = new AtomicBoolean();
+        Runnable respond = new Runnable() {
+            @Override
+            public void run() {
+                if (cancelled.get()) {
+                    return;
+                }
+                Response response;
+                try {
+                    response = responder.respond(url, params);
+                } catch (IOException e) {
+                    callback.onFailure(e);
+                    return;
+                }
+                callback.onResponse(response.statusCode, response.headers, response.body);
+            }
+        };
+
+        if (scheduler == null) {
+            respond.run();
+            return new Call() {
+                @Override
+                public void cancel() {
+                }
+            };
+        }
+
+        final ScheduledFuture<?> future =
+                scheduler.schedule(respond, latencyMillis, TimeUnit.MILLISECONDS);
+        return new Call() {
+            @Override
+            public void cancel() {
+                cancelled.set(true);
+                future.cancel(false);
+            }
+        };
+    }
+}
@@ -0,0 +1,121 @@
+//Copyright 2018 Blue Bite LLC.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package com.bluebite.mtag_sdk;
+
+
+import android.app.Activity;
+import android.nfc.NdefMessage;
+import android.nfc.NdefRecord;
+import android.nfc.NfcAdapter;
+import android.nfc.Tag;
+import android.nfc.tech.Ndef;
+
+/**
+ * Reads tags in NFC reader mode and starts verifying them right away.  Tags arrive on the
+ * NFC service's binder thread instead of as an ACTION_NDEF_DISCOVERED intent delivered to the
+ * activity, and the URI record's bytes are decoded by NdefUriDecoder instead of going through
+ * Intent.getDataString and a URL regex.  Results reach the API's delegate as usual; tags
+ * without an http(s) URL fail with {@link API#ERROR_INVALID_TAG_DATA}.
+ * <p>
+ * Enable it in the activity's onResume and disable it in onPause.  While it is enabled other
+ * apps and foreground dispatch don't see tags.
+ */
+public class NfcReaderMode implements NfcAdapter.ReaderCallback {
+
+    /**
+     * Poll for every NFC technology phones read tags with.
+     */
+    public static final int DEFAULT_FLAGS = NfcAdapter.FLAG_READER_NFC_A
+            | NfcAdapter.FLAG_READER_NFC_B | NfcAdapter.FLAG_READER_NFC_F
+            | NfcAdapter.FLAG_READER_NFC_V;
+
+    private final API api;
+    private volatile int flags = DEFAULT_FLAGS;
+
+    /**
+     * @param api API verifying the tags that are read.
+     */
+    public NfcReaderMode(API api) {
+        this.api = api;
+    }
+
+    /**
+     * @param flags NfcAdapter FLAG_READER_* flags, e.g. to add FLAG_READER_NO_PLATFORM_SOUNDS.
+     *              Takes effect the next time reader mode is enabled.
+     */
+    public void setFlags(int flags) {
+        this.flags = flags;
+    }
+
+    /**
+     * Starts reading tags while the activity is in the foreground.
+     * @param activity Resumed activity.
+     * @return False if the device has no NFC adapter.
+     */
+    public boolean enable(Activity activity) {
+        NfcAdapter adapter = NfcAdapter.getDefaultAdapter(activity);
+        if (adapter == null) {
+            return false;
+        }
+        adapter.enableReaderMode(activity, this, flags, null);
+        return true;
+    }
+
+    /**
+     * Stops reading tags, call from the activity's onPause.
+     * @param activity Activity reader mode was enabled for.
+     */
+    public void disable(Activity activity) {
+        NfcAdapter adapter = NfcAdapter.getDefaultAdapter(activity);
+        if (adapter != null) {
+            adapter.disableReaderMode(activity);
+        }
+    }
+
+    /**
+     * Runs on the NFC binder thread.  The platform already read the NDEF message while
+     * discovering the tag, so nothing is read from the tag here.
+     */
+    @Override
+    public void onTagDiscovered(Tag tag) {
+        Ndef ndef = Ndef.get(tag);
+        if (ndef == null) {
+            api.rejectTagData("not an NDEF tag");
+            return;
+        }
+        NdefMessage message = ndef.getCachedNdefMessage();
+        String url = message != null ? webUrl(message) : null;
+        if (url == null) {
+            api.rejectTagData("no http(s) URI record");
+            return;
+        }
+        api.interactionWasReceived(url);
+    }
+
+    /**
+     * @return The first http(s) URL in the message, or null if there isn't one.
+     */
+    private static String webUrl(NdefMessage message) {
+        for (NdefRecord record : message.getRecords()) {
+            String uri = NdefUriDecoder.decodeRecord(record.getTnf(), record.getType(),
+                    record.getPayload());
+            if (NdefUriDecoder.isWebUrl(uri)) {
+                return uri;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,468 @@
+//Copyright 2018 Blue Bite LLC.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package com.bluebite.mtag_sdk;
+
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Durable FIFO of Interaction URLs that couldn't be sent because the network was down.
+ * <p>
+ * URLs are appended to segment files as records of a 2 byte length, a 4 byte CRC32 and the
+ * UTF-8 URL.  Writes go straight to the file channel, so queued taps survive the process
+ * dying without an fsync per record; call {@link #flush()} to also survive power loss.
+ * The position of the oldest unacknowledged record is kept in a small checkpoint file, and
+ * segments are deleted once every record in them has been acknowledged.  A record torn by a
+ * crash fails its checksum and is dropped, along with anything after it in the segment.
+ */
+public class OfflineInteractionQueue implements Closeable {
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String CHECKPOINT_NAME = "checkpoint";
+    private static final int HEADER_LENGTH = 6;
+    private static final int MAX_RECORD_LENGTH = 0xFFFF;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    public static final long DEFAULT_SEGMENT_BYTES = 256 * 1024;
+    public static final long DEFAULT_MAX_BYTES = 8 * 1024 * 1024;
+    public static final int DEFAULT_REPLAY_BATCH_SIZE = 25;
+
+    private final File directory;
+    private final long maxSegmentBytes;
+    private final long maxBytes;
+    private final int replayBatchSize;
+
+    // guarded by this
+    private final List<Long> segments = new ArrayList<>();
+    private FileChannel writeChannel;
+    private long writeOffset;
+    private long readSegment;
+    private long readOffset;
+    private int pending;
+    private long pendingBytes;
+    private long queuedCount;
+    private long replayedCount;
+    private long droppedCount;
+    private ByteBuffer writeBuffer = ByteBuffer.allocate(512);
+    private final CRC32 crc = new CRC32();
+
+    /**
+     * Opens the queue with default limits.
+     * @param directory Directory holding the queue's files, created if missing.
+     * @throws IOException If the directory or its files can't be read or written.
+     */
+    public OfflineInteractionQueue(File directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_BYTES, DEFAULT_MAX_BYTES, DEFAULT_REPLAY_BATCH_SIZE);
+    }
+
+    /**
+     * Opens the queue, recovering any records a previous process left behind.
+     * @param directory Directory holding the queue's files, created if missing.
+     * @param maxSegmentBytes Size at which a new segment file is started.
+     * @param maxBytes Most bytes of unacknowledged records kept, newer URLs are dropped past it.
+     * @param replayBatchSize Number of URLs API.replayOfflineQueue sends per batch.
+     * @throws IOException If the directory or its files can't be read or written.
+     */
+    public OfflineInteractionQueue(File directory, long maxSegmentBytes, long maxBytes,
+                                   int replayBatchSize) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can't create queue directory " + directory);
+        }
+        this.directory = directory;
+        this.maxSegmentBytes = maxSegmentBytes;
+        this.maxBytes = maxBytes;
+        this.replayBatchSize = replayBatchSize;
+        recover();
+    }
+
+    /**
+     * Appends a URL to the end of the queue.
+     * @param url Interaction URL to replay later.
+     * @return False if the URL was dropped because the queue is full or couldn't be written.
+     */
+    public synchronized boolean offer(String url) {
+        byte[] payload = url.getBytes(UTF_8);
+        int recordLength = HEADER_LENGTH + payload.length;
+        if (writeChannel == null || payload.length > MAX_RECORD_LENGTH
+                || pendingBytes + recordLength > maxBytes) {
+            droppedCount++;
+            return false;
+        }
+        try {
+            if (writeOffset > 0 && writeOffset + recordLength > maxSegmentBytes) {
+                startSegment(segments.get(segments.size() - 1) + 1);
+            }
+            if (writeBuffer.capacity() < recordLength) {
+                writeBuffer = ByteBuffer.allocate(recordLength);
+            }
+            writeBuffer.clear();
+            writeBuffer.putShort((short) payload.length);
+            writeBuffer.putInt(checksum(payload, 0, payload.length));
+            writeBuffer.put(payload);
+            writeBuffer.flip();
+            while (writeBuffer.hasRemaining()) {
+                writeChannel.write(writeBuffer, writeOffset + writeBuffer.position());
+            }
+        } catch (IOException e) {
+            droppedCount++;
+            return false;
+        }
+        writeOffset += recordLength;
+        pending++;
+        pendingBytes += recordLength;
+        queuedCount++;
+        return true;
+    }
+
+    /**
+     * Reads the oldest URLs without removing them.
+     * @param max Most URLs to return.
+     * @return Up to max URLs, oldest first.
+     */
+    public synchronized List<String> peek(int max) {
+        List<String> urls = new ArrayList<>(Math.min(max, pending));
+        try {
+            walk(Math.min(max, pending), urls);
+        } catch (IOException e) {
+            // unreadable segment, hand back what was read so far
+        }
+        return urls;
+    }
+
+    /**
+     * Removes the oldest records once they've been handled, deleting segments that no longer
+     * hold anything.
+     * @param count Number of records to remove, as previously returned by peek.
+     */
+    public synchronized void acknowledge(int count) {
+        count = Math.min(count, pending);
+        if (count <= 0) {
+            return;
+        }
+        try {
+            long[] position = walk(count, null);
+            pendingBytes -= bytesBetween(readSegment, readOffset, position[0], position[1]);
+            readSegment = position[0];
+            readOffset = position[1];
+            pending -= count;
+
+            // everything acknowledged, start over with an empty segment
+            if (pending == 0) {
+                startSegment(segments.get(segments.size() - 1) + 1);
+                readSegment = segments.get(segments.size() - 1);
+                readOffset = 0;
+                pendingBytes = 0;
+            }
+            while (segments.size() > 1 && segments.get(0) < readSegment) {
+                segmentFile(segments.remove(0)).delete();
+            }
+            writeCheckpoint();
+        } catch (IOException e) {
+            // the checkpoint is behind, worst case those records are replayed again
+        }
+    }
+
+    /**
+     * Counts URLs that were sent again, used by API.replayOfflineQueue.
+     * @param count Number of URLs replayed.
+     */
+    synchronized void recordReplayed(int count) {
+        replayedCount += count;
+    }
+
+    /**
+     * Forces queued records to the storage device.  Not needed to survive the process dying,
+     * only to survive the device losing power.
+     * @throws IOException If the segment couldn't be synced.
+     */
+    public synchronized void flush() throws IOException {
+        if (writeChannel != null) {
+            writeChannel.force(false);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (writeChannel != null) {
+            writeChannel.close();
+            writeChannel = null;
+        }
+    }
+
+    /**
+     * @return Number of URLs waiting to be replayed.
+     */
+    public synchronized int size() {
+        return pending;
+    }
+
+    /**
+     * @return Number of URLs queued since the queue was opened.
+     */
+    public synchronized long getQueuedCount() {
+        return queuedCount;
+    }
+
+    /**
+     * @return Number of queued URLs sent again since the queue was opened.
+     */
+    public synchronized long getReplayedCount() {
+        return replayedCount;
+    }
+
+    /**
+     * @return Number of URLs dropped because the queue was full, unwritable or corrupted.
+     */
+    public synchronized long getDroppedCount() {
+        return droppedCount;
+    }
+
+    public int getReplayBatchSize() {
+        return replayBatchSize;
+    }
+
+    /**
+     * Loads segments and the checkpoint, validates every unacknowledged record and truncates
+     * anything torn by a crash.
+     */
+    private void recover() throws IOException {
+        File[] files = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                try {
+                    segments.add(Long.parseLong(
+                            name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    // not one of ours
+                }
+            }
+        }
+        Collections.sort(segments);
+        if (segments.isEmpty()) {
+            segments.add(0L);
+        }
+
+        readSegment = segments.get(0);
+        readOffset = 0;
+        readCheckpoint();
+        while (segments.size() > 1 && segments.get(0) < readSegment) {
+            segmentFile(segments.remove(0)).delete();
+        }
+
+        for (int i = 0; i < segments.size(); i++) {
+            long segment = segments.get(i);
+            long start = segment == readSegment ? readOffset : 0;
+            long validEnd = validate(segment, start);
+            RandomAccessFile file = new RandomAccessFile(segmentFile(segment), "rw");
+            if (file.length() > validEnd) {
+                file.setLength(validEnd);
+            }
+            if (i == segments.size() - 1) {
+                writeChannel = file.getChannel();
+                writeOffset = validEnd;
+            } else {
+                file.close();
+            }
+        }
+    }
+
+    /**
+     * Counts the valid records of a segment from an offset.
+     * @return Offset just past the last valid record.
+     */
+    private long validate(long segment, long offset) throws IOException {
+        if (!segmentFile(segment).exists()) {
+            return 0;
+        }
+        RandomAccessFile file = new RandomAccessFile(segmentFile(segment), "r");
+        try {
+            FileChannel channel = file.getChannel();
+            long size = channel.size();
+            if (offset >= size) {
+                return size;
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            buffer.position((int) offset);
+            byte[] payload = new byte[MAX_RECORD_LENGTH];
+            while (buffer.remaining() > 0) {
+                int start = buffer.position();
+                if (buffer.remaining() < HEADER_LENGTH) {
+                    droppedCount++;
+                    return start;
+                }
+                int length = buffer.getShort() & 0xFFFF;
+                int expected = buffer.getInt();
+                if (buffer.remaining() < length) {
+                    droppedCount++;
+                    return start;
+                }
+                buffer.get(payload, 0, length);
+                if (checksum(payload, 0, length) != expected) {
+                    droppedCount++;
+                    return start;
+                }
+                pending++;
+                pendingBytes += HEADER_LENGTH + length;
+            }
+            return size;
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Walks records forward from the read position.
+     * @param count Number of records to walk over.
+     * @param out Receives the URLs walked over, may be null.
+     * @return Segment and offset just past the last record walked.
+     */
+    private long[] walk(int count, List<String> out) throws IOException {
+        long segment = readSegment;
+        long offset = readOffset;
+        int index = segments.indexOf(segment);
+        while (count > 0 && index < segments.size()) {
+            segment = segments.get(index);
+            RandomAccessFile file = new RandomAccessFile(segmentFile(segment), "r");
+            try {
+                FileChannel channel = file.getChannel();
+                long size = segment == segments.get(segments.size() - 1)
+                        ? writeOffset : channel.size();
+                if (offset < size) {
+                    MappedByteBuffer buffer = channel.map(
+                            FileChannel.MapMode.READ_ONLY, offset, size - offset);
+                    while (count > 0 && buffer.remaining() >= HEADER_LENGTH) {
+                        int length = buffer.getShort() & 0xFFFF;
+                        buffer.getInt();
+                        if (out != null) {
+                            byte[] payload = new byte[length];
+                            buffer.get(payload);
+                            out.add(new String(payload, UTF_8));
+                        } else {
+                            buffer.position(buffer.position() + length);
+                        }
+                        count--;
+                    }
+                    offset += buffer.position();
+                }
+            } finally {
+                file.close();
+            }
+            if (count > 0) {
+                index++;
+                offset = 0;
+            }
+        }
+        return new long[] {segment, offset};
+    }
+
+    private long bytesBetween(long fromSegment, long fromOffset, long toSegment, long toOffset) {
+        long bytes = 0;
+        for (long segment : segments) {
+            if (segment < fromSegment || segment > toSegment) {
+                continue;
+            }
+            long start = segment == fromSegment ? fromOffset : 0;
+            long end = segment == toSegment ? toOffset : segmentFile(segment).length();
+            bytes += end - start;
+        }
+        return bytes;
+    }
+
+    private void startSegment(long segment) throws IOException {
+        if (writeChannel != null) {
+            writeChannel.close();
+        }
+        writeChannel = new RandomAccessFile(segmentFile(segment), "rw").getChannel();
+        writeChannel.truncate(0);
+        writeOffset = 0;
+        segments.add(segment);
+    }
+
+    private void readCheckpoint() throws IOException {
+        File checkpoint = new File(directory, CHECKPOINT_NAME);
+        if (!checkpoint.exists()) {
+            return;
+        }
+        RandomAccessFile file = new RandomAccessFile(checkpoint, "r");
+        try {
+            if (file.length() < 20) {
+                return;
+            }
+            byte[] bytes = new byte[16];
+            file.readFully(bytes);
+            if (checksum(bytes, 0, bytes.length) != file.readInt()) {
+                return;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            long segment = buffer.getLong();
+            long offset = buffer.getLong();
+            if (segments.contains(segment)) {
+                readSegment = segment;
+                readOffset = offset;
+            }
+        } finally {
+            file.close();
+        }
+    }
+
+    private void writeCheckpoint() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(20);
+        buffer.putLong(readSegment);
+        buffer.putLong(readOffset);
+        buffer.putInt(checksum(buffer.array(), 0, 16));
+        buffer.flip();
+
+        // write aside and rename so a crash never leaves a half written checkpoint
+        File temp = new File(directory, CHECKPOINT_NAME + ".tmp");
+        RandomAccessFile file = new RandomAccessFile(temp, "rw");
+        try {
+            file.getChannel().write(buffer);
+        } finally {
+            file.close();
+        }
+        if (!temp.renameTo(new File(directory, CHECKPOINT_NAME))) {
+            throw new IOException("Can't replace queue checkpoint");
+        }
+    }
+
+    private int checksum(byte[] bytes, int offset, int length) {
+        crc.reset();
+        crc.update(bytes, offset, length);
+        return (int) crc.getValue();
+    }
+
+    private File segmentFile(long segment) {
+        return new File(directory, segment + SEGMENT_SUFFIX);
+    }
+}
@@ -0,0 +1,179 @@
+//Copyright 2018 Blue Bite LLC.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+
+package com.bluebite.mtag_sdk;
+
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Decides whether and when a failed interactions request is sent again, and whether a slow one
+ * is hedged with a second copy, see API.setRetryPolicy.
+ * <p>
+ * Requests carrying a vid (counter, auth and HID tags) are one-time: the server may count a
+ * repeated VID as a replay, so they are never retried or hedged unless
+ * {@link #setServerDedupesVids} says the server recognizes repeats.  Only missing responses,
+ * 408, 429 and 5xx statuses are retried.
+ */
+public class RetryPolicy {
+
+    private static final int LATENCY_SAMPLES = 256;
+    private static final int RECOMPUTE_EVERY = 32;
+    private static final int MIN_HEDGE_SAMPLES = 20;
+
+    private final int maxAttempts;
+    private final long initialBackoffMillis;
+    private final long maxBackoffMillis;
+    private final double jitter;
+    private final Random random = new Random();
+
+    private volatile boolean serverDedupesVids;
+    private volatile boolean hedging;
+    private volatile double hedgePercentile = 0.95;
+    private volatile long minHedgeDelayMillis = 50;
+
+    // recent response latencies, written round robin
+    private final AtomicLongArray latencies = new AtomicLongArray(LATENCY_SAMPLES);
+    private final AtomicInteger recorded = new AtomicInteger();
+    private volatile long hedgeDelayMillis = -1;
+
+    /**
+     * @param maxAttempts Most requests sent for one interaction, the first one included.
+     * @param initialBackoffMillis Wait before the first retry, doubled for every later one.
+     * @param maxBackoffMillis Longest wait between retries.
+     * @param jitter Fraction, 0 to 1, of each wait that is randomized so clients that failed
+     *               together don't retry together.
+     */
+    public RetryPolicy(int maxAttempts, long initialBackoffMillis, long maxBackoffMillis,
+                       double jitter) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("maxAttempts must be at least 1");
+        }
+        if (jitter < 0 || jitter > 1) {
+            throw new IllegalArgumentException("jitter must be between 0 and 1");
+        }
+        this.maxAttempts = maxAttempts;
+        this.initialBackoffMillis = initialBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+        this.jitter = jitter;
+    }
+
+    /**
+     * @param serverDedupesVids True if the interactions route recognizes a repeated VID, which
+     *                          makes retrying and hedging one-time requests safe.
+     */
+    public void setServerDedupesVids(boolean serverDedupesVids) {
+        this.serverDedupesVids = serverDedupesVids;
+    }
+
+    /**
+     * Enables sending a second copy of a request that has been outstanding longer than the
+     * given percentile of recent response times, taking whichever answer arrives first.
+     * Hedging starts once enough responses were seen to estimate the percentile.
+     * @param enabled True to hedge.
+     * @param percentile Percentile of recent latencies to wait for, e.g. 0.95.
+     * @param minDelayMillis Shortest wait before hedging.
+     */
+    public void setHedging(boolean enabled, double percentile, long minDelayMillis) {
+        if (percentile <= 0 || percentile >= 1) {
+            throw new IllegalArgumentException("percentile must be between 0 and 1");
+        }
+        this.hedgePercentile = percentile;
+        this.minHedgeDelayMillis = minDelayMillis;
+        this.hedgeDelayMillis = -1;
+        this.hedging = enabled;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * @param params Request parameters.
+     * @return True if sending the request twice can't be mistaken for a replay.
+     */
+    public boolean isIdempotent(Map<String, String> params) {
+        return serverDedupesVids || !params.containsKey("vid");
+    }
+
+    /**
+     * @param params Request parameters.
+     * @param attempts Requests sent so far.
+     * @param statusCode Status of the failed response, 0 when none was received.
+     * @return True if another request should be sent.
+     */
+    public boolean shouldRetry(Map<String, String> params, int attempts, int statusCode) {
+        if (attempts >= maxAttempts || !isIdempotent(params)) {
+            return false;
+        }
+        return statusCode == 0 || statusCode == 408 || statusCode == 429 || statusCode >= 500;
+    }
+
+    /**
+     * @param retry 1 for the first retry, 2 for the second, and so on.
+     * @return Wait before sending the retry.
+     */
+    public long getBackoffMillis(int retry) {
+        long backoff = initialBackoffMillis;
+        for (int i = 1; i < retry && backoff < maxBackoffMillis; i++) {
+            backoff *= 2;
+        }
+        backoff = Math.min(backoff, maxBackoffMillis);
+        double random;
+        synchronized (this.random) {
+            random = this.random.nextDouble();
+        }
+        return (long) (backoff * (1 - jitter * random));
+    }
+
+    /**
+     * @param params Request parameters.
+     * @return Wait before hedging the request, or -1 if it shouldn't be hedged.
+     */
+    public long getHedgeDelayMillis(Map<String, String> params) {
+        if (!hedging || !isIdempotent(params)) {
+            return -1;
+        }
+        return hedgeDelayMillis;
+    }
+
+    /**
+     * Feeds the hedge delay estimate.
+     * @param nanos Time from sending a request until its response arrived.
+     */
+    public void recordLatency(long nanos) {
+        if (!hedging) {
+            return;
+        }
+        int count = recorded.incrementAndGet();
+        latencies.set((count - 1) % LATENCY_SAMPLES, nanos);
+        if (count >= MIN_HEDGE_SAMPLES && (count % RECOMPUTE_EVERY == 0
+                || hedgeDelayMillis < 0)) {
+            int samples = Math.min(count, LATENCY_SAMPLES);
+            long[] sorted = new long[samples];
+            for (int i = 0; i < samples; i++) {
+                sorted[i] = latencies.get(i);
+            }
+            Arrays.sort(sorted);
+            long percentile = sorted[(int) Math.min(samples - 1, samples * hedgePercentile)];
+            hedgeDelayMillis = Math.max(minHedgeDelayMillis, percentile / 1000000L);
+        }
+    }
+}
@@ -0,0 +1,247 @@
+//Copyright 2018 Blue Bite LLC.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+
+package com.bluebite.mtag_sdk;
+
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends one interactions request under a RetryPolicy: failed attempts are retried after a
+ * backoff, and a slow first attempt may be hedged with a second one.  The first successful or
+ * final answer is passed to the callback and every other attempt is cancelled.
+ */
+final class RetryingInteractionCall implements InteractionTransport.Call {
+
+    private final InteractionTransport transport;
+    private final String url;
+    private final Map<String, String> params;
+    private final RetryPolicy policy;
+    private final InteractionTransport.Callback callback;
+    private final InteractionTracer tracer;
+
+    // guarded by this
+    private int attempts;
+    private boolean finished;
+    private boolean hedgeAllowed = true;
+    private final List<Attempt> running = new ArrayList<>(2);
+    private ScheduledFuture<?> timer;
+
+    RetryingInteractionCall(InteractionTransport transport, String url,
+                            Map<String, String> params, RetryPolicy policy,
+                            InteractionTransport.Callback callback, InteractionTracer tracer) {
+        this.transport = transport;
+        this.url = url;
+        this.params = params;
+        this.policy = policy;
+        this.callback = callback;
+        this.tracer = tracer;
+    }
+
+    /**
+     * Sends the first attempt.
+     * @return This call, for cancelling every attempt.
+     */
+    RetryingInteractionCall start() {
+        send(false);
+        return this;
+    }
+
+    @Override
+    public void cancel() {
+        List<Attempt> abandoned;
+        ScheduledFuture<?> pending;
+        synchronized (this) {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            abandoned = new ArrayList<>(running);
+            running.clear();
+            pending = timer;
+            timer = null;
+        }
+        cancelAll(abandoned, pending);
+    }
+
+    private void send(boolean hedge) {
+        Attempt attempt = new Attempt();
+        long hedgeDelay = -1;
+        int attemptNumber;
+        synchronized (this) {
+            if (finished) {
+                return;
+            }
+            attemptNumber = ++attempts;
+            running.add(attempt);
+            if (!hedge && hedgeAllowed && attempts < policy.getMaxAttempts()) {
+                hedgeDelay = policy.getHedgeDelayMillis(params);
+            }
+        }
+
+        if (tracer != null) {
+            tracer.record(InteractionTracer.Event.REQUEST_SENT, params.size(), attemptNumber);
+        }
+        InteractionTransport.Call call = transport.post(url, params, attempt);
+        boolean abandoned;
+        synchronized (this) {
+            abandoned = finished && !attempt.done;
+            if (!abandoned) {
+                attempt.call = call;
+            }
+            if (hedgeDelay > 0 && !finished && !attempt.done) {
+                final long delay = hedgeDelay;
+                timer = InteractionScheduler.get().schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        hedge(delay);
+                    }
+                }, hedgeDelay, TimeUnit.MILLISECONDS);
+            }
+        }
+        if (abandoned && call != null) {
+            call.cancel();
+        }
+    }
+
+    private void hedge(long delayMillis) {
+        int attemptNumber;
+        synchronized (this) {
+            if (finished || !hedgeAllowed) {
+                return;
+            }
+            hedgeAllowed = false;
+            timer = null;
+            attemptNumber = attempts + 1;
+        }
+        if (tracer != null) {
+            tracer.record(InteractionTracer.Event.REQUEST_HEDGED, attemptNumber, delayMillis);
+        }
+        send(true);
+    }
+
+    private void retry() {
+        synchronized (this) {
+            timer = null;
+        }
+        send(false);
+    }
+
+    private void succeeded(Attempt winner, int statusCode, Map<String, String> headers,
+                           byte[] body) {
+        List<Attempt> losers;
+        ScheduledFuture<?> pending;
+        synchronized (this) {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            winner.done = true;
+            running.remove(winner);
+            losers = new ArrayList<>(running);
+            running.clear();
+            pending = timer;
+            timer = null;
+        }
+        cancelAll(losers, pending);
+        callback.onResponse(statusCode, headers, body);
+    }
+
+    private void failed(Attempt attempt, int statusCode, Map<String, String> headers,
+                        byte[] body, Throwable cause) {
+        ScheduledFuture<?> pending;
+        boolean giveUp;
+        synchronized (this) {
+            if (finished) {
+                return;
+            }
+            attempt.done = true;
+            running.remove(attempt);
+            if (!running.isEmpty()) {
+                // a hedge is still out, let it answer
+                return;
+            }
+            hedgeAllowed = false;
+            pending = timer;
+            timer = null;
+            if (policy.shouldRetry(params, attempts, statusCode)) {
+                long backoff = policy.getBackoffMillis(attempts);
+                if (tracer != null) {
+                    tracer.record(InteractionTracer.Event.RETRY_SCHEDULED, attempts + 1, backoff);
+                }
+                timer = InteractionScheduler.get().schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        retry();
+                    }
+                }, backoff, TimeUnit.MILLISECONDS);
+            }
+            giveUp = timer == null;
+            finished = giveUp;
+        }
+        if (pending != null) {
+            pending.cancel(false);
+        }
+        if (!giveUp) {
+            return;
+        }
+        if (cause != null) {
+            callback.onFailure(cause);
+        } else {
+            callback.onResponse(statusCode, headers, body);
+        }
+    }
+
+    private static void cancelAll(List<Attempt> attempts, ScheduledFuture<?> pending) {
+        if (pending != null) {
+            pending.cancel(false);
+        }
+        for (Attempt attempt : attempts) {
+            if (attempt.call != null) {
+                attempt.call.cancel();
+            }
+        }
+    }
+
+    /**
+     * One request on the wire.
+     */
+    private final class Attempt implements InteractionTransport.Callback {
+        private final long sentAt = System.nanoTime();
+        // guarded by the enclosing call
+        InteractionTransport.Call call;
+        boolean done;
+
+        @Override
+        public void onResponse(int statusCode, Map<String, String> headers, byte[] body) {
+            policy.recordLatency(System.nanoTime() - sentAt);
+            if (statusCode >= 200 && statusCode < 300) {
+                succeeded(this, statusCode, headers, body);
+            } else {
+                failed(this, statusCode, headers, body, null);
+            }
+        }
+
+        @Override
+        public void onFailure(Throwable cause) {
+            failed(this, 0, null, null, cause);
+        }
+    }
+}
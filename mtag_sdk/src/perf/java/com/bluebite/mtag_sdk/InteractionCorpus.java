@@ -0,0 +1,134 @@
+//Copyright 2018 Blue Bite LLC.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package com.bluebite.mtag_sdk;
+
+import java.util.Random;
+
+/**
+ * Deterministic corpus of Interaction URLs and interactions response bodies used by the
+ * benchmarks.  The mix of URL formats roughly follows what scan stations see in the field.
+ */
+public final class InteractionCorpus {
+
+    private static final String HEX = "0123456789ABCDEF";
+
+    private InteractionCorpus() {
+    }
+
+    /**
+     * Builds a corpus of every supported URL format.
+     * @param size Number of URLs.
+     * @param seed Random seed, the same seed always gives the same corpus.
+     * @return Interaction URLs.
+     */
+    public static String[] urls(int size, long seed) {
+        Random random = new Random(seed);
+        String[] urls = new String[size];
+        for (int i = 0; i < size; i++) {
+            int pick = random.nextInt(100);
+            if (pick < 15) {
+                urls[i] = slugUrl(random);
+            } else if (pick < 30) {
+                urls[i] = basicUrl(random);
+            } else if (pick < 60) {
+                urls[i] = counterUrl(random);
+            } else if (pick < 85) {
+                urls[i] = authUrl(random);
+            } else {
+                urls[i] = hidUrl(random);
+            }
+        }
+        return urls;
+    }
+
+    public static String slugUrl(Random random) {
+        return "https://mtag.io/" + Integer.toString(random.nextInt(36 * 36 * 36), 36);
+    }
+
+    public static String basicUrl(Random random) {
+        if (random.nextBoolean()) {
+            return "https://mtag.io/n" + (10000000 + random.nextInt(89999999));
+        }
+        return "https://mtag.io/n" + mTagId(random);
+    }
+
+    public static String counterUrl(Random random) {
+        return "https://mtag.io/n" + mTagId(random) + "/" + hex(random, 10) + "x"
+                + hex(random, 10);
+    }
+
+    public static String authUrl(Random random) {
+        String url = "https://mtag.io/n" + mTagId(random) + "?id=" + hex(random, 8);
+        if (random.nextBoolean()) {
+            url += "&num=" + random.nextInt(10000000);
+        }
+        return url + "&sig=" + hex(random, 16);
+    }
+
+    public static String hidUrl(Random random) {
+        return "https://mtag.io/n" + mTagId(random) + "?tagID=" + hex(random, 8)
+                + "&tac=" + hex(random, 24);
+    }
+
+    /**
+     * @return Base 36 mTag ID between 5 and 6 characters.
+     */
+    public static String mTagId(Random random) {
+        return Integer.toString(1679616 + random.nextInt(2000000000 - 1679616), 36);
+    }
+
+    private static String hex(Random random, int length) {
+        StringBuilder builder = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            builder.append(HEX.charAt(random.nextInt(16)));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Builds an interactions response body shaped like the ones /v2/interactions returns.
+     * @param campaigns Number of campaigns in the body, 0 for a bare verification response.
+     * @return Response body as a JSON String.
+     */
+    public static String responseBody(int campaigns) {
+        StringBuilder body = new StringBuilder(256 + campaigns * 512);
+        body.append("{\"device\":{\"r\":false,\"rd\":true,\"country\":\"US\"},")
+                .append("\"tag_verified\":true,")
+                .append("\"impression_ids\":null,")
+                .append("\"track_location\":true,")
+                .append("\"payloads\":null,")
+                .append("\"rk\":\"abcdefghijklm12345\",")
+                .append("\"location\":{\"city\":\"New York\",\"region\":\"NY\",")
+                .append("\"country\":\"US\",\"lat\":40.7128,\"lng\":-74.006},")
+                .append("\"campaigns\":[");
+        for (int i = 0; i < campaigns; i++) {
+            if (i > 0) {
+                body.append(',');
+            }
+            body.append("{\"id\":").append(i)
+                    .append(",\"name\":\"Campaign ").append(i).append("\",")
+                    .append("\"content\":{\"type\":\"url\",\"url\":\"https://example.com/c/")
+                    .append(i).append("\",\"title\":\"Thanks for scanning\",")
+                    .append("\"body\":\"Lorem ipsum dolor sit amet, consectetur adipiscing elit, ")
+                    .append("sed do eiusmod tempor incididunt ut labore et dolore magna.\"},")
+                    .append("\"rules\":[{\"field\":\"country\",\"op\":\"eq\",\"value\":\"US\"},")
+                    .append("{\"field\":\"verified\",\"op\":\"eq\",\"value\":true}],")
+                    .append("\"weight\":").append(i % 10).append('}');
+        }
+        body.append("]}");
+        return body.toString();
+    }
+}
@@ -0,0 +1,358 @@
+//Copyright 2018 Blue Bite LLC.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+
+package com.bluebite.mtag_sdk;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Headless load driver answering "how many verifications per second can one client push".
+ * Replays a corpus of Interaction URLs through API.verify against an InteractionStubServer,
+ * either closed loop (a fixed number of verifications always outstanding) or open loop (a
+ * target rate, latency measured from each tap's scheduled time so a stalled client can't hide
+ * its queueing).  Reports throughput, latency percentiles, outcomes and allocation per tap.
+ * <p>
+ * Runs on a plain JVM: ./gradlew :mtag_sdk:loadTest -Pload.args="mode=open rate=2000"
+ * Options, as key=value:
+ * <ul>
+ *     <li>corpus: file with one URL per line, # for comments.  Default: generated mix of all
+ *     five URL formats, see corpus.size.</li>
+ *     <li>mode: closed (default) or open.</li>
+ *     <li>concurrency: outstanding verifications in closed loop, default 64.</li>
+ *     <li>rate: taps per second in open loop, default 1000.</li>
+ *     <li>duration, warmup: measured and warm up seconds, default 10 and 3.</li>
+ *     <li>transport: loopback (default, in-process) or http (the SDK's
+ *     AsyncHttpInteractionTransport against the stub on a loopback port).</li>
+ *     <li>latency: stub delay in milliseconds, default 20.</li>
+ *     <li>errors, throttle, drops: fractions of 503s, 429s and dropped requests, default 0.</li>
+ *     <li>campaigns: campaigns per response body, default 5.</li>
+ *     <li>metrics: true to also print the API's InteractionMetrics snapshot.</li>
+ * </ul>
+ */
+public final class InteractionLoadDriver {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final long DEADLINE_SECONDS = 30;
+
+    private final Map<String, String> options;
+    private final String[] urls;
+    private final AtomicInteger nextUrl = new AtomicInteger();
+    private volatile Recorder recorder = new Recorder();
+    private volatile boolean running = true;
+
+    /**
+     * Outcomes of one phase of the run.
+     */
+    private static class Recorder {
+        final InteractionMetrics.Histogram latency = new InteractionMetrics.Histogram();
+        final AtomicLong succeeded = new AtomicLong();
+        final ConcurrentMap<String, AtomicLong> failures = new ConcurrentHashMap<>();
+
+        void record(InteractionFuture future, long startNanos) {
+            latency.record(System.nanoTime() - startNanos);
+            if (future.isSuccessful()) {
+                succeeded.incrementAndGet();
+                return;
+            }
+            String cause = causeOf(future.getError());
+            AtomicLong count = failures.get(cause);
+            if (count == null) {
+                AtomicLong created = new AtomicLong();
+                count = failures.putIfAbsent(cause, created);
+                if (count == null) {
+                    count = created;
+                }
+            }
+            count.incrementAndGet();
+        }
+
+        private static String causeOf(String error) {
+            if (error == null) {
+                return "cancelled";
+            } else if (error.startsWith(API.ERROR_NETWORK)) {
+                return "network";
+            } else if (error.startsWith(API.ERROR_DEADLINE_EXCEEDED)) {
+                return "deadline";
+            } else if (error.startsWith(API.ERROR_NON_AUTH_URL)) {
+                return "non-auth url";
+            }
+            return "http status";
+        }
+    }
+
+    private InteractionLoadDriver(Map<String, String> options, String[] urls) {
+        this.options = options;
+        this.urls = urls;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (equals < 0) {
+                System.err.println("Ignoring " + arg + ", options are key=value");
+                continue;
+            }
+            options.put(arg.substring(0, equals), arg.substring(equals + 1));
+        }
+        String corpus = options.get("corpus");
+        String[] urls = corpus != null ? readCorpus(corpus)
+                : InteractionCorpus.urls(intOption(options, "corpus.size", 4096), 42L);
+        new InteractionLoadDriver(options, urls).run();
+    }
+
+    private static String[] readCorpus(String path) throws IOException {
+        List<String> urls = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(path), UTF_8));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (!line.isEmpty() && !line.startsWith("#")) {
+                    urls.add(line);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        if (urls.isEmpty()) {
+            throw new IOException("No URLs in " + path);
+        }
+        return urls.toArray(new String[urls.size()]);
+    }
+
+    private static int intOption(Map<String, String> options, String name, int fallback) {
+        String value = options.get(name);
+        return value != null ? Integer.parseInt(value) : fallback;
+    }
+
+    private static double doubleOption(Map<String, String> options, String name,
+                                       double fallback) {
+        String value = options.get(name);
+        return value != null ? Double.parseDouble(value) : fallback;
+    }
+
+    private String option(String name, String fallback) {
+        String value = options.get(name);
+        return value != null ? value : fallback;
+    }
+
+    private void run() throws Exception {
+        int latencyMillis = intOption(options, "latency", 20);
+        InteractionStubServer stub = new InteractionStubServer(intOption(options, "campaigns", 5),
+                doubleOption(options, "errors", 0), doubleOption(options, "throttle", 0),
+                doubleOption(options, "drops", 0));
+        ScheduledExecutorService stubScheduler = Executors.newScheduledThreadPool(4);
+
+        API api;
+        AsyncHttpInteractionTransport httpClient = null;
+        boolean http = "http".equals(option("transport", "loopback"));
+        if (http) {
+            String route = stub.startHttp(latencyMillis, 256);
+            httpClient = new AsyncHttpInteractionTransport(
+                    AsyncHttpInteractionTransport.DEFAULT_CONNECT_TIMEOUT_MILLIS,
+                    AsyncHttpInteractionTransport.DEFAULT_RESPONSE_TIMEOUT_MILLIS, 256,
+                    AsyncHttpInteractionTransport.DEFAULT_KEEP_ALIVE_MILLIS);
+            api = new API(null, httpClient);
+            api.setInteractionsUrl(route);
+        } else {
+            api = new API(null, new LoopbackInteractionTransport(stub, stubScheduler,
+                    latencyMillis));
+        }
+        api.setCallbackExecutor(InteractionExecutors.direct());
+        InteractionMetrics metrics = null;
+        if (Boolean.parseBoolean(option("metrics", "false"))) {
+            metrics = new InteractionMetrics();
+            api.setMetrics(metrics);
+        }
+
+        boolean open = "open".equals(option("mode", "closed"));
+        int concurrency = intOption(options, "concurrency", 64);
+        int rate = intOption(options, "rate", 1000);
+        int warmupSeconds = intOption(options, "warmup", 3);
+        int durationSeconds = intOption(options, "duration", 10);
+        System.out.printf("%d URLs, %s loop %s, %s transport, %d ms stub latency%n",
+                urls.length, open ? "open" : "closed",
+                open ? "at " + rate + "/s" : "with " + concurrency + " outstanding",
+                http ? "http" : "loopback", latencyMillis);
+
+        List<Thread> drivers = open ? startOpenLoop(api, rate) : startClosedLoop(api, concurrency);
+        TimeUnit.SECONDS.sleep(warmupSeconds);
+
+        // measured phase
+        long allocatedBefore = clientAllocatedBytes();
+        long startNanos = System.nanoTime();
+        Recorder measured = new Recorder();
+        recorder = measured;
+        TimeUnit.SECONDS.sleep(durationSeconds);
+        recorder = new Recorder();
+        long elapsedNanos = System.nanoTime() - startNanos;
+        long allocated = clientAllocatedBytes() - allocatedBefore;
+
+        running = false;
+        for (Thread driver : drivers) {
+            driver.join(TimeUnit.SECONDS.toMillis(DEADLINE_SECONDS));
+        }
+        if (httpClient != null) {
+            httpClient.getClient().getThreadPool().shutdownNow();
+        }
+        stub.stop();
+        stubScheduler.shutdownNow();
+
+        report(measured, elapsedNanos, allocated, http);
+        if (metrics != null) {
+            System.out.println("API metrics: " + metrics.snapshot().toJSONObject().toString(2));
+        }
+        System.exit(0);
+    }
+
+    private String nextUrl() {
+        return urls[(nextUrl.getAndIncrement() & Integer.MAX_VALUE) % urls.length];
+    }
+
+    /**
+     * Keeps concurrency verifications outstanding, each thread sending its next one as soon as
+     * the last completes.
+     */
+    private List<Thread> startClosedLoop(final API api, int concurrency) {
+        List<Thread> drivers = new ArrayList<>();
+        for (int i = 0; i < concurrency; i++) {
+            Thread driver = new Thread("load-" + i) {
+                @Override
+                public void run() {
+                    while (running) {
+                        long start = System.nanoTime();
+                        InteractionFuture future =
+                                api.verify(nextUrl(), DEADLINE_SECONDS, TimeUnit.SECONDS);
+                        try {
+                            future.get();
+                        } catch (Exception e) {
+                            // recorded from the future below
+                        }
+                        recorder.record(future, start);
+                    }
+                }
+            };
+            driver.setDaemon(true);
+            driver.start();
+            drivers.add(driver);
+        }
+        return drivers;
+    }
+
+    /**
+     * Taps at a fixed rate whatever the client's latency, recording from each tap's scheduled
+     * time.
+     */
+    private List<Thread> startOpenLoop(final API api, final int rate) {
+        Thread driver = new Thread("load-pacer") {
+            @Override
+            public void run() {
+                long period = TimeUnit.SECONDS.toNanos(1) / rate;
+                long next = System.nanoTime();
+                while (running) {
+                    long wait = next - System.nanoTime();
+                    if (wait > 0) {
+                        LockSupport.parkNanos(wait);
+                        continue;
+                    }
+                    final long scheduled = next;
+                    final Recorder phase = recorder;
+                    api.verify(nextUrl(), DEADLINE_SECONDS, TimeUnit.SECONDS).addListener(
+                            new InteractionFuture.Listener() {
+                                @Override
+                                public void onComplete(InteractionFuture future) {
+                                    phase.record(future, scheduled);
+                                }
+                            });
+                    next += period;
+                }
+            }
+        };
+        driver.setDaemon(true);
+        driver.start();
+        List<Thread> drivers = new ArrayList<>();
+        drivers.add(driver);
+        return drivers;
+    }
+
+    /**
+     * @return Bytes allocated so far by live threads other than the HTTP stub's own.  With
+     * the loopback transport the stub's work runs on client threads and is included.
+     */
+    private static long clientAllocatedBytes() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+        com.sun.management.ThreadMXBean sunThreads = (com.sun.management.ThreadMXBean) threads;
+        long total = 0;
+        for (ThreadInfo info : threads.getThreadInfo(threads.getAllThreadIds())) {
+            if (info == null || info.getThreadName().startsWith(InteractionStubServer.THREAD_PREFIX)
+                    || info.getThreadName().startsWith("HTTP-Dispatcher")) {
+                continue;
+            }
+            long bytes = sunThreads.getThreadAllocatedBytes(info.getThreadId());
+            if (bytes > 0) {
+                total += bytes;
+            }
+        }
+        return total;
+    }
+
+    private void report(Recorder measured, long elapsedNanos, long allocated, boolean http) {
+        InteractionMetrics.Histogram.Summary latency = measured.latency.summarize();
+        double seconds = elapsedNanos / 1e9;
+        long failed = 0;
+        for (AtomicLong count : measured.failures.values()) {
+            failed += count.get();
+        }
+        long completed = measured.succeeded.get() + failed;
+        System.out.printf("completed    %d in %.1f s, %.0f/s%n", completed, seconds,
+                completed / seconds);
+        System.out.printf("succeeded    %d%n", measured.succeeded.get());
+        for (Map.Entry<String, AtomicLong> failure : measured.failures.entrySet()) {
+            System.out.printf("failed       %d %s%n", failure.getValue().get(), failure.getKey());
+        }
+        System.out.printf("latency ms   p50 %.2f  p95 %.2f  p99 %.2f  max %.2f  mean %.2f%n",
+                latency.p50 / 1e6, latency.p95 / 1e6, latency.p99 / 1e6, latency.max / 1e6,
+                latency.count == 0 ? 0 : latency.sum / 1e6 / latency.count);
+        if (allocated >= 0 && completed > 0) {
+            System.out.printf("allocated    %.1f KB per tap (%s)%n", allocated / 1024.0 / completed,
+                    http ? "client threads only" : "client and in-process stub");
+        }
+    }
+}
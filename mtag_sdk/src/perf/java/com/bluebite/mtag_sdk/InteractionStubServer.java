@@ -0,0 +1,180 @@
+//Copyright 2018 Blue Bite LLC.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+
+package com.bluebite.mtag_sdk;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local stand-in for /v2/interactions used by load runs.  Answers with a canned response body
+ * and injects failures at configurable rates: 5xx and 429 statuses, and dropped requests that
+ * get no response at all.  Works in-process as a LoopbackInteractionTransport Responder, or
+ * over real HTTP on a loopback port so the whole client stack is exercised.
+ */
+public class InteractionStubServer implements LoopbackInteractionTransport.Responder {
+
+    /**
+     * Name prefix of the HTTP server's threads, so load runs can leave them out of the
+     * client's numbers.
+     */
+    static final String THREAD_PREFIX = "stub-http-";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final byte[] body;
+    private final double serverErrorRate;
+    private final double throttleRate;
+    private final double dropRate;
+    private final Random random = new Random(7);
+    private final AtomicLong requests = new AtomicLong();
+
+    private HttpServer server;
+    private ExecutorService httpThreads;
+
+    /**
+     * @param campaigns Campaigns in the response body.
+     * @param serverErrorRate Fraction of requests answered 503.
+     * @param throttleRate Fraction of requests answered 429.
+     * @param dropRate Fraction of requests that get no response.
+     */
+    public InteractionStubServer(int campaigns, double serverErrorRate, double throttleRate,
+                                 double dropRate) {
+        this.body = InteractionCorpus.responseBody(campaigns).getBytes(UTF_8);
+        this.serverErrorRate = serverErrorRate;
+        this.throttleRate = throttleRate;
+        this.dropRate = dropRate;
+    }
+
+    /**
+     * @return Requests received so far.
+     */
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    /**
+     * @return Status to answer with, or -1 to drop the request.
+     */
+    private int pickStatus() {
+        requests.incrementAndGet();
+        double roll;
+        synchronized (random) {
+            roll = random.nextDouble();
+        }
+        if (roll < dropRate) {
+            return -1;
+        } else if (roll < dropRate + serverErrorRate) {
+            return 503;
+        } else if (roll < dropRate + serverErrorRate + throttleRate) {
+            return 429;
+        }
+        return 200;
+    }
+
+    @Override
+    public LoopbackInteractionTransport.Response respond(String url, Map<String, String> params)
+            throws IOException {
+        int status = pickStatus();
+        if (status < 0) {
+            throw new IOException("dropped by stub");
+        }
+        return new LoopbackInteractionTransport.Response(status,
+                Collections.<String, String>emptyMap(), status == 200 ? body : new byte[0]);
+    }
+
+    /**
+     * Starts serving over HTTP on a free loopback port.
+     * @param latencyMillis Delay before each response.
+     * @param threads Requests served at once, latency is slept on these threads.
+     * @return URL of the stubbed interactions route.
+     * @throws IOException If the server can't bind.
+     */
+    public String startHttp(final long latencyMillis, int threads) throws IOException {
+        // headers and body are written separately, Nagle would hold the body back until the
+        // client's delayed ACK, adding 40 ms to every request.  Read once per JVM.
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0),
+                1024);
+        final AtomicInteger threadCount = new AtomicInteger();
+        httpThreads = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable,
+                        THREAD_PREFIX + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        server.setExecutor(httpThreads);
+        server.createContext("/v2/interactions", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                InputStream in = exchange.getRequestBody();
+                byte[] discard = new byte[4096];
+                while (in.read(discard) >= 0) {
+                    // drain the form body so the connection can be kept alive
+                }
+                int status = pickStatus();
+                try {
+                    TimeUnit.MILLISECONDS.sleep(latencyMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                if (status < 0) {
+                    exchange.close();
+                    return;
+                }
+                byte[] response = status == 200 ? body : new byte[0];
+                exchange.getResponseHeaders().set("Content-Type", "application/json");
+                exchange.sendResponseHeaders(status, response.length == 0 ? -1 : response.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(response);
+                out.close();
+            }
+        });
+        server.start();
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/v2/interactions";
+    }
+
+    /**
+     * Stops the HTTP server, if it was started.
+     */
+    public void stop() {
+        if (server != null) {
+            server.stop(0);
+            httpThreads.shutdownNow();
+            server = null;
+        }
+    }
+}
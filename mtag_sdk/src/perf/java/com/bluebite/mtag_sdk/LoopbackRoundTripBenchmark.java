@@ -0,0 +1,91 @@
+//Copyright 2018 Blue Bite LLC.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package com.bluebite.mtag_sdk;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the whole tap path, from interactionWasReceived to the delegate callback, over an
+ * in-process transport.  The difference from a real transport run is the transport's cost.
+ * Running with and without metrics shows what recording costs per tap.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoopbackRoundTripBenchmark {
+
+    private static final int CORPUS_SIZE = 1024;
+
+    @Param({"false", "true"})
+    public boolean metrics;
+
+    private String[] urls;
+    private API api;
+    private Blackhole blackhole;
+
+    @Setup
+    public void setUp(Blackhole blackhole) {
+        this.blackhole = blackhole;
+        urls = InteractionCorpus.urls(CORPUS_SIZE, 42L);
+        final LoopbackInteractionTransport.Response response =
+                new LoopbackInteractionTransport.Response(200, InteractionCorpus.responseBody(5));
+        api = new API(new BlueBiteInteractionDelegate() {
+            @Override
+            public void interactionDataWasReceived(JSONObject results) {
+                LoopbackRoundTripBenchmark.this.blackhole.consume(results);
+            }
+
+            @Override
+            public void interactionDidFail(String error) {
+                LoopbackRoundTripBenchmark.this.blackhole.consume(error);
+            }
+        }, new LoopbackInteractionTransport(new LoopbackInteractionTransport.Responder() {
+            @Override
+            public LoopbackInteractionTransport.Response respond(String url,
+                                                                 Map<String, String> params) {
+                return response;
+            }
+        }));
+        if (metrics) {
+            api.setMetrics(new InteractionMetrics());
+        }
+    }
+
+    @Benchmark
+    public void interactionWasReceived() {
+        for (String url : urls) {
+            api.interactionWasReceived(url);
+        }
+    }
+}
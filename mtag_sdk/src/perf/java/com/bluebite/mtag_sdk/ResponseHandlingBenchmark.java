@@ -0,0 +1,88 @@
+//Copyright 2018 Blue Bite LLC.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package com.bluebite.mtag_sdk;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks shaping of interactions response bodies, both on its own and together with the
+ * JSON parse the HTTP client does before handing the body over, against the streaming reader
+ * working straight off the response bytes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResponseHandlingBenchmark {
+
+    /**
+     * Number of campaigns in the response body, 0 is a bare verification response.
+     */
+    @Param({"0", "50"})
+    public int campaigns;
+
+    private String body;
+    private byte[] bodyBytes;
+    private JSONObject response;
+    private API api;
+
+    @Setup
+    public void setUp() throws JSONException {
+        body = InteractionCorpus.responseBody(campaigns);
+        bodyBytes = body.getBytes(Charset.forName("UTF-8"));
+        response = new JSONObject(body);
+        api = new API(new UrlParsingBenchmark.NoOpDelegate());
+    }
+
+    @Benchmark
+    public JSONObject handleResponse() {
+        return api.handleResponse(response);
+    }
+
+    @Benchmark
+    public JSONObject parseAndHandleResponse() throws JSONException {
+        return api.handleResponse(new JSONObject(body));
+    }
+
+    @Benchmark
+    public JSONObject streamAndHandleResponse() {
+        return api.handleResponse(InteractionResponseReader.read(bodyBytes)).toJSONObject();
+    }
+
+    @Benchmark
+    public String streamVerificationOnly() {
+        // campaigns and location stay undecoded
+        InteractionResult result = api.handleResponse(InteractionResponseReader.read(bodyBytes));
+        return result.getDeviceCountry() + result.getVerification();
+    }
+}
@@ -0,0 +1,104 @@
+//Copyright 2018 Blue Bite LLC.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package com.bluebite.mtag_sdk;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks URL classification, mTag ID parsing, and single and bulk ID conversion over a
+ * mixed corpus of slug, basic, SMT counter, auth and HID URLs.  Each invocation walks the whole
+ * corpus, so scores are per corpus pass.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UrlParsingBenchmark {
+
+    private static final int CORPUS_SIZE = 1024;
+
+    private String[] urls;
+    private String[] mTagIds;
+    private long[] decoded;
+    private API api;
+
+    @Setup
+    public void setUp() {
+        urls = InteractionCorpus.urls(CORPUS_SIZE, 42L);
+        mTagIds = new String[CORPUS_SIZE];
+        decoded = new long[CORPUS_SIZE];
+        for (int i = 0; i < CORPUS_SIZE; i++) {
+            mTagIds[i] = (i % 2 == 0) ? InteractionCorpus.mTagId(new Random(i))
+                    : String.valueOf(10000000 + i);
+        }
+        api = new API(new NoOpDelegate());
+    }
+
+    @Benchmark
+    public void classify(Blackhole blackhole) {
+        for (String url : urls) {
+            blackhole.consume(InteractionUrl.parse(url));
+        }
+    }
+
+    @Benchmark
+    public void parseMTagId(Blackhole blackhole) {
+        for (String url : urls) {
+            blackhole.consume(api.parseMTagId(url));
+        }
+    }
+
+    @Benchmark
+    public void convertIdToBase10(Blackhole blackhole) {
+        for (String mTagId : mTagIds) {
+            blackhole.consume(api.convertIdToBase10(mTagId));
+        }
+    }
+
+    @Benchmark
+    public void decodeAll(Blackhole blackhole) {
+        blackhole.consume(MTagIdCodec.decodeAll(mTagIds, decoded));
+    }
+
+    /**
+     * Delegate that ignores every callback, the benchmarks never hit the network.
+     */
+    static class NoOpDelegate implements BlueBiteInteractionDelegate {
+        @Override
+        public void interactionDataWasReceived(JSONObject results) {
+        }
+
+        @Override
+        public void interactionDidFail(String error) {
+        }
+    }
+}
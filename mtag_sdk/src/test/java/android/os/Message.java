@@ -0,0 +1,36 @@
+//Copyright 2018 Blue Bite LLC.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package android.os;
+
+/**
+ * JVM stand-in for the Message class the unit test android.jar only stubs out, the same way
+ * the org.json test dependency replaces its JSON classes.  AsyncHttpResponseHandler wraps
+ * every callback in a Message even when it calls back on the pool thread, so tests running
+ * AsyncHttpInteractionTransport against a local server need one that keeps its fields.
+ */
+public final class Message {
+    public int what;
+    public Object obj;
+    public Handler target;
+
+    public static Message obtain(Handler target, int what, Object obj) {
+        Message message = new Message();
+        message.target = target;
+        message.what = what;
+        message.obj = obj;
+        return message;
+    }
+}
@@ -0,0 +1,217 @@
+//Copyright 2018 Blue Bite LLC.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+
+package com.bluebite.mtag_sdk;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests drive the adaptive limiter against a simulated server whose latency grows once
+ * more requests than it can serve are in flight.
+ */
+public class AdaptiveConcurrencyLimiterTest {
+
+    private static final long MILLI = 1000000L;
+
+    /**
+     * Limiter reading a clock the test advances.
+     */
+    private static class SimulatedLimiter extends AdaptiveConcurrencyLimiter {
+        long time;
+
+        SimulatedLimiter(int initialLimit, int minLimit, int maxLimit) {
+            super(initialLimit, minLimit, maxLimit);
+        }
+
+        @Override
+        protected long now() {
+            return time;
+        }
+    }
+
+    /**
+     * Server serving capacity requests within baseMillis; every request beyond that adds
+     * another baseMillis / capacity to the latency of the requests arriving after it.
+     */
+    private static class SimulatedServer implements InteractionTransport {
+        final SimulatedLimiter clock;
+        final List<long[]> due = new ArrayList<>();
+        final List<Callback> callbacks = new ArrayList<>();
+        int capacity;
+        long baseMillis;
+        int status = 200;
+        byte[] body = new byte[0];
+        int peakInFlight;
+
+        SimulatedServer(SimulatedLimiter clock, int capacity, long baseMillis) {
+            this.clock = clock;
+            this.capacity = capacity;
+            this.baseMillis = baseMillis;
+        }
+
+        @Override
+        public Call post(String url, Map<String, String> params, Callback callback) {
+            int load = callbacks.size() + 1;
+            peakInFlight = Math.max(peakInFlight, load);
+            long latency = baseMillis * MILLI * Math.max(capacity, load) / capacity;
+            due.add(new long[] {clock.time + latency});
+            callbacks.add(callback);
+            return null;
+        }
+
+        /**
+         * Advances the clock by a millisecond and answers every request that is due.
+         */
+        void tick() {
+            clock.time += MILLI;
+            List<Callback> answer = new ArrayList<>();
+            Iterator<long[]> dueAt = due.iterator();
+            Iterator<Callback> callback = callbacks.iterator();
+            while (dueAt.hasNext()) {
+                long at = dueAt.next()[0];
+                Callback next = callback.next();
+                if (at <= clock.time) {
+                    dueAt.remove();
+                    callback.remove();
+                    answer.add(next);
+                }
+            }
+            for (Callback next : answer) {
+                next.onResponse(status, Collections.<String, String>emptyMap(), body);
+            }
+        }
+    }
+
+    private static final InteractionTransport.Callback IGNORE = new InteractionTransport.Callback() {
+        @Override
+        public void onResponse(int statusCode, Map<String, String> headers, byte[] body) {
+        }
+
+        @Override
+        public void onFailure(Throwable cause) {
+        }
+    };
+
+    /**
+     * Keeps a backlog of requests waiting on the limiter for the given time.
+     */
+    private void run(SimulatedLimiter limiter, SimulatedServer server, int millis) {
+        Map<String, String> params = Collections.emptyMap();
+        for (int i = 0; i < millis; i++) {
+            while (limiter.getWaitingCount() < 20) {
+                limiter.post(server, "http://test", params, IGNORE);
+            }
+            server.tick();
+        }
+    }
+
+    @Test
+    public void testLimitGrowsWhileLatencyIsFlat() throws Exception {
+        SimulatedLimiter limiter = new SimulatedLimiter(2, 1, 64);
+        SimulatedServer server = new SimulatedServer(limiter, 16, 10);
+        run(limiter, server, 2000);
+
+        assertTrue(limiter.getIncreaseCount() > 0);
+        // settles around what the server can take, never far past it
+        assertTrue(limiter.getLimit() >= 8);
+        assertTrue(limiter.getLimit() <= 32);
+        assertEquals(10 * MILLI, limiter.getBaselineLatencyNanos());
+    }
+
+    @Test
+    public void testLimitBacksOffWhenServerSlowsOrRejects() throws Exception {
+        SimulatedLimiter limiter = new SimulatedLimiter(2, 1, 64);
+        SimulatedServer server = new SimulatedServer(limiter, 32, 10);
+        run(limiter, server, 2000);
+        int healthy = limiter.getLimit();
+
+        // the server can suddenly take far less
+        server.capacity = 4;
+        run(limiter, server, 500);
+        assertTrue(limiter.getDecreaseCount() > 0);
+        assertTrue(limiter.getLimit() < healthy);
+
+        // rate limiting pushes it down to the floor
+        server.status = 429;
+        run(limiter, server, 2000);
+        assertEquals(1, limiter.getLimit());
+    }
+
+    @Test
+    public void testInFlightNeverExceedsLimit() throws Exception {
+        SimulatedLimiter limiter = new SimulatedLimiter(4, 4, 4);
+        SimulatedServer server = new SimulatedServer(limiter, 100, 5);
+        run(limiter, server, 100);
+        assertEquals(4, server.peakInFlight);
+        assertEquals(4, limiter.getInFlightCount());
+    }
+
+    @Test
+    public void testCancelFreesSlot() throws Exception {
+        SimulatedLimiter limiter = new SimulatedLimiter(1, 1, 1);
+        SimulatedServer server = new SimulatedServer(limiter, 1, 5);
+        Map<String, String> params = Collections.emptyMap();
+        InteractionTransport.Call first = limiter.post(server, "http://test", params, IGNORE);
+        InteractionTransport.Call second = limiter.post(server, "http://test", params, IGNORE);
+        limiter.post(server, "http://test", params, IGNORE);
+        assertEquals(2, limiter.getWaitingCount());
+
+        // a cancelled waiter is skipped, a cancelled request passes its slot on
+        second.cancel();
+        first.cancel();
+        assertEquals(1, limiter.getInFlightCount());
+        assertEquals(0, limiter.getWaitingCount());
+        assertEquals(2, server.callbacks.size());
+    }
+
+    @Test
+    public void testApiSendsThroughLimiter() throws Exception {
+        // requests are only answered when the test ticks the server
+        SimulatedServer server = new SimulatedServer(new SimulatedLimiter(1, 1, 1), 1, 1);
+        server.body = "{\"tag_verified\":true}".getBytes("UTF-8");
+        API api = new API(null, server);
+        api.setCallbackExecutor(InteractionExecutors.direct());
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(1, 1, 1);
+        api.setConcurrencyLimiter(limiter);
+
+        InteractionFuture first = api.verify("https://mtag.io/s1");
+        InteractionFuture second = api.verify("https://mtag.io/s2");
+        assertEquals(1, limiter.getInFlightCount());
+        assertEquals(1, limiter.getWaitingCount());
+        assertEquals(1, server.callbacks.size());
+
+        // answering the first request hands its slot to the second
+        server.tick();
+        assertTrue(first.isDone());
+        assertTrue(first.get().isVerified());
+        assertFalse(second.isDone());
+        assertEquals(1, limiter.getInFlightCount());
+        assertEquals(0, limiter.getWaitingCount());
+        assertEquals(1, server.callbacks.size());
+
+        server.tick();
+        assertTrue(second.get().isVerified());
+        assertEquals(0, limiter.getInFlightCount());
+    }
+}
@@ -0,0 +1,186 @@
+//Copyright 2018 Blue Bite LLC.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+
+package com.bluebite.mtag_sdk;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests verify burst mode bounds requests in flight and applies each full queue policy.
+ */
+public class BurstModeTest {
+
+    private static final String OK_BODY = "{\"tag_verified\":true}";
+
+    /**
+     * Transport holding every request until the test answers it.
+     */
+    private static class HeldTransport implements InteractionTransport {
+        final List<Callback> held = new ArrayList<>();
+        final List<String> posted = new ArrayList<>();
+
+        @Override
+        public synchronized Call post(String url, Map<String, String> params, Callback callback) {
+            held.add(callback);
+            posted.add(params.get("url"));
+            return null;
+        }
+
+        void answerNext() {
+            Callback callback;
+            synchronized (this) {
+                callback = held.remove(0);
+            }
+            callback.onResponse(200, Collections.<String, String>emptyMap(), OK_BODY.getBytes());
+        }
+
+        synchronized int heldCount() {
+            return held.size();
+        }
+    }
+
+    private static class RecordingDelegate implements BlueBiteInteractionDelegate {
+        final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+        final List<String> errors = Collections.synchronizedList(new ArrayList<String>());
+
+        @Override
+        public void interactionDataWasReceived(JSONObject results) {
+            received.add(results.toString());
+        }
+
+        @Override
+        public void interactionDidFail(String error) {
+            errors.add(error);
+        }
+    }
+
+    private static String url(int i) {
+        return "https://mtag.io/s" + i;
+    }
+
+    private API newApi(HeldTransport transport, RecordingDelegate delegate, BurstMode burst) {
+        API api = new API(delegate, transport);
+        api.setCallbackExecutor(InteractionExecutors.direct());
+        api.setBurstMode(burst);
+        return api;
+    }
+
+    @Test
+    public void testDropNewest() throws Exception {
+        HeldTransport transport = new HeldTransport();
+        RecordingDelegate delegate = new RecordingDelegate();
+        BurstMode burst = new BurstMode(2, 1, BurstMode.Policy.DROP_NEWEST);
+        API api = newApi(transport, delegate, burst);
+
+        for (int i = 0; i < 4; i++) {
+            api.interactionWasReceived(url(i));
+        }
+        assertEquals(1, transport.heldCount());
+        assertEquals(1, burst.getInFlightCount());
+        assertEquals(2, burst.getQueueDepth());
+        assertEquals(1, burst.getRejectedCount());
+        assertEquals(Collections.singletonList(API.ERROR_BURST_REJECTED + url(3)), delegate.errors);
+
+        // each answer starts the next queued tap
+        for (int i = 0; i < 3; i++) {
+            transport.answerNext();
+        }
+        assertEquals(3, delegate.received.size());
+        assertEquals(0, burst.getInFlightCount());
+        assertEquals(2, burst.getPeakQueueDepth());
+        assertEquals(3, burst.getAcceptedCount());
+        assertEquals(Arrays.asList(url(0), url(1), url(2)), transport.posted);
+    }
+
+    @Test
+    public void testDropOldest() throws Exception {
+        HeldTransport transport = new HeldTransport();
+        RecordingDelegate delegate = new RecordingDelegate();
+        InteractionMetrics metrics = new InteractionMetrics();
+        API api = newApi(transport, delegate, new BurstMode(2, 1, BurstMode.Policy.DROP_OLDEST));
+        api.setMetrics(metrics);
+
+        for (int i = 0; i < 4; i++) {
+            api.interactionWasReceived(url(i));
+        }
+        assertEquals(Collections.singletonList(API.ERROR_BURST_REJECTED + url(1)), delegate.errors);
+        assertEquals(1, metrics.snapshot().getFailureCount(
+                InteractionMetrics.Failure.BURST_REJECTED));
+        for (int i = 0; i < 3; i++) {
+            transport.answerNext();
+        }
+        assertEquals(Arrays.asList(url(0), url(2), url(3)), transport.posted);
+    }
+
+    @Test
+    public void testMergeDuplicates() throws Exception {
+        HeldTransport transport = new HeldTransport();
+        RecordingDelegate delegate = new RecordingDelegate();
+        BurstMode burst = new BurstMode(4, 1, BurstMode.Policy.MERGE_DUPLICATES);
+        API api = newApi(transport, delegate, burst);
+
+        api.interactionWasReceived(url(0));
+        api.interactionWasReceived(url(1));
+        api.interactionWasReceived(url(1));
+        api.interactionWasReceived(url(2));
+        api.interactionWasReceived(url(1));
+        assertEquals(2, burst.getQueueDepth());
+        assertEquals(2, burst.getMergedCount());
+        assertEquals(0, burst.getRejectedCount());
+        for (int i = 0; i < 3; i++) {
+            transport.answerNext();
+        }
+        assertEquals(3, delegate.received.size());
+    }
+
+    @Test
+    public void testBlockWaitsForRoom() throws Exception {
+        HeldTransport transport = new HeldTransport();
+        RecordingDelegate delegate = new RecordingDelegate();
+        BurstMode burst = new BurstMode(1, 1, BurstMode.Policy.BLOCK);
+        final API api = newApi(transport, delegate, burst);
+
+        api.interactionWasReceived(url(0));
+        api.interactionWasReceived(url(1));
+        final CountDownLatch offered = new CountDownLatch(1);
+        Thread scanner = new Thread() {
+            @Override
+            public void run() {
+                api.interactionWasReceived(url(2));
+                offered.countDown();
+            }
+        };
+        scanner.start();
+        assertFalse(offered.await(100, TimeUnit.MILLISECONDS));
+
+        transport.answerNext();
+        assertTrue(offered.await(5, TimeUnit.SECONDS));
+        assertEquals(0, burst.getRejectedCount());
+        assertEquals(1, burst.getQueueDepth());
+        scanner.join();
+    }
+}
@@ -0,0 +1,138 @@
+//Copyright 2018 Blue Bite LLC.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+
+package com.bluebite.mtag_sdk;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests verify the replay filter remembers recent VIDs in fixed memory, survives a
+ * reload and lets the API skip replayed requests.
+ */
+public class CounterReplayFilterTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final String COUNTER_URL = "https://mtag.io/njaix4/0123456789x0002C42702";
+
+    @Test
+    public void testReplayIsDetected() throws Exception {
+        CounterReplayFilter filter = new CounterReplayFilter(1000, 0.001);
+        assertFalse(filter.checkAndAdd("32403784", "0002C42702"));
+        assertTrue(filter.checkAndAdd("32403784", "0002C42702"));
+        assertTrue(filter.mightContain(new StringBuilder("32403784"), "0002C42702"));
+        // the separator keeps the tag ID and VID apart
+        assertFalse(filter.mightContain("3240378", "40002C42702"));
+        assertFalse(filter.checkAndAdd("32403784", "0002C42703"));
+    }
+
+    @Test
+    public void testMemoryStaysFixedAndOldPairsRotateOut() throws Exception {
+        CounterReplayFilter filter = new CounterReplayFilter(100, 0.01);
+        int bits = filter.getBitsPerGeneration();
+        int falsePositives = 0;
+        for (int i = 0; i < 10000; i++) {
+            if (filter.checkAndAdd("32403784", Integer.toString(i))) {
+                falsePositives++;
+            }
+        }
+        assertEquals(bits, filter.getBitsPerGeneration());
+        // two generations at 1% each
+        assertTrue(falsePositives < 300);
+
+        // the newest generation is always remembered, the oldest pairs are gone
+        for (int i = 9900; i < 10000; i++) {
+            assertTrue(filter.mightContain("32403784", Integer.toString(i)));
+        }
+        int remembered = 0;
+        for (int i = 0; i < 100; i++) {
+            if (filter.mightContain("32403784", Integer.toString(i))) {
+                remembered++;
+            }
+        }
+        assertTrue(remembered < 10);
+    }
+
+    @Test
+    public void testSaveAndLoad() throws Exception {
+        CounterReplayFilter filter = new CounterReplayFilter(1000, 0.001);
+        filter.checkAndAdd("32403784", "0002C42702");
+        File file = new File(folder.getRoot(), "replay.bin");
+        filter.save(file);
+        assertEquals(filter.getBitsPerGeneration() / 4 + 28, file.length());
+
+        CounterReplayFilter loaded = CounterReplayFilter.load(file);
+        assertTrue(loaded.checkAndAdd("32403784", "0002C42702"));
+        assertEquals(filter.getHashCount(), loaded.getHashCount());
+
+        // a damaged file is ignored rather than trusted
+        RandomAccessFile raw = new RandomAccessFile(file, "rw");
+        raw.seek(40);
+        raw.write(0xff);
+        raw.close();
+        assertNull(CounterReplayFilter.load(file));
+        assertNull(CounterReplayFilter.load(new File(folder.getRoot(), "missing.bin")));
+    }
+
+    @Test
+    public void testApiSkipsReplayedVid() throws Exception {
+        final AtomicInteger posts = new AtomicInteger();
+        InteractionTransport transport = new InteractionTransport() {
+            @Override
+            public Call post(String url, Map<String, String> params, Callback callback) {
+                posts.incrementAndGet();
+                callback.onResponse(200, Collections.<String, String>emptyMap(),
+                        "{\"tag_verified\":true}".getBytes());
+                return null;
+            }
+        };
+        API api = new API(null, transport);
+        api.setReplayFilter(new CounterReplayFilter(100, 0.01), true);
+        InteractionMetrics metrics = new InteractionMetrics();
+        api.setMetrics(metrics);
+
+        assertTrue(api.verify(COUNTER_URL).get(5, TimeUnit.SECONDS).isVerified());
+        try {
+            api.verify(COUNTER_URL).get(5, TimeUnit.SECONDS);
+            fail("replayed VID was sent");
+        } catch (ExecutionException e) {
+            assertEquals(API.ERROR_REPLAYED_VID + COUNTER_URL, e.getMessage());
+        }
+        assertEquals(1, posts.get());
+        assertEquals(1, metrics.snapshot().getFailureCount(InteractionMetrics.Failure.REPLAYED_VID));
+
+        // without skipping the replay is only traced
+        InteractionTracer tracer = new InteractionTracer(16, InteractionTracer.Level.WARN);
+        api.setTracer(tracer);
+        api.setReplayFilter(api.getReplayFilter(), false);
+        assertTrue(api.verify(COUNTER_URL).get(5, TimeUnit.SECONDS).isVerified());
+        assertEquals(2, posts.get());
+        assertTrue(tracer.dump().get(0).contains("REPLAY_DETECTED"));
+    }
+}
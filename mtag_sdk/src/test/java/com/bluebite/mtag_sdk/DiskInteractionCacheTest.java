@@ -0,0 +1,276 @@
+//Copyright 2018 Blue Bite LLC.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+
+package com.bluebite.mtag_sdk;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests verify the disk cache serves, revalidates, evicts and survives reopening.
+ */
+public class DiskInteractionCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final String ROUTE = "https://api.mtag.io/v2/interactions";
+    private static final String SLUG_URL = "https://mtag.io/abc";
+    private static final String BODY_V1 = "{\"tag_verified\":true,\"campaigns\":[{\"id\":1}]}";
+    private static final String BODY_V2 = "{\"tag_verified\":true,\"campaigns\":[{\"id\":2}]}";
+
+    /**
+     * Cache reading a clock the test moves.
+     */
+    private static class ClockedCache extends DiskInteractionCache {
+        long time = 1000000;
+
+        ClockedCache(File directory, long maxBytes, int maxEntries) throws Exception {
+            super(directory, maxBytes, maxEntries, 60000, 3600000);
+            setExecutor(InteractionExecutors.direct());
+        }
+
+        @Override
+        protected long currentTimeMillis() {
+            return time;
+        }
+    }
+
+    /**
+     * Server answering with a fixed ETag and body, 304 when If-None-Match matches.
+     */
+    private static class EtagServer implements HeaderInteractionTransport {
+        final List<Map<String, String>> requestHeaders = new ArrayList<>();
+        String etag = "\"v1\"";
+        String body = BODY_V1;
+        String cacheControl;
+
+        @Override
+        public Call post(String url, Map<String, String> params, Callback callback) {
+            return post(url, params, null, callback);
+        }
+
+        @Override
+        public Call post(String url, Map<String, String> params, Map<String, String> headers,
+                         Callback callback) {
+            requestHeaders.add(headers);
+            Map<String, String> response = new HashMap<>();
+            response.put("etag", etag);
+            if (cacheControl != null) {
+                response.put("Cache-Control", cacheControl);
+            }
+            if (headers != null && etag.equals(headers.get("If-None-Match"))) {
+                callback.onResponse(304, response, new byte[0]);
+            } else {
+                callback.onResponse(200, response, body.getBytes());
+            }
+            return null;
+        }
+    }
+
+    private static final InteractionTransport.Callback IGNORE = new InteractionTransport.Callback() {
+        @Override
+        public void onResponse(int statusCode, Map<String, String> headers, byte[] body) {
+        }
+
+        @Override
+        public void onFailure(Throwable cause) {
+        }
+    };
+
+    private static Map<String, String> params(String tagId) {
+        Map<String, String> params = new LinkedHashMap<>();
+        params.put("tag_id", tagId);
+        params.put("tech", "n");
+        return params;
+    }
+
+    @Test
+    public void testFreshEntrySurvivesReopen() throws Exception {
+        EtagServer server = new EtagServer();
+        API api = new API(null, server);
+        DiskInteractionCache cache =
+                new DiskInteractionCache(folder.getRoot(), 1 << 20, 100, 60000, 0);
+        cache.setExecutor(InteractionExecutors.direct());
+        api.setDiskCache(cache);
+
+        InteractionResult result = api.verify(SLUG_URL).get(5, TimeUnit.SECONDS);
+        assertEquals(1, result.getCampaigns().getJSONObject(0).getInt("id"));
+        assertEquals(1, server.requestHeaders.size());
+
+        // a new process finds the response on disk and doesn't ask the server
+        api = new API(null, server);
+        DiskInteractionCache reopened =
+                new DiskInteractionCache(folder.getRoot(), 1 << 20, 100, 60000, 0);
+        api.setDiskCache(reopened);
+        result = api.verify(SLUG_URL).get(5, TimeUnit.SECONDS);
+        assertEquals(1, result.getCampaigns().getJSONObject(0).getInt("id"));
+        assertEquals(1, server.requestHeaders.size());
+        assertEquals(1, reopened.getHitCount());
+    }
+
+    @Test
+    public void testStaleEntryIsServedAndRevalidated() throws Exception {
+        EtagServer server = new EtagServer();
+        ClockedCache cache = new ClockedCache(folder.getRoot(), 1 << 20, 100);
+        cache.post(server, ROUTE, params("1"), IGNORE);
+
+        // unchanged on the server: served from disk, a 304 makes it fresh again
+        cache.time += 120000;
+        final List<String> served = new ArrayList<>();
+        InteractionTransport.Callback record = new InteractionTransport.Callback() {
+            @Override
+            public void onResponse(int statusCode, Map<String, String> headers, byte[] body) {
+                served.add(statusCode + " " + new String(body));
+            }
+
+            @Override
+            public void onFailure(Throwable cause) {
+            }
+        };
+        cache.post(server, ROUTE, params("1"), record);
+        assertEquals(Collections.singletonList("200 " + BODY_V1), served);
+        assertEquals("\"v1\"", server.requestHeaders.get(1).get("If-None-Match"));
+        assertEquals(1, cache.getStaleHitCount());
+        cache.post(server, ROUTE, params("1"), record);
+        assertEquals(2, server.requestHeaders.size());
+        assertEquals(1, cache.getHitCount());
+
+        // changed on the server: the stale copy is served once more and then replaced
+        server.etag = "\"v2\"";
+        server.body = BODY_V2;
+        cache.time += 120000;
+        cache.post(server, ROUTE, params("1"), record);
+        cache.post(server, ROUTE, params("1"), record);
+        assertEquals("200 " + BODY_V1, served.get(2));
+        assertEquals("200 " + BODY_V2, served.get(3));
+        assertEquals(2, cache.getRevalidationCount());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedIsEvicted() throws Exception {
+        EtagServer server = new EtagServer();
+        ClockedCache cache = new ClockedCache(folder.getRoot(), 1 << 20, 3);
+        for (int i = 0; i < 3; i++) {
+            cache.post(server, ROUTE, params(Integer.toString(i)), IGNORE);
+        }
+        // touch 0 so 1 is the oldest
+        cache.post(server, ROUTE, params("0"), IGNORE);
+        cache.post(server, ROUTE, params("3"), IGNORE);
+        assertEquals(3, cache.size());
+        assertNotNull(cache.get(DiskInteractionCache.keyFor(ROUTE, params("0"))));
+        assertNull(cache.get(DiskInteractionCache.keyFor(ROUTE, params("1"))));
+        assertNotNull(cache.get(DiskInteractionCache.keyFor(ROUTE, params("2"))));
+        assertNotNull(cache.get(DiskInteractionCache.keyFor(ROUTE, params("3"))));
+
+        // a byte budget of about two entries keeps the two newest
+        cache = new ClockedCache(folder.newFolder(), 2 * cache.getSizeBytes() / 3 + 10, 100);
+        for (int i = 0; i < 50; i++) {
+            cache.post(server, ROUTE, params(Integer.toString(i)), IGNORE);
+        }
+        assertEquals(2, cache.size());
+        assertNotNull(cache.get(DiskInteractionCache.keyFor(ROUTE, params("48"))));
+        assertNotNull(cache.get(DiskInteractionCache.keyFor(ROUTE, params("49"))));
+        assertEquals(2, cache.getHitCount());
+    }
+
+    @Test
+    public void testUncacheableResponses() throws Exception {
+        EtagServer server = new EtagServer();
+        ClockedCache cache = new ClockedCache(folder.getRoot(), 1 << 20, 100);
+        Map<String, String> oneTime = params("1");
+        oneTime.put("vid", "0002C42702");
+        cache.post(server, ROUTE, oneTime, IGNORE);
+        server.cacheControl = "private, no-store";
+        cache.post(server, ROUTE, params("2"), IGNORE);
+        assertEquals(0, cache.size());
+
+        server.cacheControl = "max-age=5";
+        cache.post(server, ROUTE, params("3"), IGNORE);
+        cache.time += 6000;
+        assertFalse(cache.get(DiskInteractionCache.keyFor(ROUTE, params("3"))).fresh);
+    }
+
+    @Test
+    public void testLookupsAndWritesRunOnTheExecutor() throws Exception {
+        EtagServer server = new EtagServer();
+        ClockedCache cache = new ClockedCache(folder.getRoot(), 1 << 20, 100);
+        final List<Runnable> tasks = new ArrayList<>();
+        cache.setExecutor(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                tasks.add(command);
+            }
+        });
+
+        // nothing is looked up or sent on the calling thread
+        final List<Integer> served = new ArrayList<>();
+        InteractionTransport.Callback record = new InteractionTransport.Callback() {
+            @Override
+            public void onResponse(int statusCode, Map<String, String> headers, byte[] body) {
+                served.add(statusCode);
+            }
+
+            @Override
+            public void onFailure(Throwable cause) {
+            }
+        };
+        cache.post(server, ROUTE, params("1"), record);
+        assertTrue(server.requestHeaders.isEmpty());
+        tasks.remove(0).run();
+        assertEquals(Collections.singletonList(200), served);
+
+        // the response is passed on right away, stored once the write task runs
+        assertEquals(0, cache.size());
+        tasks.remove(0).run();
+        assertEquals(1, cache.size());
+
+        // a request cancelled before its lookup ran is never answered or sent
+        cache.post(server, ROUTE, params("2"), record).cancel();
+        tasks.remove(0).run();
+        assertEquals(1, served.size());
+        assertEquals(1, server.requestHeaders.size());
+        assertTrue(tasks.isEmpty());
+    }
+
+    @Test
+    public void testReopenWithOtherLimitsStartsOver() throws Exception {
+        EtagServer server = new EtagServer();
+        ClockedCache cache = new ClockedCache(folder.getRoot(), 1 << 20, 100);
+        for (int i = 0; i < 20; i++) {
+            cache.post(server, ROUTE, params(Integer.toString(i)), IGNORE);
+        }
+        cache = new ClockedCache(folder.getRoot(), 1 << 20, 100);
+        assertEquals(20, cache.size());
+
+        cache = new ClockedCache(folder.getRoot(), 1 << 20, 5000);
+        assertEquals(0, cache.size());
+        assertEquals(1, folder.getRoot().list().length);
+    }
+}
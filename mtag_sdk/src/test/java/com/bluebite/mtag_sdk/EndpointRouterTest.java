@@ -0,0 +1,231 @@
+//Copyright 2018 Blue Bite LLC.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package com.bluebite.mtag_sdk;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests route requests over simulated regional servers with different latencies and
+ * failure modes.
+ */
+public class EndpointRouterTest {
+
+    private static final long MILLI = 1000000L;
+    private static final String NEAR = "https://near.example/v2/interactions";
+    private static final String MID = "https://mid.example/v2/interactions";
+    private static final String FAR = "https://far.example/v2/interactions";
+    private static final String BODY = "{\"tag_verified\": true}";
+
+    /**
+     * Router reading a clock the servers advance.
+     */
+    private static class SimulatedRouter extends EndpointRouter {
+        long time;
+
+        SimulatedRouter(String... urls) {
+            super(urls);
+        }
+
+        @Override
+        protected long now() {
+            return time;
+        }
+    }
+
+    /**
+     * Servers keyed by URL, each answering after its own latency with its own status.
+     * Status 0 means no response at all.
+     */
+    private static class SimulatedServers implements InteractionTransport {
+        final SimulatedRouter router;
+        final Map<String, long[]> servers = new HashMap<>();
+        final List<String> sent = Collections.synchronizedList(new ArrayList<String>());
+
+        SimulatedServers(SimulatedRouter router) {
+            this.router = router;
+        }
+
+        void set(String url, long latencyMillis, int status) {
+            servers.put(url, new long[] {latencyMillis, status});
+        }
+
+        @Override
+        public Call post(String url, Map<String, String> params, Callback callback) {
+            sent.add(url);
+            long[] server = servers.get(url);
+            router.time += server[0] * MILLI;
+            if (server[1] == 0) {
+                callback.onFailure(new IOException("unreachable"));
+            } else {
+                callback.onResponse((int) server[1], Collections.<String, String>emptyMap(),
+                        BODY.getBytes());
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Records the last outcome a request reported.
+     */
+    private static class Outcome implements InteractionTransport.Callback {
+        int status = -1;
+
+        @Override
+        public void onResponse(int statusCode, Map<String, String> headers, byte[] body) {
+            status = statusCode;
+        }
+
+        @Override
+        public void onFailure(Throwable cause) {
+            status = 0;
+        }
+    }
+
+    private int send(SimulatedRouter router, SimulatedServers servers,
+                     Map<String, String> params) {
+        Outcome outcome = new Outcome();
+        router.post(servers, params, outcome, null);
+        return outcome.status;
+    }
+
+    private Map<String, String> slugParams() {
+        Map<String, String> params = new HashMap<>();
+        params.put("url", "https://mtag.io/abc");
+        return params;
+    }
+
+    @Test
+    public void testRoutesToFastestEndpoint() throws Exception {
+        SimulatedRouter router = new SimulatedRouter(FAR, MID, NEAR);
+        SimulatedServers servers = new SimulatedServers(router);
+        servers.set(FAR, 300, 200);
+        servers.set(MID, 120, 200);
+        servers.set(NEAR, 20, 200);
+
+        for (int i = 0; i < 20; i++) {
+            assertEquals(200, send(router, servers, slugParams()));
+        }
+        // every endpoint is measured once, then the nearest one gets everything
+        assertEquals(FAR, servers.sent.get(0));
+        assertEquals(MID, servers.sent.get(1));
+        assertEquals(NEAR, servers.sent.get(2));
+        for (String url : servers.sent.subList(3, servers.sent.size())) {
+            assertEquals(NEAR, url);
+        }
+        EndpointRouter.Endpoint near = router.getEndpoints().get(2);
+        assertEquals(18, near.getRequestCount());
+        assertEquals(20 * MILLI, near.getSmoothedRttNanos());
+        assertEquals(NEAR, router.getPreferredUrl());
+
+        // an endpoint left alone for a while is measured again
+        router.setSelection(4, 1000);
+        router.time += 2000 * MILLI;
+        send(router, servers, slugParams());
+        assertEquals(FAR, servers.sent.get(servers.sent.size() - 1));
+    }
+
+    @Test
+    public void testFailsOverAndOpensCircuit() throws Exception {
+        SimulatedRouter router = new SimulatedRouter(NEAR, FAR);
+        router.setCircuitBreaker(3, 10000);
+        SimulatedServers servers = new SimulatedServers(router);
+        servers.set(NEAR, 20, 200);
+        servers.set(FAR, 300, 200);
+        send(router, servers, slugParams());
+        send(router, servers, slugParams());
+
+        // the nearest endpoint goes down, requests fail over to the far one
+        servers.set(NEAR, 20, 503);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(200, send(router, servers, slugParams()));
+        }
+        assertEquals(3, router.getFailoverCount());
+        assertEquals(EndpointRouter.State.OPEN, router.getEndpoints().get(0).getState());
+        assertEquals(1, router.getCircuitOpenCount());
+
+        // while open, the near endpoint gets nothing
+        int before = servers.sent.size();
+        send(router, servers, slugParams());
+        assertEquals(Collections.singletonList(FAR), servers.sent.subList(before, servers.sent.size()));
+
+        // once the open period is over a probe closes the circuit again
+        servers.set(NEAR, 0, 200);
+        router.time += TimeUnit.SECONDS.toNanos(10);
+        before = servers.sent.size();
+        assertEquals(200, send(router, servers, slugParams()));
+        assertEquals(NEAR, servers.sent.get(before));
+        assertEquals(EndpointRouter.State.CLOSED, router.getEndpoints().get(0).getState());
+    }
+
+    @Test
+    public void testFailedProbeReopensCircuit() throws Exception {
+        SimulatedRouter router = new SimulatedRouter(NEAR, FAR);
+        router.setCircuitBreaker(1, 10000);
+        SimulatedServers servers = new SimulatedServers(router);
+        servers.set(NEAR, 20, 0);
+        servers.set(FAR, 300, 200);
+        assertEquals(200, send(router, servers, slugParams()));
+        assertEquals(EndpointRouter.State.OPEN, router.getEndpoints().get(0).getState());
+
+        router.time += TimeUnit.SECONDS.toNanos(10);
+        assertEquals(200, send(router, servers, slugParams()));
+        assertEquals(EndpointRouter.State.OPEN, router.getEndpoints().get(0).getState());
+        assertEquals(2, router.getCircuitOpenCount());
+    }
+
+    @Test
+    public void testOneTimeRequestsDontFailOver() throws Exception {
+        SimulatedRouter router = new SimulatedRouter(NEAR, FAR);
+        SimulatedServers servers = new SimulatedServers(router);
+        servers.set(NEAR, 20, 503);
+        servers.set(FAR, 300, 200);
+        Map<String, String> params = new HashMap<>();
+        params.put("tag_id", "32403784");
+        params.put("vid", "0123456789x0002C42702");
+
+        assertEquals(503, send(router, servers, params));
+        assertEquals(1, servers.sent.size());
+        assertEquals(0, router.getFailoverCount());
+    }
+
+    @Test
+    public void testApiRoutesRequests() throws Exception {
+        SimulatedRouter router = new SimulatedRouter(FAR, NEAR);
+        SimulatedServers servers = new SimulatedServers(router);
+        servers.set(FAR, 300, 0);
+        servers.set(NEAR, 20, 200);
+        API api = new API(null, servers);
+        api.setCallbackExecutor(InteractionExecutors.direct());
+        api.setEndpointRouter(router);
+
+        // the far endpoint can't be reached, the slug tap fails over to the near one
+        InteractionFuture future = api.verify("https://mtag.io/abc");
+        assertTrue(future.get().isVerified());
+        assertEquals(Arrays.asList(FAR, NEAR), servers.sent);
+        assertEquals(1, router.toJSONObject().getLong("failovers"));
+    }
+}
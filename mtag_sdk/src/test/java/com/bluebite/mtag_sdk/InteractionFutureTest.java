@@ -0,0 +1,142 @@
+//Copyright 2018 Blue Bite LLC.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+
+package com.bluebite.mtag_sdk;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests verify futures returned by API.verify complete, cancel and expire as documented.
+ */
+public class InteractionFutureTest {
+
+    private static final String HID_URL =
+            "https://mtag.io/njaix4?tagID=12345678&tac=7C3CC5B3FEDD48EE2DA327DD";
+
+    private ScheduledExecutorService scheduler;
+    private final AtomicInteger responded = new AtomicInteger();
+
+    @Before
+    public void setUp() {
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.shutdownNow();
+    }
+
+    private API api(long latencyMillis) {
+        return new API(null, new LoopbackInteractionTransport(
+                new LoopbackInteractionTransport.Responder() {
+                    @Override
+                    public LoopbackInteractionTransport.Response respond(
+                            String url, Map<String, String> params) {
+                        responded.incrementAndGet();
+                        return new LoopbackInteractionTransport.Response(200,
+                                "{\"tag_verified\":true,\"device\":{\"country\":\"US\"}}");
+                    }
+                }, scheduler, latencyMillis));
+    }
+
+    @Test
+    public void testGetFromWorkerThread() throws Exception {
+        InteractionFuture future = api(10).verify(HID_URL);
+        InteractionResult result = future.get(5, TimeUnit.SECONDS);
+        assertTrue(future.isSuccessful());
+        assertTrue(result.isVerified());
+        assertEquals("US", result.getDeviceCountry());
+    }
+
+    @Test
+    public void testFailureIsReported() throws Exception {
+        InteractionFuture future = api(0).verify("https://google.com");
+        assertTrue(future.isDone());
+        assertEquals(API.ERROR_NON_AUTH_URL + "https://google.com", future.getError());
+        try {
+            future.get();
+            fail("expected ExecutionException");
+        } catch (ExecutionException e) {
+            assertEquals(future.getError(), e.getMessage());
+        }
+    }
+
+    @Test
+    public void testCancelAbortsCall() throws Exception {
+        InteractionFuture future = api(200).verify(HID_URL);
+        assertTrue(future.cancel(true));
+        assertTrue(future.isCancelled());
+        assertFalse(future.cancel(true));
+        try {
+            future.get();
+            fail("expected CancellationException");
+        } catch (CancellationException e) {
+            // expected
+        }
+        Thread.sleep(400);
+        assertEquals(0, responded.get());
+    }
+
+    @Test
+    public void testCancelKeepsSharedRequest() throws Exception {
+        API api = api(100);
+        InteractionFuture first = api.verify(HID_URL);
+        InteractionFuture second = api.verify(HID_URL);
+        first.cancel(true);
+        assertTrue(second.get(5, TimeUnit.SECONDS).isVerified());
+        assertEquals(1, responded.get());
+        assertTrue(first.isCancelled());
+    }
+
+    @Test
+    public void testDeadlineExceeded() throws Exception {
+        API api = api(500);
+        InteractionMetrics metrics = new InteractionMetrics();
+        api.setMetrics(metrics);
+        InteractionFuture future = api.verify(HID_URL, 20, TimeUnit.MILLISECONDS);
+        final CountDownLatch notified = new CountDownLatch(1);
+        future.addListener(new InteractionFuture.Listener() {
+            @Override
+            public void onComplete(InteractionFuture future) {
+                notified.countDown();
+            }
+        });
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail("expected ExecutionException");
+        } catch (ExecutionException e) {
+            assertEquals(API.ERROR_DEADLINE_EXCEEDED + HID_URL, e.getMessage());
+        }
+        assertTrue(notified.await(5, TimeUnit.SECONDS));
+        Thread.sleep(700);
+        assertEquals(0, responded.get());
+        assertEquals(1, metrics.snapshot().getFailureCount(
+                InteractionMetrics.Failure.DEADLINE_EXCEEDED));
+    }
+}
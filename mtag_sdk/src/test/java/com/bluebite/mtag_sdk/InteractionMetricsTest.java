@@ -0,0 +1,285 @@
+//Copyright 2018 Blue Bite LLC.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+
+package com.bluebite.mtag_sdk;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests verify histogram bucketing and the stages and counters the API records.
+ */
+public class InteractionMetricsTest {
+
+    @Test
+    public void testHistogramBuckets() throws Exception {
+        long[] values = {0, 1, 3, 4, 7, 8, 9, 1000, 123456789, Long.MAX_VALUE};
+        for (long value : values) {
+            int bucket = InteractionMetrics.Histogram.bucketOf(value);
+            long upper = InteractionMetrics.Histogram.upperBoundOf(bucket);
+            assertTrue(value + " above " + upper, value <= upper);
+            assertTrue(value + " far below " + upper, upper - value <= value / 4 + 1);
+            if (bucket > 0) {
+                assertTrue(InteractionMetrics.Histogram.upperBoundOf(bucket - 1) < value);
+            }
+        }
+    }
+
+    @Test
+    public void testPercentiles() throws Exception {
+        InteractionMetrics metrics = new InteractionMetrics();
+        for (int i = 1; i <= 100; i++) {
+            metrics.record(InteractionMetrics.Stage.NETWORK, i * 1000L);
+        }
+        InteractionMetrics.Snapshot snapshot = metrics.snapshot();
+        assertEquals(100, snapshot.getCount(InteractionMetrics.Stage.NETWORK));
+        assertEquals(50500, snapshot.getMeanNanos(InteractionMetrics.Stage.NETWORK));
+        assertEquals(100000, snapshot.getMaxNanos(InteractionMetrics.Stage.NETWORK));
+        long p95 = snapshot.getP95Nanos(InteractionMetrics.Stage.NETWORK);
+        assertTrue(p95 >= 95000 && p95 <= 95000 * 5 / 4);
+        assertEquals(0, snapshot.getCount(InteractionMetrics.Stage.DISPATCH));
+    }
+
+    @Test
+    public void testApiRecordsStagesAndCounters() throws Exception {
+        final int[] status = {200};
+        BlueBiteInteractionDelegate delegate = new BlueBiteInteractionDelegate() {
+            @Override
+            public void interactionDataWasReceived(JSONObject results) {
+            }
+
+            @Override
+            public void interactionDidFail(String error) {
+            }
+        };
+        API api = new API(delegate, new LoopbackInteractionTransport(
+                new LoopbackInteractionTransport.Responder() {
+                    @Override
+                    public LoopbackInteractionTransport.Response respond(
+                            String url, Map<String, String> params) throws IOException {
+                        if (status[0] == 0) {
+                            throw new IOException("offline");
+                        }
+                        return new LoopbackInteractionTransport.Response(status[0],
+                                status[0] == 200 ? "{\"tag_verified\":true}" : "nope");
+                    }
+                }));
+        InteractionMetrics metrics = new InteractionMetrics();
+        api.setMetrics(metrics);
+
+        String hidUrl = "https://mtag.io/njaix4?tagID=12345678&tac=7C3CC5B3FEDD48EE2DA327DD";
+        api.interactionWasReceived(hidUrl);
+        api.interactionWasReceived("https://mtag.io/abc");
+        status[0] = 500;
+        api.interactionWasReceived(hidUrl);
+        status[0] = 0;
+        api.interactionWasReceived(hidUrl);
+        api.interactionWasReceived("https://google.com");
+        api.rejectTagData("not an NDEF tag");
+
+        InteractionMetrics.Snapshot snapshot = metrics.snapshot();
+        assertEquals(5, snapshot.getCount(InteractionMetrics.Stage.URL_PARSE));
+        assertEquals(3, snapshot.getCount(InteractionMetrics.Stage.PAYLOAD_BUILD));
+        assertEquals(4, snapshot.getCount(InteractionMetrics.Stage.NETWORK));
+        assertEquals(2, snapshot.getCount(InteractionMetrics.Stage.RESPONSE_PARSE));
+        assertEquals(4, snapshot.getCount(InteractionMetrics.Stage.DISPATCH));
+        assertEquals(3, snapshot.getTagTypeCount(InteractionUrl.Type.HID));
+        assertEquals(1, snapshot.getTagTypeCount(InteractionUrl.Type.SLUG));
+        assertEquals(1, snapshot.getTagTypeCount(InteractionUrl.Type.NON_AUTH));
+        assertEquals(2, snapshot.getSuccessCount());
+        assertEquals(1, snapshot.getFailureCount(InteractionMetrics.Failure.HTTP_STATUS));
+        assertEquals(1, snapshot.getFailureCount(InteractionMetrics.Failure.NETWORK));
+        assertEquals(1, snapshot.getFailureCount(InteractionMetrics.Failure.NON_AUTH_URL));
+        assertEquals(1, snapshot.getFailureCount(InteractionMetrics.Failure.INVALID_TAG_DATA));
+        assertEquals(2, snapshot.toJSONObject().getInt("succeeded"));
+    }
+
+    @Test
+    public void testWarmAndColdConnectionsAreCounted() throws Exception {
+        // a real client against a local server, so the reused flag comes from the pool
+        InteractionStubServer server = new InteractionStubServer(1, 0, 0, 0);
+        String url = server.startHttp(0, 1);
+        try {
+            API api = new API(null, new AsyncHttpInteractionTransport(5000, 5000, 1,
+                    AsyncHttpInteractionTransport.DEFAULT_KEEP_ALIVE_MILLIS));
+            api.setInteractionsUrl(url);
+            api.setCallbackExecutor(InteractionExecutors.direct());
+            InteractionMetrics metrics = new InteractionMetrics();
+            api.setMetrics(metrics);
+
+            api.verify("https://mtag.io/s0").get(5, TimeUnit.SECONDS);
+            InteractionMetrics.Snapshot snapshot = metrics.snapshot();
+            assertEquals(1, snapshot.getColdConnectionCount());
+            assertEquals(0, snapshot.getWarmConnectionCount());
+
+            api.verify("https://mtag.io/s1").get(5, TimeUnit.SECONDS);
+            api.verify("https://mtag.io/s2").get(5, TimeUnit.SECONDS);
+            snapshot = metrics.snapshot();
+            assertEquals(1, snapshot.getColdConnectionCount());
+            assertEquals(2, snapshot.getWarmConnectionCount());
+            assertEquals(2, snapshot.toJSONObject().getInt("warmConnections"));
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testPrewarmedConnectionIsReused() throws Exception {
+        KeepAliveServer server = new KeepAliveServer();
+        try {
+            // a single pooled connection, so the request waits for the warm up to hand it back
+            AsyncHttpInteractionTransport transport = new AsyncHttpInteractionTransport(5000,
+                    5000, 1, AsyncHttpInteractionTransport.DEFAULT_KEEP_ALIVE_MILLIS);
+            transport.prewarm(server.getUrl());
+            long deadline = System.currentTimeMillis() + 5000;
+            while (server.requests.get() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(1, server.requests.get());
+
+            API api = new API(null, transport);
+            api.setInteractionsUrl(server.getUrl());
+            api.setCallbackExecutor(InteractionExecutors.direct());
+            InteractionMetrics metrics = new InteractionMetrics();
+            api.setMetrics(metrics);
+            assertTrue(api.verify("https://mtag.io/s0").get(5, TimeUnit.SECONDS).isVerified());
+
+            InteractionMetrics.Snapshot snapshot = metrics.snapshot();
+            assertEquals(0, snapshot.getColdConnectionCount());
+            assertEquals(1, snapshot.getWarmConnectionCount());
+            assertEquals(2, server.requests.get());
+            assertEquals(1, server.connections.get());
+        } finally {
+            server.close();
+        }
+    }
+
+    /**
+     * Bare HTTP/1.1 server answering every request on the connection it arrived on.  The
+     * JDK's HttpServer closes connections after a HEAD, which would hide the connection
+     * prewarm leaves in the pool.
+     */
+    private static class KeepAliveServer implements Closeable {
+        private static final Charset ASCII = Charset.forName("US-ASCII");
+        private static final byte[] BODY = "{\"tag_verified\":true}".getBytes(ASCII);
+
+        final AtomicInteger connections = new AtomicInteger();
+        final AtomicInteger requests = new AtomicInteger();
+        private final ServerSocket socket =
+                new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        private final List<Socket> accepted = new CopyOnWriteArrayList<>();
+
+        KeepAliveServer() throws IOException {
+            Thread acceptor = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (true) {
+                            final Socket connection = socket.accept();
+                            connections.incrementAndGet();
+                            accepted.add(connection);
+                            Thread reader = new Thread(new Runnable() {
+                                @Override
+                                public void run() {
+                                    serve(connection);
+                                }
+                            });
+                            reader.setDaemon(true);
+                            reader.start();
+                        }
+                    } catch (IOException e) {
+                        // closed
+                    }
+                }
+            });
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        String getUrl() {
+            return "http://127.0.0.1:" + socket.getLocalPort() + "/v2/interactions";
+        }
+
+        private void serve(Socket connection) {
+            try {
+                InputStream in = new BufferedInputStream(connection.getInputStream());
+                OutputStream out = connection.getOutputStream();
+                String requestLine;
+                while ((requestLine = readLine(in)) != null) {
+                    int contentLength = 0;
+                    String header;
+                    while ((header = readLine(in)) != null && !header.isEmpty()) {
+                        if (header.toLowerCase(Locale.US).startsWith("content-length:")) {
+                            contentLength = Integer.parseInt(header.substring(15).trim());
+                        }
+                    }
+                    for (int i = 0; i < contentLength; i++) {
+                        in.read();
+                    }
+                    requests.incrementAndGet();
+                    out.write(("HTTP/1.1 200 OK\r\nContent-Type: application/json\r\n"
+                            + "Content-Length: " + BODY.length + "\r\n\r\n").getBytes(ASCII));
+                    if (!requestLine.startsWith("HEAD ")) {
+                        out.write(BODY);
+                    }
+                    out.flush();
+                }
+            } catch (IOException e) {
+                // client went away
+            }
+        }
+
+        private static String readLine(InputStream in) throws IOException {
+            StringBuilder line = new StringBuilder();
+            int c;
+            while ((c = in.read()) != '\n') {
+                if (c < 0) {
+                    return null;
+                }
+                if (c != '\r') {
+                    line.append((char) c);
+                }
+            }
+            return line.toString();
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+            for (Socket connection : accepted) {
+                connection.close();
+            }
+        }
+    }
+}
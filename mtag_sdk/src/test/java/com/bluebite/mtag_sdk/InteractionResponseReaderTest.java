@@ -0,0 +1,96 @@
+//Copyright 2018 Blue Bite LLC.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+
+package com.bluebite.mtag_sdk;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests verify the streaming reader extracts the same fields handleResponse pulls out of a
+ * fully parsed response.
+ */
+public class InteractionResponseReaderTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final API api = new API(null);
+
+    private InteractionResponseReader read(String body) {
+        return InteractionResponseReader.read(body.getBytes(UTF_8));
+    }
+
+    private void assertSameAsHandleResponse(String body) throws Exception {
+        JSONObject expected = api.handleResponse(new JSONObject(body));
+        JSONObject actual = InteractionResult.from(read(body)).toJSONObject();
+        assertEquals(expected.toString(), actual.toString());
+    }
+
+    @Test
+    public void testMatchesHandleResponse() throws Exception {
+        assertSameAsHandleResponse("{\"device\":{\"r\":false,\"rd\":true,\"country\":\"US\"},"
+                + "\"tag_verified\":true,\"impression_ids\":null,"
+                + "\"location\":{\"city\":\"New York\",\"lat\":40.7128},"
+                + "\"campaigns\":[{\"id\":1,\"rules\":[{\"v\":\"a]}\\\"\"}]}]}");
+        assertSameAsHandleResponse("{\"tag_verified\":\"FALSE\",\"campaigns\":[]}");
+        assertSameAsHandleResponse("{\"device\":{\"country\":\"\\u00e9t\\n\"}, \"location\":null}");
+        assertSameAsHandleResponse(" { } ");
+        assertSameAsHandleResponse("{\"location\":[1],\"campaigns\":{},\"tag_verified\":null}");
+    }
+
+    @Test
+    public void testSkippedFieldsAreNotDecoded() throws Exception {
+        InteractionResponseReader reader = read("{\"rk\":{\"a\":[1,2,{\"b\":\"}\"}]},"
+                + "\"device\":{\"country\":\"CA\",\"x\":[]},\"tag_verified\":false,"
+                + "\"campaigns\":[{\"id\":7}]}");
+        assertNotNull(reader);
+        assertEquals("CA", reader.getDeviceCountry());
+        assertEquals(Boolean.FALSE, reader.getTagVerified());
+        assertFalse(reader.hasLocation());
+        assertNull(reader.getLocation());
+        assertTrue(reader.hasCampaigns());
+        assertEquals(7, reader.getCampaigns().getJSONObject(0).getInt("id"));
+    }
+
+    @Test
+    public void testMalformedBody() throws Exception {
+        assertNull(read(""));
+        assertNull(read("[]"));
+        assertNull(read("<html>Bad Gateway</html>"));
+        assertNull(read("{\"campaigns\":[{\"id\":1}"));
+        assertNull(read("{\"device\":{\"country\":\"US}}"));
+        assertNull(read("{\"a\" 1}"));
+    }
+
+    @Test
+    public void testPayloadsAreDecodedSeparately() throws Exception {
+        InteractionResult result = InteractionResult.from(read(
+                "{\"location\":{\"city\":\"NYC\"},\"campaigns\":[{\"id\":1}]}"));
+        JSONObject first = result.toJSONObject();
+        first.getJSONObject("location").put("city", "LA");
+        first.getJSONArray("campaigns").put(2);
+
+        JSONObject second = result.toJSONObject();
+        assertEquals("NYC", second.getJSONObject("location").getString("city"));
+        assertEquals(1, second.getJSONArray("campaigns").length());
+        assertEquals("NYC", result.getLocation().getString("city"));
+        assertNotSame(result.getLocation(), second.getJSONObject("location"));
+    }
+}
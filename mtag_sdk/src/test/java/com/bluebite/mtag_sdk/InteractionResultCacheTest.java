@@ -0,0 +1,107 @@
+//Copyright 2018 Blue Bite LLC.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package com.bluebite.mtag_sdk;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests verify the result cache's eviction, expiry and caching policy.
+ */
+public class InteractionResultCacheTest {
+
+    private static final InteractionResult RESULT = new InteractionResult(
+            InteractionResult.Verification.VERIFIED, "US", null, null);
+
+    /**
+     * Cache whose clock only moves when the test says so.
+     */
+    private static class ManualClockCache extends InteractionResultCache {
+        long nanos;
+
+        ManualClockCache(int maxEntries, long ttlMillis) {
+            super(maxEntries, ttlMillis);
+        }
+
+        @Override
+        protected long now() {
+            return nanos;
+        }
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEviction() throws Exception {
+        ManualClockCache cache = new ManualClockCache(2, 1000);
+        cache.put("a", RESULT);
+        cache.put("b", RESULT);
+        assertNotNull(cache.get("a"));
+
+        // b is now the least recently used entry
+        cache.put("c", RESULT);
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("a"));
+        assertNotNull(cache.get("c"));
+        assertEquals(3, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void testEntriesExpire() throws Exception {
+        ManualClockCache cache = new ManualClockCache(10, 1000);
+        cache.put("a", RESULT);
+        cache.nanos += 999 * 1000000L;
+        assertNotNull(cache.get("a"));
+        cache.nanos += 1000000L;
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testOneTimeVidsAreNotCacheable() throws Exception {
+        assertTrue(InteractionResultCache.isCacheable(
+                InteractionUrl.parse("https://mtag.io/abc")));
+        assertFalse(InteractionResultCache.isCacheable(
+                InteractionUrl.parse("https://mtag.io/njaix4/0123456789x0002C42702")));
+        assertFalse(InteractionResultCache.isCacheable(
+                InteractionUrl.parse("https://mtag.io/njaix4?id=12345678&sig=00000F1234567678")));
+        assertFalse(InteractionResultCache.isCacheable(
+                InteractionUrl.parse("https://mtag.io/njaix4?tagID=1&tac=7C3CC5B3FEDD48EE")));
+    }
+
+    @Test
+    public void testCachedResultsHandOutSeparatePayloads() throws Exception {
+        JSONObject delivered = new JSONObject(
+                "{\"tagVerified\":true,\"location\":{\"city\":\"NYC\"},\"campaigns\":[]}");
+        InteractionResultCache cache = new InteractionResultCache(10, 1000);
+        cache.put("a", InteractionResult.fromFormattedResponse(delivered));
+        delivered.getJSONObject("location").put("city", "SF");
+
+        // one delegate changing its payload must not show up in the next one's
+        JSONObject first = cache.get("a").toJSONObject();
+        assertEquals("NYC", first.getJSONObject("location").getString("city"));
+        first.put("tagVerified", false);
+        first.getJSONObject("location").put("city", "LA");
+        first.getJSONArray("campaigns").put(1);
+
+        JSONObject second = cache.get("a").toJSONObject();
+        assertNotSame(first, second);
+        assertTrue(second.getBoolean("tagVerified"));
+        assertEquals("NYC", second.getJSONObject("location").getString("city"));
+        assertEquals(0, second.getJSONArray("campaigns").length());
+    }
+}
@@ -0,0 +1,91 @@
+//Copyright 2018 Blue Bite LLC.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+
+package com.bluebite.mtag_sdk;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests verify level gating, ring buffer wrapping and the events the API traces.
+ */
+public class InteractionTracerTest {
+
+    @Test
+    public void testLevelGating() throws Exception {
+        InteractionTracer tracer = new InteractionTracer(8, InteractionTracer.Level.INFO);
+        tracer.record(InteractionTracer.Event.REQUEST_SENT, 4, 1);
+        assertEquals(0, tracer.getRecordedCount());
+        tracer.record(InteractionTracer.Event.INTERACTION_FAILED, 3, 0);
+        assertEquals(1, tracer.getRecordedCount());
+
+        tracer.setLevel(InteractionTracer.Level.OFF);
+        tracer.record(InteractionTracer.Event.INTERACTION_FAILED, 3, 0);
+        assertEquals(1, tracer.getRecordedCount());
+        assertFalse(tracer.isEnabled(InteractionTracer.Level.ERROR));
+    }
+
+    @Test
+    public void testRingKeepsMostRecentEvents() throws Exception {
+        InteractionTracer tracer = new InteractionTracer(5, InteractionTracer.Level.VERBOSE);
+        assertEquals(8, tracer.getCapacity());
+        for (int i = 0; i < 20; i++) {
+            tracer.record(InteractionTracer.Event.RESPONSE_RECEIVED, 200, i);
+        }
+        List<String> lines = tracer.dump();
+        assertEquals(8, lines.size());
+        assertTrue(lines.get(0), lines.get(0).endsWith("RESPONSE_RECEIVED status=200 bytes=12"));
+        assertTrue(lines.get(7).endsWith("bytes=19"));
+    }
+
+    @Test
+    public void testApiEvents() throws Exception {
+        API api = new API(new BlueBiteInteractionDelegate() {
+            @Override
+            public void interactionDataWasReceived(JSONObject results) {
+            }
+
+            @Override
+            public void interactionDidFail(String error) {
+            }
+        }, new LoopbackInteractionTransport(new LoopbackInteractionTransport.Responder() {
+            @Override
+            public LoopbackInteractionTransport.Response respond(
+                    String url, Map<String, String> params) {
+                return new LoopbackInteractionTransport.Response(200, "{}");
+            }
+        }));
+        InteractionTracer tracer = new InteractionTracer(64, InteractionTracer.Level.VERBOSE);
+        api.setTracer(tracer);
+
+        api.interactionWasReceived(
+                "https://mtag.io/njaix4?tagID=12345678&tac=7C3CC5B3FEDD48EE2DA327DD");
+        api.interactionWasReceived("https://google.com");
+
+        List<String> lines = tracer.dump();
+        assertEquals(5, lines.size());
+        assertTrue(lines.get(0).contains("INTERACTION_RECEIVED type=" + InteractionUrl.Type.HID.ordinal()));
+        assertTrue(lines.get(1).contains("REQUEST_SENT params=4 attempt=1"));
+        assertTrue(lines.get(2).contains("RESPONSE_RECEIVED status=200 bytes=2"));
+        assertTrue(lines.get(4).contains("INTERACTION_FAILED failure="
+                + InteractionMetrics.Failure.NON_AUTH_URL.ordinal()));
+    }
+}
@@ -24,9 +24,17 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
 
 import static org.junit.Assert.*;
 
@@ -36,6 +44,9 @@ import static org.junit.Assert.*;
  */
 public class MtagUnitTests {
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     private MockActivity activity;
     private MockAPI api;
 
@@ -263,4 +274,442 @@ public class MtagUnitTests {
         res = api.handleResponse(partialRes);
         assertEquals(res.toString(), expectedRes.toString());
     }
-}
\ No newline at end of file
+
+    /**
+     * Holds on to every registered interaction so the test decides when each one completes.
+     */
+    public class PendingAPI extends API {
+        List<BlueBiteInteractionDelegate> inFlight = new ArrayList<>();
+
+        public PendingAPI(BlueBiteInteractionDelegate mDelegate) {
+            super(mDelegate);
+        }
+
+        @Override
+        protected InteractionTransport.Call registerInteraction(
+                Map<String, String> params, BlueBiteInteractionDelegate delegate) {
+            inFlight.add(delegate);
+            return null;
+        }
+    }
+
+    /**
+     * Records per URL and per batch results.
+     */
+    public class MockBatchActivity extends MockActivity implements BlueBiteBatchInteractionDelegate {
+        List<String> succeeded = new ArrayList<>();
+        List<String> failed = new ArrayList<>();
+        List<String> batches = new ArrayList<>();
+
+        @Override
+        public void interactionDataWasReceived(String url, JSONObject results) {
+            succeeded.add(url);
+        }
+
+        @Override
+        public void interactionDidFail(String url, String error) {
+            failed.add(url);
+        }
+
+        @Override
+        public void batchWasCompleted(int batchIndex, int batchCount, int succeeded, int failed) {
+            batches.add(batchIndex + "/" + batchCount + ":" + succeeded + "," + failed);
+        }
+    }
+
+    /**
+     * Calls to interactionsWereReceived should:
+     * - keep no more than maxConcurrentRequests requests in flight.
+     * - fail invalid URLs without affecting the rest of their batch.
+     * - report every batch once all of its URLs have completed.
+     */
+    @Test
+    public void testBatchInteractions() throws Exception {
+        MockBatchActivity batchActivity = new MockBatchActivity();
+        PendingAPI pendingApi = new PendingAPI(batchActivity);
+        pendingApi.setBatchSize(2);
+        pendingApi.setMaxConcurrentRequests(2);
+
+        String counterUrl = "https://mtag.io/njaix4/0123456789x0002C42702";
+        String badUrl = "https://google.com";
+        String hidUrl = "https://mtag.io/njaix4?tagID=12345678&tac=7C3CC5B3FEDD48EE2DA327DD";
+        String authUrl = "https://mtag.io/njaix4?id=12345678&sig=00000F1234567678";
+        String slugUrl = "https://mtag.io/abc";
+        pendingApi.interactionsWereReceived(
+                Arrays.asList(counterUrl, badUrl, hidUrl, authUrl, slugUrl));
+
+        // the bad URL fails right away and frees its slot for the hid URL
+        assertEquals(Arrays.asList(badUrl), batchActivity.failed);
+        assertEquals(2, pendingApi.inFlight.size());
+
+        pendingApi.inFlight.get(0).interactionDataWasReceived(new JSONObject());
+        assertEquals(Arrays.asList("0/3:1,1"), batchActivity.batches);
+        assertEquals(3, pendingApi.inFlight.size());
+
+        pendingApi.inFlight.get(1).interactionDidFail("500");
+        pendingApi.inFlight.get(2).interactionDataWasReceived(new JSONObject());
+        assertEquals(4, pendingApi.inFlight.size());
+        pendingApi.inFlight.get(3).interactionDataWasReceived(new JSONObject());
+
+        assertEquals(Arrays.asList(counterUrl, authUrl, slugUrl), batchActivity.succeeded);
+        assertEquals(Arrays.asList(badUrl, hidUrl), batchActivity.failed);
+        assertEquals(Arrays.asList("0/3:1,1", "1/3:1,1", "2/3:1,0"), batchActivity.batches);
+    }
+
+    /**
+     * Duplicate calls to interactionWasReceived should:
+     * - share the request already in flight.
+     * - deliver its result to every waiting caller.
+     */
+    @Test
+    public void testDuplicateInteractionsCoalesce() throws Exception {
+        final List<String> results = new ArrayList<>();
+        BlueBiteInteractionDelegate recorder = new BlueBiteInteractionDelegate() {
+            @Override
+            public void interactionDataWasReceived(JSONObject data) {
+                results.add("ok");
+            }
+
+            @Override
+            public void interactionDidFail(String error) {
+                results.add(error);
+            }
+        };
+        PendingAPI pendingApi = new PendingAPI(recorder);
+
+        String authUrl = "https://mtag.io/njaix4?id=12345678&sig=00000F1234567678";
+        pendingApi.interactionWasReceived(authUrl);
+        pendingApi.interactionWasReceived(authUrl);
+        pendingApi.interactionWasReceived("https://mtag.io/njaix4?id=12345678&sig=00000F1234567679");
+        assertEquals(2, pendingApi.inFlight.size());
+
+        pendingApi.inFlight.get(0).interactionDataWasReceived(new JSONObject());
+        assertEquals(Arrays.asList("ok", "ok"), results);
+
+        // once answered, the next tap goes out again
+        pendingApi.interactionWasReceived(authUrl);
+        assertEquals(3, pendingApi.inFlight.size());
+    }
+
+    /**
+     * With an offline queue set, interactions that get no response should:
+     * - be queued and reported with ERROR_INTERACTION_QUEUED.
+     * - be sent again and removed from the queue by replayOfflineQueue.
+     * - stay in place, ahead of later URLs, if they still get no response when replayed.
+     */
+    @Test
+    public void testOfflineQueueReplay() throws Exception {
+        MockBatchActivity batchActivity = new MockBatchActivity();
+        PendingAPI pendingApi = new PendingAPI(batchActivity);
+        pendingApi.setCallbackExecutor(InteractionExecutors.direct());
+        pendingApi.setQueueExecutor(InteractionExecutors.direct());
+        OfflineInteractionQueue queue = new OfflineInteractionQueue(folder.newFolder());
+        pendingApi.setOfflineQueue(queue);
+
+        String authUrl = "https://mtag.io/njaix4?id=12345678&sig=00000F1234567678";
+        String hidUrl = "https://mtag.io/njaix4?tagID=12345678&tac=7C3CC5B3FEDD48EE2DA327DD";
+        String counterUrl = "https://mtag.io/njaix4/0123456789x0002C42702";
+        pendingApi.interactionWasReceived(authUrl);
+        pendingApi.interactionWasReceived(hidUrl);
+        pendingApi.interactionWasReceived(counterUrl);
+        for (int i = 0; i < 3; i++) {
+            pendingApi.inFlight.get(i).interactionDidFail(API.ERROR_NETWORK + "timeout");
+        }
+        assertEquals(3, queue.size());
+
+        pendingApi.replayOfflineQueue();
+        assertEquals(6, pendingApi.inFlight.size());
+        pendingApi.inFlight.get(3).interactionDataWasReceived(new JSONObject());
+        pendingApi.inFlight.get(4).interactionDidFail(API.ERROR_NETWORK + "timeout");
+        pendingApi.inFlight.get(5).interactionDataWasReceived(new JSONObject());
+        assertEquals(Arrays.asList(authUrl, counterUrl), batchActivity.succeeded);
+        assertEquals(Arrays.asList(hidUrl, counterUrl), queue.peek(10));
+        assertEquals(2, queue.getReplayedCount());
+
+        pendingApi.replayOfflineQueue();
+        assertEquals(8, pendingApi.inFlight.size());
+        pendingApi.inFlight.get(6).interactionDataWasReceived(new JSONObject());
+        pendingApi.inFlight.get(7).interactionDataWasReceived(new JSONObject());
+        assertEquals(Arrays.asList(authUrl, counterUrl, hidUrl, counterUrl),
+                batchActivity.succeeded);
+        assertEquals(0, queue.size());
+        assertEquals(4, queue.getReplayedCount());
+        queue.close();
+    }
+
+    /**
+     * One-time interactions queued while offline should:
+     * - not be taken for replays when sent again, even with replays skipped.
+     * - not be taken for replays after a 5xx or 429 response.
+     * - be taken for replays once the server accepted them.
+     */
+    @Test
+    public void testReplayFilterWithOfflineQueue() throws Exception {
+        final List<String> results = new ArrayList<>();
+        final boolean[] offline = {true};
+        final int[] status = {200};
+        BlueBiteInteractionDelegate recorder = new BlueBiteInteractionDelegate() {
+            @Override
+            public void interactionDataWasReceived(JSONObject data) {
+                results.add("verified=" + data.optBoolean("tagVerified"));
+            }
+
+            @Override
+            public void interactionDidFail(String error) {
+                results.add(error);
+            }
+        };
+        API offlineApi = new API(recorder, new LoopbackInteractionTransport(
+                new LoopbackInteractionTransport.Responder() {
+                    @Override
+                    public LoopbackInteractionTransport.Response respond(
+                            String url, Map<String, String> params) throws IOException {
+                        if (offline[0]) {
+                            throw new IOException("offline");
+                        }
+                        return new LoopbackInteractionTransport.Response(
+                                status[0], mockResponse().toString());
+                    }
+                }));
+        offlineApi.setCallbackExecutor(InteractionExecutors.direct());
+        offlineApi.setQueueExecutor(InteractionExecutors.direct());
+        offlineApi.setReplayFilter(new CounterReplayFilter(100, 0.001), true);
+        OfflineInteractionQueue queue = new OfflineInteractionQueue(folder.newFolder());
+        offlineApi.setOfflineQueue(queue);
+
+        String hidUrl = "https://mtag.io/njaix4?tagID=12345678&tac=7C3CC5B3FEDD48EE2DA327DD";
+        offlineApi.interactionWasReceived(hidUrl);
+        assertEquals(1, queue.size());
+        assertTrue(results.get(0).startsWith(API.ERROR_INTERACTION_QUEUED));
+
+        offline[0] = false;
+        offlineApi.replayOfflineQueue();
+        assertEquals("verified=true", results.get(1));
+        assertEquals(0, queue.size());
+
+        offlineApi.interactionWasReceived(hidUrl);
+        assertEquals(API.ERROR_REPLAYED_VID + hidUrl, results.get(2));
+
+        // rejected or throttled requests can be sent again
+        String otherUrl = "https://mtag.io/njaix4?tagID=12345678&tac=7C3CC5B3FEDD48EE2DA327DE";
+        status[0] = 503;
+        offlineApi.interactionWasReceived(otherUrl);
+        status[0] = 429;
+        offlineApi.interactionWasReceived(otherUrl);
+        status[0] = 200;
+        offlineApi.interactionWasReceived(otherUrl);
+        assertEquals("verified=true", results.get(5));
+        offlineApi.interactionWasReceived(otherUrl);
+        assertEquals(API.ERROR_REPLAYED_VID + otherUrl, results.get(6));
+        queue.close();
+    }
+
+    /**
+     * Interactions sent through a transport should:
+     * - POST the parsed params to the interactions URL.
+     * - pass formatted 2xx responses to the delegate.
+     * - fail non-2xx responses with their body, and missing responses with ERROR_NETWORK.
+     */
+    @Test
+    public void testLoopbackTransport() throws Exception {
+        final List<String> results = new ArrayList<>();
+        final List<Map<String, String>> posted = new ArrayList<>();
+        final int[] status = {200};
+        BlueBiteInteractionDelegate recorder = new BlueBiteInteractionDelegate() {
+            @Override
+            public void interactionDataWasReceived(JSONObject data) {
+                results.add("verified=" + data.optBoolean("tagVerified"));
+            }
+
+            @Override
+            public void interactionDidFail(String error) {
+                results.add(error);
+            }
+        };
+        API loopbackApi = new API(recorder, new LoopbackInteractionTransport(
+                new LoopbackInteractionTransport.Responder() {
+                    @Override
+                    public LoopbackInteractionTransport.Response respond(
+                            String url, Map<String, String> params) throws IOException {
+                        assertEquals("http://localhost/v2/interactions", url);
+                        posted.add(params);
+                        if (status[0] == 0) {
+                            throw new IOException("offline");
+                        }
+                        return new LoopbackInteractionTransport.Response(
+                                status[0], status[0] == 200 ? mockResponse().toString() : "nope");
+                    }
+                }));
+        loopbackApi.setInteractionsUrl("http://localhost/v2/interactions");
+
+        String hidUrl = "https://mtag.io/njaix4?tagID=12345678&tac=7C3CC5B3FEDD48EE2DA327DD";
+        loopbackApi.interactionWasReceived(hidUrl);
+        status[0] = 500;
+        loopbackApi.interactionWasReceived(hidUrl);
+        status[0] = 0;
+        loopbackApi.interactionWasReceived(hidUrl);
+
+        HashMap<String, String> expected = new HashMap<>();
+        expected.put("hid", "12345678");
+        expected.put("vid", "7C3CC5B3FEDD48EE2DA327DD");
+        expected.put("tag_id", expectedMtagId);
+        expected.put("tech", "n");
+        assertEquals(expected, new HashMap<>(posted.get(0)));
+        assertEquals("verified=true", results.get(0));
+        assertEquals("nope", results.get(1));
+        assertTrue(results.get(2).startsWith(API.ERROR_NETWORK));
+    }
+
+    @Test
+    public void testInteractionResultDelegate() throws Exception {
+        final List<InteractionResult> results = new ArrayList<>();
+        InteractionResultDelegate recorder = new InteractionResultDelegate() {
+            @Override
+            public void interactionResultWasReceived(InteractionResult result) {
+                results.add(result);
+            }
+
+            @Override
+            public void interactionDataWasReceived(JSONObject data) {
+                fail("JSON results should not be delivered to an InteractionResultDelegate");
+            }
+
+            @Override
+            public void interactionDidFail(String error) {
+                fail(error);
+            }
+        };
+        final String[] body = {mockResponse().toString()};
+        API resultApi = new API(recorder, new LoopbackInteractionTransport(
+                new LoopbackInteractionTransport.Responder() {
+                    @Override
+                    public LoopbackInteractionTransport.Response respond(
+                            String url, Map<String, String> params) {
+                        return new LoopbackInteractionTransport.Response(200, body[0]);
+                    }
+                }));
+
+        String hidUrl = "https://mtag.io/njaix4?tagID=12345678&tac=7C3CC5B3FEDD48EE2DA327DD";
+        resultApi.interactionWasReceived(hidUrl);
+        body[0] = "{\"device\":{},\"tag_verified\":null}";
+        resultApi.interactionWasReceived(hidUrl);
+
+        InteractionResult verified = results.get(0);
+        assertEquals(InteractionResult.Verification.VERIFIED, verified.getVerification());
+        assertEquals("US", verified.getDeviceCountry());
+        assertEquals(mockResponse().getJSONArray("campaigns").toString(),
+                verified.getCampaigns().toString());
+        assertEquals(api.handleResponse(mockResponse()).toString(),
+                verified.toJSONObject().toString());
+
+        InteractionResult unknown = results.get(1);
+        assertEquals(InteractionResult.Verification.UNKNOWN, unknown.getVerification());
+        assertFalse(unknown.isVerified());
+        assertNull(unknown.getDeviceCountry());
+        assertNull(unknown.getLocation());
+        assertEquals(0, unknown.toJSONObject().length());
+    }
+
+    /**
+     * Interactions replayed from the offline queue should reach an InteractionResultDelegate
+     * as typed results too.
+     */
+    @Test
+    public void testOfflineReplayDeliversTypedResults() throws Exception {
+        final List<InteractionResult> results = new ArrayList<>();
+        final List<String> errors = new ArrayList<>();
+        final boolean[] offline = {true};
+        InteractionResultDelegate recorder = new InteractionResultDelegate() {
+            @Override
+            public void interactionResultWasReceived(InteractionResult result) {
+                results.add(result);
+            }
+
+            @Override
+            public void interactionDataWasReceived(JSONObject data) {
+                fail("JSON results should not be delivered to an InteractionResultDelegate");
+            }
+
+            @Override
+            public void interactionDidFail(String error) {
+                errors.add(error);
+            }
+        };
+        API resultApi = new API(recorder, new LoopbackInteractionTransport(
+                new LoopbackInteractionTransport.Responder() {
+                    @Override
+                    public LoopbackInteractionTransport.Response respond(
+                            String url, Map<String, String> params) throws IOException {
+                        if (offline[0]) {
+                            throw new IOException("offline");
+                        }
+                        return new LoopbackInteractionTransport.Response(
+                                200, mockResponse().toString());
+                    }
+                }));
+        resultApi.setCallbackExecutor(InteractionExecutors.direct());
+        resultApi.setQueueExecutor(InteractionExecutors.direct());
+        OfflineInteractionQueue queue = new OfflineInteractionQueue(folder.newFolder());
+        resultApi.setOfflineQueue(queue);
+
+        String hidUrl = "https://mtag.io/njaix4?tagID=12345678&tac=7C3CC5B3FEDD48EE2DA327DD";
+        resultApi.interactionWasReceived(hidUrl);
+        assertEquals(1, errors.size());
+        assertTrue(errors.get(0).startsWith(API.ERROR_INTERACTION_QUEUED));
+
+        offline[0] = false;
+        resultApi.replayOfflineQueue();
+        assertEquals(1, results.size());
+        assertTrue(results.get(0).isVerified());
+        assertEquals("US", results.get(0).getDeviceCountry());
+        assertEquals(0, queue.size());
+        queue.close();
+    }
+
+    @Test
+    public void testParseAndCallbackExecutors() throws Exception {
+        final List<String> events = new ArrayList<>();
+        final List<Runnable> posted = new ArrayList<>();
+        API executorApi = new API(new BlueBiteInteractionDelegate() {
+            @Override
+            public void interactionDataWasReceived(JSONObject data) {
+                events.add("delegate");
+            }
+
+            @Override
+            public void interactionDidFail(String error) {
+                events.add(error);
+            }
+        }, new LoopbackInteractionTransport(new LoopbackInteractionTransport.Responder() {
+            @Override
+            public LoopbackInteractionTransport.Response respond(
+                    String url, Map<String, String> params) {
+                return new LoopbackInteractionTransport.Response(200, mockResponse().toString());
+            }
+        }));
+        executorApi.setParseExecutor(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                events.add("parse");
+                command.run();
+            }
+        });
+        executorApi.setCallbackExecutor(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                posted.add(command);
+            }
+        });
+
+        InteractionFuture future = executorApi.verify(
+                "https://mtag.io/njaix4?tagID=12345678&tac=7C3CC5B3FEDD48EE2DA327DD");
+        // verify completes off the callback executor
+        assertTrue(future.isSuccessful());
+        executorApi.interactionWasReceived(
+                "https://mtag.io/njaix4?tagID=12345678&tac=7C3CC5B3FEDD48EE2DB327DD");
+        assertEquals(Arrays.asList("parse", "parse"), events);
+        assertEquals(1, posted.size());
+        posted.get(0).run();
+        assertEquals(Arrays.asList("parse", "parse", "delegate"), events);
+    }
+}
@@ -0,0 +1,109 @@
+//Copyright 2018 Blue Bite LLC.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package com.bluebite.mtag_sdk;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests verify the offline queue keeps order, survives reopening and recovers from
+ * torn writes.
+ */
+public class OfflineInteractionQueueTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final String COUNTER_URL = "https://mtag.io/njaix4/0123456789x0002C42702";
+    private static final String AUTH_URL = "https://mtag.io/njaix4?id=12345678&sig=00000F1234567678";
+    private static final String HID_URL = "https://mtag.io/njaix4?tagID=12345678&tac=7C3CC5B3FEDD48EE";
+
+    @Test
+    public void testPeekAndAcknowledgeInOrder() throws Exception {
+        OfflineInteractionQueue queue = new OfflineInteractionQueue(folder.getRoot());
+        assertTrue(queue.offer(COUNTER_URL));
+        assertTrue(queue.offer(AUTH_URL));
+        assertTrue(queue.offer(HID_URL));
+
+        assertEquals(Arrays.asList(COUNTER_URL, AUTH_URL), queue.peek(2));
+        queue.acknowledge(2);
+        assertEquals(1, queue.size());
+        assertEquals(Arrays.asList(HID_URL), queue.peek(10));
+        assertEquals(3, queue.getQueuedCount());
+        queue.close();
+    }
+
+    @Test
+    public void testReopenKeepsUnacknowledgedRecords() throws Exception {
+        // tiny segments so records span several files
+        OfflineInteractionQueue queue = new OfflineInteractionQueue(folder.getRoot(), 64, 4096, 10);
+        queue.offer(COUNTER_URL);
+        queue.offer(AUTH_URL);
+        queue.offer(HID_URL);
+        queue.acknowledge(1);
+        queue.close();
+
+        queue = new OfflineInteractionQueue(folder.getRoot(), 64, 4096, 10);
+        assertEquals(2, queue.size());
+        assertEquals(Arrays.asList(AUTH_URL, HID_URL), queue.peek(10));
+
+        // acknowledging everything compacts down to a single empty segment
+        queue.acknowledge(2);
+        assertEquals(0, queue.size());
+        assertEquals(1, folder.getRoot().list().length - 1);
+        queue.close();
+    }
+
+    @Test
+    public void testTornRecordIsDropped() throws Exception {
+        OfflineInteractionQueue queue = new OfflineInteractionQueue(folder.getRoot());
+        queue.offer(COUNTER_URL);
+        queue.offer(AUTH_URL);
+        queue.close();
+
+        // simulate the process dying halfway through the second record
+        File segment = new File(folder.getRoot(), "0.seg");
+        RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        file.setLength(file.length() - 5);
+        file.close();
+
+        queue = new OfflineInteractionQueue(folder.getRoot());
+        assertEquals(Arrays.asList(COUNTER_URL), queue.peek(10));
+        assertEquals(1, queue.getDroppedCount());
+
+        // appends continue right after the last good record
+        queue.offer(HID_URL);
+        assertEquals(Arrays.asList(COUNTER_URL, HID_URL), queue.peek(10));
+        queue.close();
+    }
+
+    @Test
+    public void testFullQueueDropsNewest() throws Exception {
+        OfflineInteractionQueue queue = new OfflineInteractionQueue(folder.getRoot(), 1024, 100, 10);
+        assertTrue(queue.offer(COUNTER_URL));
+        assertFalse(queue.offer(AUTH_URL));
+        assertEquals(1, queue.getDroppedCount());
+        assertEquals(Arrays.asList(COUNTER_URL), queue.peek(10));
+        queue.close();
+    }
+}
@@ -0,0 +1,154 @@
+//Copyright 2018 Blue Bite LLC.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+
+package com.bluebite.mtag_sdk;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests verify the retry policy's rules and retried and hedged requests.
+ */
+public class RetryPolicyTest {
+
+    private static final String SLUG_URL = "https://mtag.io/abc";
+    private static final String COUNTER_URL = "https://mtag.io/njaix4/0123456789x0002C42702";
+    private static final String OK_BODY = "{\"tag_verified\":true}";
+
+    /**
+     * Transport answering from a script of status codes, 0 failing with no response and -1
+     * never answering.
+     */
+    private static class ScriptedTransport implements InteractionTransport {
+        final List<Integer> script;
+        final AtomicInteger posts = new AtomicInteger();
+        final AtomicInteger cancels = new AtomicInteger();
+
+        ScriptedTransport(Integer... statuses) {
+            script = new ArrayList<>();
+            Collections.addAll(script, statuses);
+        }
+
+        @Override
+        public Call post(String url, Map<String, String> params, Callback callback) {
+            int status = script.get(Math.min(posts.getAndIncrement(), script.size() - 1));
+            if (status == 0) {
+                callback.onFailure(new IOException("offline"));
+            } else if (status > 0) {
+                callback.onResponse(status, Collections.<String, String>emptyMap(),
+                        (status == 200 ? OK_BODY : "busy").getBytes());
+            }
+            return new Call() {
+                @Override
+                public void cancel() {
+                    cancels.incrementAndGet();
+                }
+            };
+        }
+    }
+
+    @Test
+    public void testBackoffAndJitter() throws Exception {
+        RetryPolicy policy = new RetryPolicy(5, 100, 300, 0.5);
+        for (int i = 0; i < 50; i++) {
+            long first = policy.getBackoffMillis(1);
+            assertTrue(first >= 50 && first <= 100);
+            long third = policy.getBackoffMillis(3);
+            assertTrue(third >= 150 && third <= 300);
+        }
+        assertEquals(200, new RetryPolicy(5, 100, 1000, 0).getBackoffMillis(2));
+    }
+
+    @Test
+    public void testOneTimeVidsAreNotRetried() throws Exception {
+        RetryPolicy policy = new RetryPolicy(3, 1, 1, 0);
+        Map<String, String> basic = new HashMap<>();
+        basic.put("tag_id", "1");
+        Map<String, String> counter = new HashMap<>(basic);
+        counter.put("vid", "0123456789x0002C42702");
+
+        assertTrue(policy.shouldRetry(basic, 1, 0));
+        assertTrue(policy.shouldRetry(basic, 2, 503));
+        assertTrue(policy.shouldRetry(basic, 1, 429));
+        assertFalse(policy.shouldRetry(basic, 1, 404));
+        assertFalse(policy.shouldRetry(basic, 3, 503));
+        assertFalse(policy.shouldRetry(counter, 1, 503));
+
+        policy.setServerDedupesVids(true);
+        assertTrue(policy.shouldRetry(counter, 1, 503));
+    }
+
+    @Test
+    public void testRetriesUntilSuccess() throws Exception {
+        ScriptedTransport transport = new ScriptedTransport(503, 0, 200);
+        API api = new API(null, transport);
+        api.setRetryPolicy(new RetryPolicy(3, 1, 5, 0.5));
+
+        InteractionResult result = api.verify(SLUG_URL).get(5, TimeUnit.SECONDS);
+        assertTrue(result.isVerified());
+        assertEquals(3, transport.posts.get());
+    }
+
+    @Test
+    public void testGivesUpAfterMaxAttempts() throws Exception {
+        ScriptedTransport transport = new ScriptedTransport(503);
+        API api = new API(null, transport);
+        api.setRetryPolicy(new RetryPolicy(2, 1, 5, 0));
+
+        InteractionFuture future = api.verify(SLUG_URL);
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail("expected the last failure");
+        } catch (ExecutionException e) {
+            assertEquals("busy", e.getMessage());
+        }
+        assertEquals(2, transport.posts.get());
+
+        transport = new ScriptedTransport(503);
+        api.setTransport(transport);
+        assertEquals("busy", api.verify(COUNTER_URL).getError());
+        assertEquals(1, transport.posts.get());
+    }
+
+    @Test
+    public void testHedgeAnswersSlowRequest() throws Exception {
+        ScriptedTransport transport = new ScriptedTransport(-1, 200);
+        API api = new API(null, transport);
+        RetryPolicy policy = new RetryPolicy(2, 1, 5, 0);
+        policy.setHedging(true, 0.95, 10);
+        for (int i = 0; i < 20; i++) {
+            policy.recordLatency(TimeUnit.MILLISECONDS.toNanos(5));
+        }
+        api.setRetryPolicy(policy);
+
+        InteractionResult result = api.verify(SLUG_URL).get(5, TimeUnit.SECONDS);
+        assertTrue(result.isVerified());
+        assertEquals(2, transport.posts.get());
+        // the first, still silent request was abandoned
+        assertEquals(1, transport.cancels.get());
+    }
+}